@@ -0,0 +1,134 @@
+package android.netinf.common;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.Log;
+
+/**
+ * A named {@link ThreadPoolExecutor} with a bounded number of threads and a bounded queue.
+ * Work submitted when both are full is rejected and counted.
+ */
+public class BoundedExecutor extends ThreadPoolExecutor {
+
+    public static final String TAG = BoundedExecutor.class.getSimpleName();
+
+    /** How long idle threads are kept alive. */
+    public static final long KEEP_ALIVE = 30000;
+
+    private final String mName;
+    private final int mQueueCapacity;
+    private final AtomicLong mRejected = new AtomicLong();
+
+    /**
+     * Creates a new {@link BoundedExecutor}.
+     * @param name
+     *     The name, used for threads and logging
+     * @param threads
+     *     The maximum number of threads
+     * @param queueCapacity
+     *     The maximum number of queued tasks, 0 to never queue
+     */
+    public BoundedExecutor(final String name, int threads, int queueCapacity) {
+        super(threads, threads, KEEP_ALIVE, TimeUnit.MILLISECONDS, createQueue(queueCapacity));
+        mName = name;
+        mQueueCapacity = queueCapacity;
+        allowCoreThreadTimeOut(true);
+        setThreadFactory(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, name + "-" + mCount.incrementAndGet());
+            }
+        });
+        setRejectedExecutionHandler(new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                mRejected.incrementAndGet();
+                Log.w(TAG, mName + " rejected a task: " + BoundedExecutor.this);
+                throw new RejectedExecutionException(mName + " is saturated");
+            }
+        });
+    }
+
+    private static BlockingQueue<Runnable> createQueue(int capacity) {
+        if (capacity == 0) {
+            return new SynchronousQueue<Runnable>();
+        }
+        return new LinkedBlockingQueue<Runnable>(capacity);
+    }
+
+    /**
+     * Submits a task, or returns a default result if the task is rejected.
+     * @param task
+     *     The task
+     * @param rejected
+     *     The result to use if the task is rejected
+     * @return
+     *     A Future representing the result of the task
+     */
+    public <T> Future<T> submitOrElse(Callable<T> task, T rejected) {
+        try {
+            return submit(task);
+        } catch (RejectedExecutionException e) {
+            return FutureUtils.immediateFuture(rejected);
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getQueuedCount() {
+        return getQueue().size();
+    }
+
+    public int getQueueCapacity() {
+        return mQueueCapacity;
+    }
+
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    /**
+     * Returns a {@link JSONObject} representation of the counters.
+     * @return
+     *     {@link JSONObject} representation
+     * @throws JSONException
+     *     In case the {@link JSONObject} could not be created
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject jo = new JSONObject();
+        jo.put("threads", getPoolSize());
+        jo.put("max_threads", getMaximumPoolSize());
+        jo.put("active", getActiveCount());
+        jo.put("queued", getQueuedCount());
+        jo.put("queue_capacity", getQueueCapacity());
+        jo.put("rejected", getRejectedCount());
+        jo.put("completed", getCompletedTaskCount());
+        return jo;
+    }
+
+    @Override
+    public String toString() {
+        return "{name=" + mName
+                + ", active=" + getActiveCount() + "/" + getMaximumPoolSize()
+                + ", queued=" + getQueuedCount() + "/" + mQueueCapacity
+                + ", rejected=" + getRejectedCount() + "}";
+    }
+
+}
@@ -0,0 +1,196 @@
+package android.netinf.common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Reuses fixed size buffers, so that transferring octets does not allocate a buffer per transfer.
+ * A buffer taken with {@link #acquire()} must be given back with {@link #release(byte[])}
+ * in a finally block, at most the capacity number of free buffers are kept.
+ */
+public class BufferPool {
+
+    public static final String TAG = BufferPool.class.getSimpleName();
+
+    /** Size of the buffers of {@link #TRANSFER}. */
+    public static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    /** Buffers used to transfer octets between files and sockets. */
+    public static final BufferPool TRANSFER = new BufferPool("transfer", TRANSFER_BUFFER_SIZE, 16);
+
+    private final String mName;
+    private final int mBufferSize;
+    private final int mCapacity;
+    private final Queue<byte[]> mFree = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger mFreeCount = new AtomicInteger();
+
+    private final AtomicLong mAllocated = new AtomicLong();
+    private final AtomicLong mReused = new AtomicLong();
+
+    /**
+     * Creates a new {@link BufferPool}.
+     * @param name
+     *     The name, used for metrics
+     * @param bufferSize
+     *     The size of each buffer
+     * @param capacity
+     *     The maximum number of free buffers kept
+     */
+    public BufferPool(String name, int bufferSize, int capacity) {
+        mName = name;
+        mBufferSize = bufferSize;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Takes a buffer from the pool, allocating one if none is free.
+     * @return
+     *     A buffer of the size of the pool
+     */
+    public byte[] acquire() {
+        byte[] buffer = mFree.poll();
+        if (buffer == null) {
+            mAllocated.incrementAndGet();
+            return new byte[mBufferSize];
+        }
+        mFreeCount.decrementAndGet();
+        mReused.incrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. The buffer must not be used afterwards.
+     * @param buffer
+     *     The buffer, null is ignored
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null || buffer.length != mBufferSize) {
+            return;
+        }
+        if (mFreeCount.incrementAndGet() > mCapacity) {
+            mFreeCount.decrementAndGet();
+            return;
+        }
+        mFree.offer(buffer);
+    }
+
+    /**
+     * Copies a file to a stream, reading it through its {@link FileChannel} into a buffer of the pool.
+     * @param file
+     *     The file
+     * @param out
+     *     The stream, which is not closed
+     * @return
+     *     The number of bytes copied
+     * @throws IOException
+     *     In case reading or writing failed
+     */
+    public long copy(File file, OutputStream out) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        byte[] buffer = acquire();
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            long copied = 0;
+            int read;
+            while ((read = channel.read(wrapped)) != -1) {
+                out.write(buffer, 0, read);
+                copied += read;
+                wrapped.clear();
+            }
+            return copied;
+        } finally {
+            release(buffer);
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Copies a stream to another stream using a buffer of the pool.
+     * @param in
+     *     The stream to read, which is not closed
+     * @param out
+     *     The stream to write, which is not closed
+     * @return
+     *     The number of bytes copied
+     * @throws IOException
+     *     In case reading or writing failed
+     */
+    public long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = acquire();
+        try {
+            return IOUtils.copyLarge(in, out, buffer);
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Copies a stream to another stream using a buffer of the pool, failing if the stream is too large.
+     * @param in
+     *     The stream to read, which is not closed
+     * @param out
+     *     The stream to write, which is not closed
+     * @param limit
+     *     The maximum number of bytes to copy
+     * @return
+     *     The number of bytes copied
+     * @throws IOException
+     *     In case the stream is larger than the limit or reading or writing failed
+     */
+    public long copy(InputStream in, OutputStream out, long limit) throws IOException {
+        byte[] buffer = acquire();
+        try {
+            long copied = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (copied + read > limit) {
+                    throw new IOException("Stream larger than " + limit + " bytes");
+                }
+                out.write(buffer, 0, read);
+                copied += read;
+            }
+            return copied;
+        } finally {
+            release(buffer);
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Returns a {@link JSONObject} with the counters of the pool.
+     * @return
+     *     {@link JSONObject} representation
+     * @throws JSONException
+     *     In case the {@link JSONObject} could not be created
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject jo = new JSONObject();
+        jo.put("buffer_size", mBufferSize);
+        jo.put("free", mFreeCount.get());
+        jo.put("allocated", mAllocated.get());
+        jo.put("reused", mReused.get());
+        return jo;
+    }
+
+}
@@ -0,0 +1,97 @@
+package android.netinf.common;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Writes the octets of an {@link Ndo} to a temporary file.
+ * The octets only become cached when {@link #commit()} is called,
+ * closing the stream without committing discards them,
+ * so a failed transfer never leaves partial octets in the cache.
+ * If created with a digest the octets are hashed as they are written,
+ * and octets not matching the hash of the {@link Ndo} are rejected without reading them again.
+ */
+public class CacheOutputStream extends FileOutputStream {
+
+    public static final String TAG = CacheOutputStream.class.getSimpleName();
+
+    private final Ndo mNdo;
+    private final File mFile;
+    private final MessageDigest mDigest;
+    private boolean mClosed = false;
+    // Keep the file when closed, set when committing
+    private boolean mKeep = false;
+
+    CacheOutputStream(Ndo ndo, File file, MessageDigest digest) throws FileNotFoundException {
+        super(file);
+        mNdo = ndo;
+        mFile = file;
+        mDigest = digest;
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        super.write(oneByte);
+        if (mDigest != null) {
+            mDigest.update((byte) oneByte);
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer) throws IOException {
+        write(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        super.write(buffer, offset, count);
+        if (mDigest != null) {
+            mDigest.update(buffer, offset, count);
+        }
+    }
+
+    /**
+     * Closes the stream and makes the written octets the cached octets of the {@link Ndo}.
+     * @throws IOException
+     *     In case the octets do not match the hash or could not be stored, in which case they are discarded
+     */
+    public void commit() throws IOException {
+        if (mClosed) {
+            throw new IOException("Stream closed before commit");
+        }
+        if (mDigest != null) {
+            String hash = NetInfUtils.toHash(mDigest.digest(), mNdo.getAlgorithm());
+            if (!hash.equals(mNdo.getHash())) {
+                close();
+                throw new IOException("Octets do not match " + mNdo.getUri() + ", got hash " + hash);
+            }
+        }
+        mKeep = true;
+        close();
+        mNdo.commit(mFile);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            super.close();
+        } catch (IOException e) {
+            mKeep = false;
+            throw e;
+        } finally {
+            if (!mKeep) {
+                FileUtils.deleteQuietly(mFile);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,239 @@
+package android.netinf.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Helpers for working with Futures.
+ * Listenable Futures are passed around as {@link AbstractFuture} since the bundled minimal Guava
+ * does not include addListener in the ListenableFuture interface.
+ */
+public class FutureUtils {
+
+    public static final String TAG = FutureUtils.class.getSimpleName();
+
+    /** Runs listeners in the thread that completes the Future. */
+    private static final Executor SAME_THREAD = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private FutureUtils() { }
+
+    /**
+     * Creates a Future that is already done.
+     * @param value
+     *     The result of the Future
+     * @return
+     *     A Future with the given result
+     */
+    public static <V> SettableFuture<V> immediateFuture(V value) {
+        SettableFuture<V> future = SettableFuture.create();
+        future.set(value);
+        return future;
+    }
+
+    /**
+     * Creates a Future that has already failed.
+     * @param throwable
+     *     The cause of the failure
+     * @return
+     *     A Future failed with the given cause
+     */
+    public static <V> SettableFuture<V> immediateFailedFuture(Throwable throwable) {
+        SettableFuture<V> future = SettableFuture.create();
+        future.setException(throwable);
+        return future;
+    }
+
+    /**
+     * Checks if a Future failed because its task was rejected by an {@link Executor}.
+     * Does not block, a Future that is not done was not rejected.
+     * @param future
+     *     The Future
+     * @return
+     *     true if the Future failed with a {@link RejectedExecutionException}, otherwise false
+     */
+    public static boolean isRejected(Future<?> future) {
+        if (!future.isDone() || future.isCancelled()) {
+            return false;
+        }
+        try {
+            future.get();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return e.getCause() instanceof RejectedExecutionException;
+        }
+    }
+
+    /**
+     * Returns an {@link Executor} that runs tasks in the calling thread.
+     * Listeners using it must be short and must not block.
+     * @return
+     *     The {@link Executor}
+     */
+    public static Executor sameThreadExecutor() {
+        return SAME_THREAD;
+    }
+
+    /**
+     * Submits a task to an {@link Executor}.
+     * @param executor
+     *     The {@link Executor}
+     * @param task
+     *     The task
+     * @return
+     *     A Future representing the result of the task
+     * @throws RejectedExecutionException
+     *     In case the {@link Executor} rejected the task
+     */
+    public static <V> AbstractFuture<V> submit(Executor executor, Callable<V> task) {
+        ListenableTask<V> future = new ListenableTask<V>(task);
+        executor.execute(future);
+        return future;
+    }
+
+    /**
+     * Gets the result of a Future, or a default value if the Future failed or was cancelled.
+     * Blocks if the Future is not done.
+     * @param future
+     *     The Future
+     * @param otherwise
+     *     The value to use if the Future failed
+     * @return
+     *     The result of the Future, otherwise the default value
+     */
+    public static <V> V getOrElse(Future<V> future, V otherwise) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Use default
+        } catch (CancellationException e) {
+            // Use default
+        }
+        return otherwise;
+    }
+
+    /**
+     * Creates a Future that is done when all the given Futures are done,
+     * regardless of whether they succeeded, failed or were cancelled.
+     * @param futures
+     *     The Futures
+     * @return
+     *     A Future that is done when all Futures are done
+     */
+    public static AbstractFuture<Void> whenAll(Collection<? extends AbstractFuture<?>> futures) {
+        final SettableFuture<Void> all = SettableFuture.create();
+        if (futures.isEmpty()) {
+            all.set(null);
+            return all;
+        }
+        final AtomicInteger pending = new AtomicInteger(futures.size());
+        for (AbstractFuture<?> future : futures) {
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    if (pending.decrementAndGet() == 0) {
+                        all.set(null);
+                    }
+                }
+            }, SAME_THREAD);
+        }
+        return all;
+    }
+
+    /**
+     * Creates a Future with the results of all the given Futures once they are done.
+     * Futures that failed or were cancelled contribute null.
+     * @param futures
+     *     The Futures
+     * @return
+     *     A Future with the results, in the same order
+     */
+    public static <V> AbstractFuture<List<V>> successfulAsList(final List<? extends AbstractFuture<V>> futures) {
+        final SettableFuture<List<V>> all = SettableFuture.create();
+        whenAll(futures).addListener(new Runnable() {
+            @Override
+            public void run() {
+                List<V> results = new ArrayList<V>(futures.size());
+                for (AbstractFuture<V> future : futures) {
+                    results.add(getOrElse(future, null));
+                }
+                all.set(results);
+            }
+        }, SAME_THREAD);
+        return all;
+    }
+
+    /**
+     * Creates a Future with the result of another Future,
+     * or that fails with a {@link TimeoutException} if the other Future is not done in time.
+     * The other Future is not cancelled on timeout.
+     * @param future
+     *     The Future
+     * @param timeout
+     *     The timeout
+     * @param unit
+     *     The unit of the timeout
+     * @param timer
+     *     The {@link ScheduledExecutorService} used to schedule the timeout
+     * @return
+     *     A Future with the result of the given Future, or failing on timeout
+     */
+    public static <V> AbstractFuture<V> withTimeout(final AbstractFuture<V> future, long timeout, TimeUnit unit,
+            ScheduledExecutorService timer) {
+
+        final SettableFuture<V> timed = SettableFuture.create();
+
+        // Fail if not done in time
+        final ScheduledFuture<?> scheduled = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                timed.setException(new TimeoutException("Timed out waiting for " + future));
+            }
+        }, timeout, unit);
+
+        // Otherwise pass on the result
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                scheduled.cancel(false);
+                try {
+                    timed.set(future.get());
+                } catch (InterruptedException e) {
+                    timed.setException(e);
+                } catch (ExecutionException e) {
+                    timed.setException(e.getCause());
+                } catch (CancellationException e) {
+                    timed.cancel(false);
+                }
+            }
+        }, SAME_THREAD);
+
+        return timed;
+
+    }
+
+}
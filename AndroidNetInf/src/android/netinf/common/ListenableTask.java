@@ -0,0 +1,59 @@
+package android.netinf.common;
+
+import java.util.concurrent.Callable;
+
+import com.google.common.util.concurrent.AbstractFuture;
+
+/**
+ * A {@link Callable} that can be run by an executor and listened to.
+ * Cancelling the task with mayInterruptIfRunning interrupts the thread running it.
+ * @param <V>
+ *     The result type
+ */
+public class ListenableTask<V> extends AbstractFuture<V> implements Runnable {
+
+    public static final String TAG = ListenableTask.class.getSimpleName();
+
+    private final Callable<V> mCallable;
+    // The thread running the task, guarded by mLock so it is never interrupted after the task is done
+    private final Object mLock = new Object();
+    private Thread mRunner;
+
+    public ListenableTask(Callable<V> callable) {
+        mCallable = callable;
+    }
+
+    @Override
+    public void run() {
+        // Cancelled before it was started
+        if (isDone()) {
+            return;
+        }
+        synchronized (mLock) {
+            mRunner = Thread.currentThread();
+        }
+        try {
+            set(mCallable.call());
+        } catch (Throwable t) {
+            setException(t);
+        } finally {
+            synchronized (mLock) {
+                mRunner = null;
+                // Do not leave the interrupt of a cancel to whatever the thread runs next
+                if (isCancelled()) {
+                    Thread.interrupted();
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void interruptTask() {
+        synchronized (mLock) {
+            if (mRunner != null) {
+                mRunner.interrupt();
+            }
+        }
+    }
+
+}
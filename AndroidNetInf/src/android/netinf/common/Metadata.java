@@ -255,4 +255,44 @@ public class Metadata implements Serializable {
         return false;
     }
 
+    /**
+     * Gets all string values of the {@link Metadata}, the values a token can match.
+     * A token matches the {@link Metadata} if and only if it is one of these values.
+     * @return
+     *     The string values, at any depth
+     */
+    public Set<String> getValues() {
+        Set<String> values = new HashSet<String>();
+        addValues(mMetadata, values);
+        return values;
+    }
+
+    /**
+     * Adds the string values of an {@link Object} to a {@link Set}.
+     * The {@link Object} is assumed to be a {@link JSONObject}, {@link JSONArray}, or a subsidiary value of these.
+     * @param object
+     *     The {@link Object}
+     * @param values
+     *     The {@link Set} to add to
+     */
+    private void addValues(Object object, Set<String> values) {
+        if (object instanceof String) {
+            values.add((String) object);
+        } else if (object instanceof JSONObject) {
+            JSONObject current = (JSONObject) object;
+            JSONArray names = current.names();
+            if (names == null) {
+                return;
+            }
+            for (int i = 0; i < names.length(); i++) {
+                addValues(current.opt(names.optString(i)), values);
+            }
+        } else if (object instanceof JSONArray) {
+            JSONArray current = (JSONArray) object;
+            for (int i = 0; i < current.length(); i++) {
+                addValues(current.opt(i), values);
+            }
+        }
+    }
+
 }
@@ -1,17 +1,20 @@
 package android.netinf.common;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 
 import android.os.Environment;
+import android.util.Log;
 
 
 public class Ndo implements Serializable {
@@ -75,7 +78,24 @@ public class Ndo implements Serializable {
         mLocators = Collections.unmodifiableSet(builder.mLocators);
         mMetadata = builder.mMetadata;
         mTimestamp = builder.mTimestamp;
-        mOctets = new File(CACHE_FOLDER, builder.mHash);
+        mOctets = getCacheFile(builder.mHash);
+    }
+
+    /**
+     * Gets the file holding the cached octets of a hash.
+     * Files are spread over two levels of folders named after the start of the hash,
+     * since looking up a file in a folder with tens of thousands of files is slow on FAT.
+     * @param hash
+     *     The hash
+     * @return
+     *     The file, which might not exist
+     */
+    public static File getCacheFile(String hash) {
+        if (hash.length() < 4) {
+            return new File(CACHE_FOLDER, hash);
+        }
+        File shard = new File(new File(CACHE_FOLDER, hash.substring(0, 2)), hash.substring(2, 4));
+        return new File(shard, hash);
     }
 
 //    public Ndo(String algorithm, String hash) {
@@ -119,19 +139,87 @@ public class Ndo implements Serializable {
 //    }
 
     public void cache(File file) throws IOException {
-        FileUtils.copyFile(file, mOctets);
+        CacheOutputStream out = newCacheStream(false);
+        try {
+            BufferPool.TRANSFER.copy(file, out);
+            out.commit();
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
     }
 
     public void cache(byte[] octets) throws IOException {
-        FileUtils.writeByteArrayToFile(mOctets, octets);
+        CacheOutputStream out = newCacheStream(false);
+        try {
+            out.write(octets);
+            out.commit();
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
     }
 
     public void cache(String data, String encoding) throws IOException {
-        FileUtils.writeStringToFile(mOctets, data, encoding, false);
+        cache(data.getBytes(encoding));
     }
 
-    public FileOutputStream newCacheStream() throws FileNotFoundException {
-        return new FileOutputStream(mOctets);
+    /**
+     * Creates a stream that writes the octets to a temporary file,
+     * which only replaces the cached octets when {@link CacheOutputStream#commit()} is called.
+     * @param verify
+     *     true to hash the octets while they are written and reject them if they do not match,
+     *     ignored if the hash algorithm is not supported
+     * @return
+     *     The {@link CacheOutputStream}
+     * @throws IOException
+     *     In case the temporary file could not be created
+     */
+    public CacheOutputStream newCacheStream(boolean verify) throws IOException {
+        MessageDigest digest = null;
+        if (verify) {
+            try {
+                digest = NetInfUtils.newDigest(mAlgorithm);
+            } catch (NoSuchAlgorithmException e) {
+                Log.w(TAG, "Can not verify " + getUri() + ", unknown algorithm");
+            }
+        }
+        File folder = mOctets.getParentFile();
+        FileUtils.forceMkdir(folder);
+        return new CacheOutputStream(this, File.createTempFile(mHash + ".", ".tmp", folder), digest);
+    }
+
+    /**
+     * Makes a complete temporary file written by a {@link CacheOutputStream} the cached octets.
+     * The file is synced to storage and then renamed, so the cached octets are never partially written.
+     * The file is deleted if it could not be committed.
+     * @param file
+     *     The file, next to the cached octets
+     * @throws IOException
+     *     In case the file could not be synced or moved
+     */
+    void commit(File file) throws IOException {
+        try {
+
+            // Make sure the octets are stored before they become visible
+            RandomAccessFile sync = new RandomAccessFile(file, "rw");
+            try {
+                sync.getFD().sync();
+            } finally {
+                sync.close();
+            }
+
+            FileUtils.forceMkdir(mOctets.getParentFile());
+            if (!file.renameTo(mOctets)) {
+                // Some file systems do not replace an existing file
+                FileUtils.deleteQuietly(mOctets);
+                if (!file.renameTo(mOctets)) {
+                    throw new IOException("Failed to move " + file + " to " + mOctets);
+                }
+            }
+
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(file);
+            throw e;
+        }
     }
 
     /**
@@ -192,6 +280,10 @@ public class Ndo implements Serializable {
         return mMetadata;
     }
 
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
     public File getOctets() {
         return mOctets;
     }
@@ -1,13 +1,15 @@
 package android.netinf.common;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -20,6 +22,12 @@ public class NetInfUtils {
 
     public static final String TAG = NetInfUtils.class.getSimpleName();
 
+    /** Size of the buffer used when hashing files. */
+    public static final int HASH_BUFFER_SIZE = 8192;
+
+    // Truncated hash algorithms, for example sha-256-128 is sha-256 truncated to 128 bits
+    private static final Pattern TRUNCATED_ALGORITHM = Pattern.compile("(?i)(sha-256)-(\\d{1,3})");
+
     public static String getAuthority(String uri) throws NetInfException {
         Pattern pattern = Pattern.compile("://(.*?)/");
         Matcher matcher = pattern.matcher(uri);
@@ -118,13 +126,79 @@ public class NetInfUtils {
         return hash(input.getBytes(), algorithm);
     }
 
+    /**
+     * Hashes a file, reading it once through a fixed size buffer.
+     * @param input
+     *     The file
+     * @param algorithm
+     *     The hash algorithm of a NetInf URI, see {@link #newDigest(String)}
+     * @return
+     *     The hash as used in a NetInf URI
+     * @throws NoSuchAlgorithmException
+     *     In case the algorithm is not supported
+     * @throws IOException
+     *     In case the file could not be read
+     */
     public static String hash(File input, String algorithm) throws NoSuchAlgorithmException, IOException {
-        return hash(FileUtils.readFileToByteArray(input), algorithm);
+        MessageDigest digest = newDigest(algorithm);
+        InputStream in = new FileInputStream(input);
+        try {
+            byte[] buffer = new byte[HASH_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return toHash(digest.digest(), algorithm);
     }
 
     public static String hash(byte[] input, String algorithm) throws NoSuchAlgorithmException {
-        byte[] binaryHash = MessageDigest.getInstance(algorithm).digest(input);
-        return Base64.encodeToString(binaryHash, Base64.NO_PADDING | Base64.NO_WRAP | Base64.URL_SAFE);
+        return toHash(newDigest(algorithm).digest(input), algorithm);
+    }
+
+    /**
+     * Creates a {@link MessageDigest} for a hash algorithm of a NetInf URI.
+     * Besides the algorithms known to {@link MessageDigest}, such as sha-256,
+     * the truncated variants of RFC 6920 such as sha-256-128 are supported.
+     * They use the full digest, which is truncated by {@link #toHash(byte[], String)}.
+     * @param algorithm
+     *     The hash algorithm
+     * @return
+     *     A new {@link MessageDigest}
+     * @throws NoSuchAlgorithmException
+     *     In case the algorithm is not supported
+     */
+    public static MessageDigest newDigest(String algorithm) throws NoSuchAlgorithmException {
+        Matcher matcher = TRUNCATED_ALGORITHM.matcher(algorithm);
+        if (!matcher.matches()) {
+            return MessageDigest.getInstance(algorithm);
+        }
+        MessageDigest digest = MessageDigest.getInstance(matcher.group(1));
+        int bits = Integer.parseInt(matcher.group(2));
+        if (bits == 0 || bits % 8 != 0 || bits > digest.getDigestLength() * 8) {
+            throw new NoSuchAlgorithmException("Unsupported truncation " + algorithm);
+        }
+        return digest;
+    }
+
+    /**
+     * Converts a digest created by {@link #newDigest(String)} to the hash used in a NetInf URI,
+     * truncating it if the algorithm is a truncated variant.
+     * @param digest
+     *     The digest
+     * @param algorithm
+     *     The hash algorithm
+     * @return
+     *     The hash, base64url encoded without padding
+     */
+    public static String toHash(byte[] digest, String algorithm) {
+        Matcher matcher = TRUNCATED_ALGORITHM.matcher(algorithm);
+        if (matcher.matches()) {
+            digest = Arrays.copyOf(digest, Integer.parseInt(matcher.group(2)) / 8);
+        }
+        return Base64.encodeToString(digest, Base64.NO_PADDING | Base64.NO_WRAP | Base64.URL_SAFE);
     }
 
 
@@ -0,0 +1,254 @@
+package android.netinf.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keeps track of how well peers respond, to decide in which order to try them
+ * and to skip peers that are currently dead.
+ * Each peer has an exponentially weighted moving average of its round trip time,
+ * where a failure counts as a round trip of the given penalty, typically the timeout.
+ * Consecutive failures make the peer unavailable for an exponentially growing backoff.
+ * @param <P>
+ *     The peer type, for example an address
+ */
+public class PeerScoreboard<P> {
+
+    public static final String TAG = PeerScoreboard.class.getSimpleName();
+
+    /** Weight of a new round trip time sample. */
+    public static final double ALPHA = 0.25;
+    /** Backoff after the first failure in milliseconds, doubled for each consecutive failure. */
+    public static final long INITIAL_BACKOFF = 1000;
+    /** Maximum backoff in milliseconds. */
+    public static final long MAX_BACKOFF = 60000;
+    /** Number of recent successful round trip times kept per peer for percentiles. */
+    public static final int LATENCY_SAMPLES = 64;
+    /** Minimum number of samples before a percentile is reported. */
+    public static final int MIN_LATENCY_SAMPLES = 8;
+
+    private final String mName;
+    private final ConcurrentMap<P, Score> mScores = new ConcurrentHashMap<P, Score>();
+
+    /**
+     * Creates a new {@link PeerScoreboard}.
+     * @param name
+     *     The name, used for logging and metrics
+     */
+    public PeerScoreboard(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Records a successful round trip to a peer.
+     * @param peer
+     *     The peer
+     * @param rtt
+     *     The round trip time in milliseconds
+     */
+    public void success(P peer, long rtt) {
+        getScore(peer).success(rtt);
+    }
+
+    /**
+     * Records a failed round trip to a peer.
+     * @param peer
+     *     The peer
+     * @param penalty
+     *     The round trip time in milliseconds the failure counts as
+     */
+    public void failure(P peer, long penalty) {
+        getScore(peer).failure(penalty);
+    }
+
+    /**
+     * Checks if a peer is not backing off after failures.
+     * @param peer
+     *     The peer
+     * @return
+     *     true if the peer should be tried, otherwise false
+     */
+    public boolean isAvailable(P peer) {
+        Score score = mScores.get(peer);
+        return score == null || score.isAvailable(System.currentTimeMillis());
+    }
+
+    /**
+     * Gets a percentile of the recent successful round trip times of a peer.
+     * @param peer
+     *     The peer
+     * @param percentile
+     *     The percentile, between 0 and 100
+     * @return
+     *     The round trip time in milliseconds, -1 if there are too few samples
+     */
+    public long getLatency(P peer, int percentile) {
+        Score score = mScores.get(peer);
+        return score == null ? -1 : score.getLatency(percentile);
+    }
+
+    /**
+     * Orders peers by their expected round trip time and skips peers backing off.
+     * Peers without history are tried first, ties keep the given order.
+     * If all peers are backing off, the one whose backoff ends first is still returned as a probe,
+     * so a peer that came back is found without waiting for the backoff.
+     * @param peers
+     *     The peers
+     * @return
+     *     The available peers, the one expected to respond fastest first
+     */
+    public List<P> order(Collection<P> peers) {
+
+        final long now = System.currentTimeMillis();
+        final Map<P, Double> expected = new HashMap<P, Double>();
+        List<P> available = new ArrayList<P>(peers.size());
+        P probe = null;
+        long probeAt = Long.MAX_VALUE;
+        for (P peer : peers) {
+            Score score = mScores.get(peer);
+            if (score == null) {
+                expected.put(peer, 0.0);
+                available.add(peer);
+            } else if (score.isAvailable(now)) {
+                expected.put(peer, score.getRtt());
+                available.add(peer);
+            } else if (score.getRetryAt() < probeAt) {
+                probe = peer;
+                probeAt = score.getRetryAt();
+            }
+        }
+
+        if (available.isEmpty() && probe != null) {
+            available.add(probe);
+            return available;
+        }
+
+        // Stable, so ties keep the given order
+        Collections.sort(available, new Comparator<P>() {
+            @Override
+            public int compare(P lhs, P rhs) {
+                return Double.compare(expected.get(lhs), expected.get(rhs));
+            }
+        });
+
+        return available;
+
+    }
+
+    private Score getScore(P peer) {
+        Score score = mScores.get(peer);
+        if (score == null) {
+            Score created = new Score();
+            score = mScores.putIfAbsent(peer, created);
+            if (score == null) {
+                score = created;
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Returns a {@link JSONObject} with the score of each peer.
+     * @return
+     *     {@link JSONObject} representation
+     * @throws JSONException
+     *     In case the {@link JSONObject} could not be created
+     */
+    public JSONObject toJson() throws JSONException {
+        long now = System.currentTimeMillis();
+        JSONObject jo = new JSONObject();
+        for (Map.Entry<P, Score> entry : mScores.entrySet()) {
+            jo.put(entry.getKey().toString(), entry.getValue().toJson(now));
+        }
+        return jo;
+    }
+
+    private static class Score {
+
+        private double mRtt = 0;
+        private boolean mSampled = false;
+        private long mSuccesses = 0;
+        private long mFailures = 0;
+        private int mConsecutiveFailures = 0;
+        private long mRetryAt = 0;
+        // Recent successful round trip times, a ring buffer
+        private final long[] mLatencies = new long[LATENCY_SAMPLES];
+        private int mLatencyCount = 0;
+
+        public synchronized void success(long rtt) {
+            sample(rtt);
+            mLatencies[(int) (mSuccesses % LATENCY_SAMPLES)] = rtt;
+            mLatencyCount = Math.min(mLatencyCount + 1, LATENCY_SAMPLES);
+            mSuccesses++;
+            mConsecutiveFailures = 0;
+            mRetryAt = 0;
+        }
+
+        public synchronized void failure(long penalty) {
+            sample(penalty);
+            mFailures++;
+            mConsecutiveFailures++;
+            long backoff = INITIAL_BACKOFF << Math.min(mConsecutiveFailures - 1, 16);
+            mRetryAt = System.currentTimeMillis() + Math.min(backoff, MAX_BACKOFF);
+        }
+
+        private void sample(long rtt) {
+            if (mSampled) {
+                mRtt = ALPHA * rtt + (1 - ALPHA) * mRtt;
+            } else {
+                mRtt = rtt;
+                mSampled = true;
+            }
+        }
+
+        public synchronized double getRtt() {
+            return mRtt;
+        }
+
+        public synchronized long getLatency(int percentile) {
+            if (mLatencyCount < MIN_LATENCY_SAMPLES) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(mLatencies, mLatencyCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100.0 * mLatencyCount) - 1;
+            return sorted[Math.max(0, Math.min(index, mLatencyCount - 1))];
+        }
+
+        public synchronized long getRetryAt() {
+            return mRetryAt;
+        }
+
+        public synchronized boolean isAvailable(long now) {
+            return now >= mRetryAt;
+        }
+
+        public synchronized JSONObject toJson(long now) throws JSONException {
+            JSONObject jo = new JSONObject();
+            jo.put("rtt", Math.round(mRtt));
+            jo.put("p95", getLatency(95));
+            jo.put("successes", mSuccesses);
+            jo.put("failures", mFailures);
+            jo.put("consecutive_failures", mConsecutiveFailures);
+            jo.put("backoff", Math.max(0, mRetryAt - now));
+            return jo;
+        }
+
+    }
+
+}
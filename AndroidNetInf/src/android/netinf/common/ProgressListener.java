@@ -0,0 +1,17 @@
+package android.netinf.common;
+
+/**
+ * Receives the progress of a transfer.
+ */
+public interface ProgressListener {
+
+    /**
+     * Called after each part of a transfer.
+     * @param transferred
+     *     Number of bytes transferred so far
+     * @param total
+     *     Total number of bytes, -1 if unknown
+     */
+    public void onProgress(long transferred, long total);
+
+}
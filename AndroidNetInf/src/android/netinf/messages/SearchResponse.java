@@ -20,6 +20,7 @@ public class SearchResponse extends Response {
         public Builder(String id) { mId = id; }
         public Builder(Search search) { mId = search.getId(); }
 
+        public Builder failed() { mStatus = NetInfStatus.FAILED; return this; }
         public Builder addResult(Ndo result) { mResults.add(result); return this; }
         public Builder addResults(Set<Ndo> results) { mResults.addAll(results); return this; }
 
@@ -1,21 +1,23 @@
 package android.netinf.node;
 
 import java.io.File;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import org.apache.commons.io.FileUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.netinf.R;
+import android.netinf.common.BufferPool;
+import android.netinf.common.Ndo;
 import android.netinf.messages.Get;
 import android.netinf.messages.GetResponse;
 import android.netinf.messages.Publish;
@@ -23,20 +25,28 @@ import android.netinf.messages.PublishResponse;
 import android.netinf.messages.Search;
 import android.netinf.messages.SearchResponse;
 import android.netinf.node.api.Api;
+import android.netinf.node.cache.ContentStore;
+import android.netinf.node.cache.HotCache;
 import android.netinf.node.get.GetController;
 import android.netinf.node.get.GetService;
+import android.netinf.node.get.NegativeCache;
 import android.netinf.node.logging.LogController;
 import android.netinf.node.logging.LogEntry;
 import android.netinf.node.logging.LogService;
+import android.netinf.node.publish.BatchPublishService;
 import android.netinf.node.publish.PublishController;
 import android.netinf.node.publish.PublishService;
 import android.netinf.node.search.SearchController;
+import android.netinf.node.search.SearchListener;
 import android.netinf.node.search.SearchService;
 import android.netinf.node.services.bluetooth.BluetoothApi;
+import android.netinf.node.services.bluetooth.BluetoothCommon;
 import android.netinf.node.services.bluetooth.BluetoothGet;
 import android.netinf.node.services.bluetooth.BluetoothPublish;
 import android.netinf.node.services.bluetooth.BluetoothSearch;
 import android.netinf.node.services.database.Database;
+import android.netinf.node.services.http.HttpCommon;
+import android.netinf.node.services.http.HttpFanOut;
 import android.netinf.node.services.http.HttpGetService;
 import android.netinf.node.services.http.HttpPublishService;
 import android.netinf.node.services.http.HttpSearchService;
@@ -62,10 +72,9 @@ public class Node {
     private GetController mGetController;
     private SearchController mSearchController;
     private LogController mLogController;
-
-    // TODO what is a good choice?
-    private ExecutorService mRequestExecutor = Executors.newCachedThreadPool();
-//    private ExecutorService mRequestExecutor = Executors.newFixedThreadPool(5);
+    private NegativeCache mNegativeCache;
+    private ContentStore mContentStore;
+    private HotCache mHotCache;
 
     private Node() {
 
@@ -82,18 +91,24 @@ public class Node {
 
         // Load Settings
         PreferenceManager.setDefaultValues(context, R.xml.preferences, true);
+        INSTANCE.mContext = context;
 
         // Setup Node
         Node node = INSTANCE;
-        node.mContext = context;
         node.mLogController = new LogController(logServices);
-        node.mPublishController = new PublishController(localPublishServices, remotePublishServices);
-        node.mGetController = new GetController(localGetServices, remoteGetServices);
+        node.mNegativeCache = new NegativeCache(GetController.NEGATIVE_CACHE_CAPACITY);
+        node.mContentStore = new ContentStore(context, Ndo.CACHE_FOLDER);
+        node.mHotCache = new HotCache();
+        node.mPublishController = new PublishController(localPublishServices, remotePublishServices, node.mNegativeCache, node.mContentStore);
+        node.mGetController = new GetController(localGetServices, remoteGetServices, node.mNegativeCache, node.mContentStore);
         node.mSearchController = new SearchController(localSearchServices, remoteSearchServices);
 
         // Start Logging
         node.mLogController.start();
 
+        // Start bounding the cache
+        node.mContentStore.start();
+
         // Start API(s) (and only start each once)
         Set<Api> usedApis = new HashSet<Api>();
         usedApis.addAll(localPublishServices.keySet());
@@ -111,8 +126,9 @@ public class Node {
 
     public static void start(Context context) {
 
-        // Load Settings
+        // Load Settings, available to the services created below
         PreferenceManager.setDefaultValues(context, R.xml.preferences, true);
+        INSTANCE.mContext = context;
 
         // Database
         Database db                         = new Database(context);
@@ -177,6 +193,28 @@ public class Node {
         return INSTANCE.mContext;
     }
 
+    /**
+     * Returns a {@link JSONObject} with the metrics of the node.
+     * @return
+     *     {@link JSONObject} representation
+     * @throws JSONException
+     *     In case the {@link JSONObject} could not be created
+     */
+    public static JSONObject getMetrics() throws JSONException {
+        JSONObject jo = new JSONObject();
+        jo.put("executors", NodeExecutors.toJson());
+        jo.put("negative_cache", INSTANCE.mNegativeCache.toJson());
+        jo.put("content_store", INSTANCE.mContentStore.toJson());
+        jo.put("hot_cache", INSTANCE.mHotCache.toJson());
+        jo.put("buffers", BufferPool.TRANSFER.toJson());
+        jo.put("http_hedging", HttpFanOut.toJson());
+        JSONObject peers = new JSONObject();
+        peers.put(HttpCommon.SCOREBOARD.getName(), HttpCommon.SCOREBOARD.toJson());
+        peers.put(BluetoothCommon.SCOREBOARD.getName(), BluetoothCommon.SCOREBOARD.toJson());
+        jo.put("peers", peers);
+        return jo;
+    }
+
     public static void showPreferences(Activity activity) {
         Intent intent = new Intent(activity, SettingsActivity.class);
         activity.startActivity(intent);
@@ -188,6 +226,8 @@ public class Node {
         // Context.deleteDatabase() does not seem to remove the database until the app is restarted
         // http://code.google.com/p/android/issues/detail?id=13727
         new Database(INSTANCE.mContext).clearDatabase();
+        INSTANCE.mContentStore.clear();
+        INSTANCE.mHotCache.clear();
 
         File cache = new File(Environment.getExternalStorageDirectory(), "shared");
         boolean cacheDeleted = FileUtils.deleteQuietly(cache);
@@ -199,38 +239,77 @@ public class Node {
 
     }
 
-    public static Future<PublishResponse> submit(final Publish publish) {
-        Log.i(TAG, "NEW PUBLISH " + publish);
+    /**
+     * Pins the cached octets of an {@link Ndo} so that they are never evicted from the cache.
+     * @param ndo
+     *     The {@link Ndo}
+     * @return
+     *     true if the octets are cached and were pinned, otherwise false
+     */
+    public static boolean pin(Ndo ndo) {
+        return INSTANCE.mContentStore.pin(ndo);
+    }
+
+    /**
+     * Unpins the cached octets of an {@link Ndo}, allowing them to be evicted from the cache.
+     * @param ndo
+     *     The {@link Ndo}
+     */
+    public static void unpin(Ndo ndo) {
+        INSTANCE.mContentStore.unpin(ndo);
+    }
+
+    /**
+     * Gets the cached octets of an {@link Ndo} from memory, if they are requested often enough to be kept there.
+     * Use when serving the octets to others, each call counts as a request.
+     * @param ndo
+     *     The {@link Ndo}
+     * @return
+     *     The octets, null if they should be read from {@link Ndo#getOctets()}
+     */
+    public static byte[] getHotOctets(Ndo ndo) {
+        return INSTANCE.mHotCache.get(ndo);
+    }
 
-        // Wrap the Publish in a Callable
-        Callable<PublishResponse> task = new Callable<PublishResponse>() {
-            @Override
-            public PublishResponse call() {
-                return INSTANCE.mPublishController.perform(publish);
-            }
-        };
+    public static Future<PublishResponse> submit(Publish publish) {
+        Log.i(TAG, "NEW PUBLISH " + publish);
+        return INSTANCE.mPublishController.performAsync(publish);
+    }
 
-        // Submit the Callable to the Node's ExecutorService
-        return INSTANCE.mRequestExecutor.submit(task);
+    /**
+     * Submits many Publishes at once, for example all chunks of a recording.
+     * Services that support it handle them together, see {@link BatchPublishService}.
+     * @param publishes
+     *     The Publishes
+     * @return
+     *     A Future with a PublishResponse for each Publish, in the same order
+     */
+    public static Future<List<PublishResponse>> submitAll(Collection<Publish> publishes) {
+        Log.i(TAG, "NEW PUBLISH of " + publishes.size() + " NDO(s)");
+        return INSTANCE.mPublishController.performAllAsync(publishes);
     }
 
     public static Future<GetResponse> submit(final Get get) {
         return INSTANCE.mGetController.submit(get);
     }
 
-    public static Future<SearchResponse> submit(final Search search) {
+    public static Future<SearchResponse> submit(Search search) {
         Log.i(TAG, "NEW SEARCH " + search);
+        return INSTANCE.mSearchController.performAsync(search);
+    }
 
-        // Wrap the Search in a Callable
-        Callable<SearchResponse> task = new Callable<SearchResponse>() {
-            @Override
-            public SearchResponse call() {
-                return INSTANCE.mSearchController.perform(search);
-            }
-        };
-
-        // Submit the Callable to the Node's ExecutorService
-        return INSTANCE.mRequestExecutor.submit(task);
+    /**
+     * Submits a Search, passing results to a listener as they arrive.
+     * @param search
+     *     The Search
+     * @param listener
+     *     The listener
+     * @return
+     *     A Future with all results
+     */
+    public static Future<SearchResponse> submit(Search search, SearchListener listener) {
+        Log.i(TAG, "NEW SEARCH " + search);
+        return INSTANCE.mSearchController.performAsync(search, listener);
     }
 
     public static void log(LogEntry logEntry, Publish publish) {
@@ -0,0 +1,104 @@
+package android.netinf.node;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.netinf.common.BoundedExecutor;
+import android.util.Log;
+
+/**
+ * The executors used by the node.
+ * All work is run on bounded executors so that a burst of requests
+ * results in FAILED responses rather than an unbounded number of threads.
+ * The limits are read from the preferences when the node starts, changes apply after a restart.
+ */
+public class NodeExecutors {
+
+    public static final String TAG = NodeExecutors.class.getSimpleName();
+
+    /** Runs local PublishServices. */
+    public static final BoundedExecutor PUBLISH = create("Publish", "publish", 4, 64);
+    /** Handles Get requests, occupied by a Get only while checking local services. */
+    public static final BoundedExecutor GET = create("Get", "get", 16, 64);
+    /** Runs local SearchServices. */
+    public static final BoundedExecutor SEARCH = create("Search", "search", 4, 32);
+    /** Calls to remote services that block, made on behalf of a request. */
+    public static final BoundedExecutor SERVICE = create("Service", "service", 16, 64);
+    /** Sends HTTP requests to peers in parallel, one thread per pooled connection. */
+    public static final BoundedExecutor HTTP = create("Http", "http", 16, 64);
+    /** Reads Bluetooth sockets, one thread per socket. A piconet has at most 7 active peers. Never queues, a reader runs until its socket closes. */
+    public static final BoundedExecutor BLUETOOTH_SOCKET = new BoundedExecutor("BluetoothSocket",
+            getLimit("pref_key_executor_bluetooth_socket_threads", 7), 0);
+    /** Waits for and writes responses to Bluetooth requests. */
+    public static final BoundedExecutor BLUETOOTH_MESSAGE = create("BluetoothMessage", "bluetooth_message", 8, 64);
+
+    /** Maintains the content store, a single thread so index updates are applied in order. */
+    public static final BoundedExecutor CACHE = new BoundedExecutor("Cache", 1,
+            getLimit("pref_key_executor_cache_queue", 16));
+
+    /** Schedules timeouts of asynchronous requests, tasks run on it must be short. */
+    public static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "Timer");
+        }
+    });
+
+    private static final List<BoundedExecutor> ALL = Collections.unmodifiableList(Arrays.asList(
+            PUBLISH, GET, SEARCH, SERVICE, HTTP, BLUETOOTH_SOCKET, BLUETOOTH_MESSAGE, CACHE));
+
+    private NodeExecutors() { }
+
+    /**
+     * Creates an executor limited by the preferences pref_key_executor_&lt;key&gt;_threads and _queue.
+     */
+    private static BoundedExecutor create(String name, String key, int threads, int queueCapacity) {
+        return new BoundedExecutor(name,
+                getLimit("pref_key_executor_" + key + "_threads", threads),
+                getLimit("pref_key_executor_" + key + "_queue", queueCapacity));
+    }
+
+    /**
+     * Gets a limit from the preferences, which are read once when the executors are first used.
+     * Falls back to the default if the node is not started yet.
+     */
+    private static int getLimit(String key, int defaultValue) {
+        if (Node.getContext() == null) {
+            Log.w(TAG, "Node not started, using default " + key + " = " + defaultValue);
+            return defaultValue;
+        }
+        try {
+            return SettingsActivity.getPreferenceAsInt(key);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid " + key + ", using default " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    public static List<BoundedExecutor> getAll() {
+        return ALL;
+    }
+
+    /**
+     * Returns a {@link JSONObject} with the counters of all executors.
+     * @return
+     *     {@link JSONObject} representation
+     * @throws JSONException
+     *     In case the {@link JSONObject} could not be created
+     */
+    public static JSONObject toJson() throws JSONException {
+        JSONObject jo = new JSONObject();
+        for (BoundedExecutor executor : ALL) {
+            jo.put(executor.getName(), executor.toJson());
+        }
+        return jo;
+    }
+
+}
@@ -0,0 +1,114 @@
+package android.netinf.node.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+/**
+ * Persists the entries of the {@link ContentStore}, so that access times and pins survive a restart
+ * without relying on the access times of the file system, which are often not kept on external storage.
+ */
+class ContentIndex extends SQLiteOpenHelper {
+
+    public static final String TAG = ContentIndex.class.getSimpleName();
+
+    public static final String DATABASE_NAME = "ContentIndex.db3";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_OCTETS = "octets";
+    private static final String COLUMN_HASH = "hash";
+    private static final String COLUMN_SIZE = "size";
+    private static final String COLUMN_ACCESSED = "accessed";
+    private static final String COLUMN_PINNED = "pinned";
+    private static final String[] COLUMNS_OCTETS = {COLUMN_HASH, COLUMN_SIZE, COLUMN_ACCESSED, COLUMN_PINNED};
+
+    public ContentIndex(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        Log.i(TAG, "Creating content index");
+        db.execSQL("CREATE TABLE " + TABLE_OCTETS + " ("
+                + COLUMN_HASH + " TEXT PRIMARY KEY, "
+                + COLUMN_SIZE + " INTEGER NOT NULL, "
+                + COLUMN_ACCESSED + " INTEGER NOT NULL, "
+                + COLUMN_PINNED + " INTEGER NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Only one version so far
+    }
+
+    /**
+     * Loads all entries.
+     * @return
+     *     The entries, least recently accessed first
+     */
+    public List<ContentStore.Entry> load() {
+        List<ContentStore.Entry> entries = new ArrayList<ContentStore.Entry>();
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor cursor = db.query(TABLE_OCTETS, COLUMNS_OCTETS, null, null, null, null, COLUMN_ACCESSED + " ASC");
+        try {
+            while (cursor.moveToNext()) {
+                ContentStore.Entry entry = new ContentStore.Entry(cursor.getString(0), cursor.getLong(1));
+                entry.mAccessed = cursor.getLong(2);
+                entry.mPinned = cursor.getInt(3) != 0;
+                entries.add(entry);
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Stores new and changed entries and removes dropped ones in a single transaction.
+     * @param changed
+     *     The entries to store
+     * @param removed
+     *     The hashes of the entries to remove
+     */
+    public void update(Collection<ContentStore.Entry> changed, Collection<String> removed) {
+
+        if (changed.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (ContentStore.Entry entry : changed) {
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_HASH, entry.mHash);
+                values.put(COLUMN_SIZE, entry.mSize);
+                values.put(COLUMN_ACCESSED, entry.mAccessed);
+                values.put(COLUMN_PINNED, entry.mPinned ? 1 : 0);
+                db.insertWithOnConflict(TABLE_OCTETS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            for (String hash : removed) {
+                db.delete(TABLE_OCTETS, COLUMN_HASH + " = ?", new String[] {hash});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        getWritableDatabase().delete(TABLE_OCTETS, null, null);
+    }
+
+}
@@ -0,0 +1,463 @@
+package android.netinf.node.cache;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.netinf.common.Ndo;
+import android.netinf.node.NodeExecutors;
+import android.netinf.node.SettingsActivity;
+import android.util.Log;
+
+/**
+ * Bounds the octets cached in a folder, see {@link Ndo#CACHE_FOLDER} and {@link Ndo#getCacheFile(String)}.
+ * Whenever the octets of an Ndo are stored or used the store is told using {@link #access(Ndo, boolean)},
+ * and when the total size or number of cached Ndos exceeds the limits set in the preferences
+ * the least recently accessed octets are deleted. Pinned octets are never deleted.
+ * Access times and pins are kept in memory and written to a {@link ContentIndex} periodically.
+ * When started the index and the folder are reconciled, untracked files are added,
+ * entries without a file are dropped and temporary files left by interrupted transfers are deleted.
+ */
+public class ContentStore {
+
+    public static final String TAG = ContentStore.class.getSimpleName();
+
+    /** How often changed entries are written to the index in milliseconds. */
+    public static final long FLUSH_INTERVAL = 30000;
+
+    /** An entry of the store, one per cached file. */
+    static class Entry {
+
+        final String mHash;
+        long mSize;
+        long mAccessed;
+        boolean mPinned;
+
+        Entry(String hash, long size) {
+            mHash = hash;
+            mSize = size;
+        }
+
+        Entry(Entry entry) {
+            mHash = entry.mHash;
+            mSize = entry.mSize;
+            mAccessed = entry.mAccessed;
+            mPinned = entry.mPinned;
+        }
+
+    }
+
+    private final ContentIndex mIndex;
+    private final File mFolder;
+    private final long mCreated = System.currentTimeMillis();
+
+    // Hash -> Entry, least recently accessed first
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long mBytes = 0;
+    // Changes not yet written to the index
+    private final Map<String, Entry> mChanged = new HashMap<String, Entry>();
+    private final Set<String> mRemoved = new HashSet<String>();
+
+    // Set while an eviction is queued
+    private final AtomicBoolean mEvictionQueued = new AtomicBoolean(false);
+    private final AtomicLong mEvictions = new AtomicLong();
+    private final AtomicLong mEvictedBytes = new AtomicLong();
+
+    /**
+     * Creates a new {@link ContentStore}.
+     * @param context
+     *     The context used to open the index
+     * @param folder
+     *     The folder containing the octets, one file per hash in shard folders
+     */
+    public ContentStore(Context context, File folder) {
+        mIndex = new ContentIndex(context);
+        mFolder = folder;
+    }
+
+    /**
+     * Reconciles the index with the folder and starts writing changes to the index periodically.
+     * Both happen in the background.
+     */
+    public void start() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                reconcile();
+            }
+        });
+        NodeExecutors.TIMER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Also catches up if an eviction was rejected
+                        evict();
+                        flush();
+                    }
+                });
+            }
+        }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records that the octets of an Ndo were stored or used, and evicts other octets if the store is full.
+     * The entry is updated right away, only eviction runs on {@link NodeExecutors#CACHE},
+     * so the caller never waits for files to be deleted and a busy executor never loses an update.
+     * Does nothing if the octets are not cached.
+     * @param ndo
+     *     The Ndo
+     * @param pin
+     *     true to also pin the octets, see {@link #pin(Ndo)}
+     */
+    public void access(Ndo ndo, boolean pin) {
+        File octets = ndo.getOctets();
+        if (!octets.isFile()) {
+            return;
+        }
+        long size = octets.length();
+        synchronized (this) {
+            Entry entry = getOrAdd(ndo.getHash(), size);
+            mBytes += size - entry.mSize;
+            entry.mSize = size;
+            entry.mAccessed = System.currentTimeMillis();
+            // In the same step, so eviction never picks octets about to be pinned
+            entry.mPinned |= pin;
+            mChanged.put(entry.mHash, entry);
+        }
+        scheduleEviction();
+    }
+
+    /**
+     * Pins the octets of an Ndo so that they are never evicted, for example content published by this node.
+     * @param ndo
+     *     The Ndo
+     * @return
+     *     true if the octets are cached and were pinned, otherwise false
+     */
+    public boolean pin(Ndo ndo) {
+        File octets = ndo.getOctets();
+        if (!octets.isFile()) {
+            return false;
+        }
+        synchronized (this) {
+            Entry entry = getOrAdd(ndo.getHash(), octets.length());
+            entry.mPinned = true;
+            mChanged.put(entry.mHash, entry);
+        }
+        return true;
+    }
+
+    /**
+     * Unpins the octets of an Ndo, making them subject to eviction again.
+     * @param ndo
+     *     The Ndo
+     */
+    public void unpin(Ndo ndo) {
+        synchronized (this) {
+            Entry entry = mEntries.get(ndo.getHash());
+            if (entry == null || !entry.mPinned) {
+                return;
+            }
+            entry.mPinned = false;
+            mChanged.put(entry.mHash, entry);
+        }
+        scheduleEviction();
+    }
+
+    /**
+     * Forgets all entries, used when the cache folder is deleted.
+     */
+    public void clear() {
+        synchronized (this) {
+            mEntries.clear();
+            mChanged.clear();
+            mRemoved.clear();
+            mBytes = 0;
+        }
+        mIndex.clear();
+    }
+
+    /**
+     * Returns a {@link JSONObject} with the size, limits and counters of the store.
+     * @return
+     *     {@link JSONObject} representation
+     * @throws JSONException
+     *     In case the {@link JSONObject} could not be created
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject jo = new JSONObject();
+        synchronized (this) {
+            int pinned = 0;
+            for (Entry entry : mEntries.values()) {
+                if (entry.mPinned) {
+                    pinned++;
+                }
+            }
+            jo.put("entries", mEntries.size());
+            jo.put("bytes", mBytes);
+            jo.put("pinned", pinned);
+        }
+        jo.put("max_entries", getMaxEntries());
+        jo.put("max_bytes", getMaxBytes());
+        jo.put("evictions", mEvictions.get());
+        jo.put("evicted_bytes", mEvictedBytes.get());
+        return jo;
+    }
+
+    private Entry getOrAdd(String hash, long size) {
+        Entry entry = mEntries.get(hash);
+        if (entry == null) {
+            entry = new Entry(hash, size);
+            mEntries.put(hash, entry);
+            mRemoved.remove(hash);
+            mBytes += size;
+        }
+        return entry;
+    }
+
+    /**
+     * Queues an eviction on {@link NodeExecutors#CACHE} unless one is queued already,
+     * so a burst of accesses queues a single eviction.
+     */
+    private void scheduleEviction() {
+        if (!mEvictionQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            NodeExecutors.CACHE.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mEvictionQueued.set(false);
+                    evict();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The entries are up to date, the next access or flush evicts
+            mEvictionQueued.set(false);
+            Log.w(TAG, "Eviction rejected");
+        }
+    }
+
+    /**
+     * Evicts the least recently accessed unpinned octets until the store is within its limits.
+     * The entries are removed while holding the lock, the files are deleted afterwards.
+     */
+    private void evict() {
+
+        long maxBytes = getMaxBytes();
+        int maxEntries = getMaxEntries();
+
+        List<Entry> evicted = new ArrayList<Entry>();
+        synchronized (this) {
+            Iterator<Entry> iterator = mEntries.values().iterator();
+            while ((mBytes > maxBytes || mEntries.size() > maxEntries) && iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.mPinned) {
+                    continue;
+                }
+                iterator.remove();
+                mBytes -= entry.mSize;
+                mChanged.remove(entry.mHash);
+                mRemoved.add(entry.mHash);
+                evicted.add(entry);
+            }
+            if (mBytes > maxBytes || mEntries.size() > maxEntries) {
+                Log.w(TAG, "Pinned octets exceed the cache limits");
+            }
+        }
+
+        for (Entry entry : evicted) {
+            File file = Ndo.getCacheFile(entry.mHash);
+            if (file.delete() || !file.exists()) {
+                mEvictions.incrementAndGet();
+                mEvictedBytes.addAndGet(entry.mSize);
+                Log.d(TAG, "Evicted " + entry.mHash + " (" + entry.mSize + " bytes)");
+            } else {
+                Log.w(TAG, "Failed to evict " + entry.mHash);
+            }
+        }
+
+    }
+
+    /**
+     * Writes the changes since the last flush to the index.
+     */
+    private void flush() {
+        List<Entry> changed = new ArrayList<Entry>();
+        List<String> removed;
+        synchronized (this) {
+            for (Entry entry : mChanged.values()) {
+                changed.add(new Entry(entry));
+            }
+            removed = new ArrayList<String>(mRemoved);
+            mChanged.clear();
+            mRemoved.clear();
+        }
+        try {
+            mIndex.update(changed, removed);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to update content index", e);
+        }
+    }
+
+    /**
+     * Makes the entries match the files in the folder.
+     * Indexed entries without a file are dropped, files without an entry are added
+     * using their modification time as access time, and temporary files older than
+     * the store are deleted. Entries accessed since the store was created are kept as they are.
+     */
+    private void reconcile() {
+
+        // Files in the folder
+        Map<String, File> files = new HashMap<String, File>();
+        collect(mFolder, 0, files);
+
+        // Entries in the index
+        List<Entry> indexed;
+        try {
+            indexed = mIndex.load();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to load content index", e);
+            indexed = new ArrayList<Entry>();
+        }
+
+        int dropped = 0;
+        int added = 0;
+        synchronized (this) {
+
+            List<Entry> known = new ArrayList<Entry>();
+            for (Entry entry : indexed) {
+                File file = files.remove(entry.mHash);
+                if (file == null) {
+                    mRemoved.add(entry.mHash);
+                    dropped++;
+                } else if (!mEntries.containsKey(entry.mHash)) {
+                    if (entry.mSize != file.length()) {
+                        entry.mSize = file.length();
+                        mChanged.put(entry.mHash, entry);
+                    }
+                    known.add(entry);
+                }
+            }
+            for (File file : files.values()) {
+                if (!mEntries.containsKey(file.getName())) {
+                    Entry entry = new Entry(file.getName(), file.length());
+                    entry.mAccessed = file.lastModified();
+                    mChanged.put(entry.mHash, entry);
+                    known.add(entry);
+                    added++;
+                }
+            }
+            Collections.sort(known, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry lhs, Entry rhs) {
+                    return lhs.mAccessed < rhs.mAccessed ? -1 : (lhs.mAccessed == rhs.mAccessed ? 0 : 1);
+                }
+            });
+
+            // Entries accessed since the store was created are the most recent
+            List<Entry> recent = new ArrayList<Entry>(mEntries.values());
+            mEntries.clear();
+            mBytes = 0;
+            for (Entry entry : known) {
+                mEntries.put(entry.mHash, entry);
+                mBytes += entry.mSize;
+            }
+            for (Entry entry : recent) {
+                mEntries.put(entry.mHash, entry);
+                mBytes += entry.mSize;
+            }
+
+        }
+
+        Log.i(TAG, "Reconciled content store, " + added + " file(s) added, " + dropped + " missing file(s) dropped");
+        evict();
+        flush();
+
+    }
+
+    /**
+     * Collects the cached files in a folder and its shard folders, see {@link Ndo#getCacheFile(String)}.
+     * Stale temporary files are deleted and files cached before the folder was sharded are moved into place.
+     * @param folder
+     *     The folder
+     * @param depth
+     *     The depth of the folder below the cache folder
+     * @param files
+     *     Receives the cached files by hash
+     */
+    private void collect(File folder, int depth, Map<String, File> files) {
+        File[] listed = folder.listFiles();
+        if (listed == null) {
+            return;
+        }
+        for (File file : listed) {
+            if (file.isDirectory()) {
+                if (depth < 2) {
+                    collect(file, depth + 1, files);
+                }
+                continue;
+            }
+            if (isTemporary(file)) {
+                if (file.lastModified() < mCreated && file.delete()) {
+                    Log.i(TAG, "Deleted stale temporary file " + file.getName());
+                }
+                continue;
+            }
+            File cached = Ndo.getCacheFile(file.getName());
+            if (!cached.equals(file)) {
+                cached.getParentFile().mkdirs();
+                if (!file.renameTo(cached)) {
+                    Log.w(TAG, "Failed to move " + file + " to " + cached);
+                    continue;
+                }
+            }
+            files.put(cached.getName(), cached);
+        }
+    }
+
+    private boolean isTemporary(File file) {
+        String name = file.getName();
+        return name.endsWith(".part") || name.endsWith(".tmp");
+    }
+
+    /**
+     * Gets the maximum size of the cache, which also bounds the size of octets accepted from peers.
+     * @return
+     *     The maximum size in bytes
+     */
+    public static long getMaxBytes() {
+        return SettingsActivity.getPreferenceAsLong("pref_key_cache_max_bytes");
+    }
+
+    private int getMaxEntries() {
+        return SettingsActivity.getPreferenceAsInt("pref_key_cache_max_entries");
+    }
+
+    private void execute(Runnable runnable) {
+        try {
+            NodeExecutors.CACHE.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Content store maintenance rejected");
+        }
+    }
+
+}
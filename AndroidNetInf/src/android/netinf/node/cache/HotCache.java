@@ -0,0 +1,192 @@
+package android.netinf.node.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.netinf.common.Ndo;
+import android.netinf.node.SettingsActivity;
+import android.util.Log;
+
+/**
+ * Keeps the octets of popular Ndos in memory, in front of the file cache,
+ * so that octets requested by many peers within a short time are read from storage once.
+ * Octets are admitted after {@link #ADMISSION_THRESHOLD} requests,
+ * and only if they are requested more often than the octets they would evict.
+ * Request counts are halved every {@link #AGING_INTERVAL} requests so that old popularity fades.
+ * Ndos are compared by algorithm and hash only, octets never change for a given hash.
+ */
+public class HotCache {
+
+    public static final String TAG = HotCache.class.getSimpleName();
+
+    /** Number of requests before octets are read into memory. */
+    public static final int ADMISSION_THRESHOLD = 2;
+    /** Largest octets kept, as a fraction of the capacity. */
+    public static final int MAX_OBJECT_FRACTION = 8;
+    /** Number of requests after which all request counts are halved. */
+    public static final int AGING_INTERVAL = 1024;
+
+    // Key -> Octets, least recently used first
+    private final LinkedHashMap<String, byte[]> mOctets = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long mBytes = 0;
+    // Key -> Recent number of requests
+    private final Map<String, Integer> mRequests = new HashMap<String, Integer>();
+    private int mSinceAging = 0;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mAdmissions = new AtomicLong();
+
+    /**
+     * Gets the cached octets of an Ndo from memory, counting the request.
+     * If the octets are not in memory but popular enough they are read from the file cache and kept.
+     * @param ndo
+     *     The Ndo
+     * @return
+     *     The octets, null if they are not popular enough or not cached
+     */
+    public byte[] get(Ndo ndo) {
+
+        String key = toKey(ndo);
+        long capacity = getCapacity();
+
+        // Check memory and decide if the octets should be admitted
+        int requests;
+        synchronized (this) {
+            requests = count(key);
+            byte[] octets = mOctets.get(key);
+            if (octets != null) {
+                mHits.incrementAndGet();
+                return octets;
+            }
+        }
+        mMisses.incrementAndGet();
+
+        File file = ndo.getOctets();
+        if (requests < ADMISSION_THRESHOLD || !file.isFile() || file.length() > capacity / MAX_OBJECT_FRACTION) {
+            return null;
+        }
+        synchronized (this) {
+            if (!isAdmissible(requests, file.length(), capacity)) {
+                return null;
+            }
+        }
+
+        // Read outside the lock
+        byte[] octets;
+        try {
+            octets = FileUtils.readFileToByteArray(file);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + ndo.getUri(), e);
+            return null;
+        }
+
+        synchronized (this) {
+            byte[] previous = mOctets.put(key, octets);
+            if (previous != null) {
+                mBytes -= previous.length;
+            }
+            mBytes += octets.length;
+            evict(capacity);
+        }
+        mAdmissions.incrementAndGet();
+        return octets;
+
+    }
+
+    /**
+     * Forgets all octets, used when the file cache is cleared.
+     */
+    public synchronized void clear() {
+        mOctets.clear();
+        mRequests.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Returns a {@link JSONObject} with the size and counters of the cache.
+     * @return
+     *     {@link JSONObject} representation
+     * @throws JSONException
+     *     In case the {@link JSONObject} could not be created
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject jo = new JSONObject();
+        synchronized (this) {
+            jo.put("entries", mOctets.size());
+            jo.put("bytes", mBytes);
+        }
+        jo.put("capacity", getCapacity());
+        jo.put("hits", mHits.get());
+        jo.put("misses", mMisses.get());
+        jo.put("admissions", mAdmissions.get());
+        return jo;
+    }
+
+    /**
+     * Counts a request, halving all counts every {@link #AGING_INTERVAL} requests.
+     * @return
+     *     The recent number of requests including this one
+     */
+    private int count(String key) {
+        Integer previous = mRequests.get(key);
+        int requests = previous == null ? 1 : previous + 1;
+        mRequests.put(key, requests);
+        if (++mSinceAging >= AGING_INTERVAL) {
+            mSinceAging = 0;
+            Iterator<Map.Entry<String, Integer>> iterator = mRequests.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Integer> entry = iterator.next();
+                if (entry.getValue() <= 1) {
+                    iterator.remove();
+                } else {
+                    entry.setValue(entry.getValue() / 2);
+                }
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Checks if octets fit, possibly by evicting less requested octets.
+     */
+    private boolean isAdmissible(int requests, long size, long capacity) {
+        long free = capacity - mBytes;
+        Iterator<Map.Entry<String, byte[]>> iterator = mOctets.entrySet().iterator();
+        while (free < size && iterator.hasNext()) {
+            Map.Entry<String, byte[]> victim = iterator.next();
+            Integer victimRequests = mRequests.get(victim.getKey());
+            if (victimRequests != null && victimRequests > requests) {
+                return false;
+            }
+            free += victim.getValue().length;
+        }
+        return free >= size;
+    }
+
+    private void evict(long capacity) {
+        Iterator<byte[]> iterator = mOctets.values().iterator();
+        while (mBytes > capacity && iterator.hasNext()) {
+            mBytes -= iterator.next().length;
+            iterator.remove();
+        }
+    }
+
+    private String toKey(Ndo ndo) {
+        return ndo.getAlgorithm() + ";" + ndo.getHash();
+    }
+
+    private long getCapacity() {
+        return SettingsActivity.getPreferenceAsLong("pref_key_hot_cache_bytes");
+    }
+
+}
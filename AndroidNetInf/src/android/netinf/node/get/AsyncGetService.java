@@ -0,0 +1,16 @@
+package android.netinf.node.get;
+
+import android.netinf.messages.Get;
+import android.netinf.messages.GetResponse;
+
+import com.google.common.util.concurrent.AbstractFuture;
+
+/**
+ * A {@link GetService} that does not block while waiting for a response.
+ */
+public interface AsyncGetService {
+
+    public AbstractFuture<GetResponse> performAsync(Get get);
+    public AbstractFuture<GetResponse> resolveLocatorsAsync(Get get);
+
+}
@@ -0,0 +1,77 @@
+package android.netinf.node.get;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.netinf.common.FutureUtils;
+import android.netinf.messages.Get;
+import android.netinf.messages.GetResponse;
+import android.util.Log;
+
+import com.google.common.util.concurrent.AbstractFuture;
+
+/**
+ * Runs a blocking {@link GetService} on an {@link Executor}.
+ * If the {@link Executor} rejects the call, the returned Future fails with the {@link RejectedExecutionException},
+ * so a service that never ran is not mistaken for a service that did not find the Ndo.
+ */
+public class AsyncGetServiceAdapter implements AsyncGetService {
+
+    public static final String TAG = AsyncGetServiceAdapter.class.getSimpleName();
+
+    private GetService mService;
+    private Executor mExecutor;
+
+    public AsyncGetServiceAdapter(GetService service, Executor executor) {
+        mService = service;
+        mExecutor = executor;
+    }
+
+    /**
+     * Returns the {@link AsyncGetService} of a {@link GetService}.
+     * @param service
+     *     The {@link GetService}
+     * @param executor
+     *     The {@link Executor} used if the service only supports blocking calls
+     * @return
+     *     The service itself if it is asynchronous, otherwise an adapter
+     */
+    public static AsyncGetService wrap(GetService service, Executor executor) {
+        if (service instanceof AsyncGetService) {
+            return (AsyncGetService) service;
+        }
+        return new AsyncGetServiceAdapter(service, executor);
+    }
+
+    @Override
+    public AbstractFuture<GetResponse> performAsync(final Get get) {
+        try {
+            return FutureUtils.submit(mExecutor, new Callable<GetResponse>() {
+                @Override
+                public GetResponse call() {
+                    return mService.perform(get);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "GET " + get + " could not start " + mService.getClass().getSimpleName() + ", too many services in progress");
+            return FutureUtils.immediateFailedFuture(e);
+        }
+    }
+
+    @Override
+    public AbstractFuture<GetResponse> resolveLocatorsAsync(final Get get) {
+        try {
+            return FutureUtils.submit(mExecutor, new Callable<GetResponse>() {
+                @Override
+                public GetResponse call() {
+                    return mService.resolveLocators(get);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "GET " + get + " could not start " + mService.getClass().getSimpleName() + ", too many services in progress");
+            return FutureUtils.immediateFailedFuture(e);
+        }
+    }
+
+}
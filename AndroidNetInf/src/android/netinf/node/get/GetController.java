@@ -2,24 +2,33 @@ package android.netinf.node.get;
 
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+
+import android.netinf.common.FutureUtils;
 import android.netinf.common.Locator;
 import android.netinf.common.Ndo;
 import android.netinf.messages.Get;
 import android.netinf.messages.GetResponse;
 import android.netinf.messages.Publish;
 import android.netinf.node.Node;
+import android.netinf.node.NodeExecutors;
 import android.netinf.node.SettingsActivity;
 import android.netinf.node.api.Api;
+import android.netinf.node.cache.ContentStore;
 import android.netinf.node.logging.LogEntry;
 import android.util.Log;
 
 import com.google.common.collect.SetMultimap;
+import com.google.common.util.concurrent.AbstractFuture;
 import com.google.common.util.concurrent.SettableFuture;
 
 public class GetController {
@@ -28,17 +37,28 @@ public class GetController {
 
     public static final int TIMEOUT = 5000;
 
+    /** Number of forwarded Get ids remembered for loop detection. */
+    public static final int FORWARDED_CAPACITY = 1024;
+
+    /** Number of failed Ndos remembered by the negative cache. */
+    public static final int NEGATIVE_CACHE_CAPACITY = 1024;
+
     private SetMultimap<Api, GetService> mLocalServices;
     private SetMultimap<Api, GetService> mRemoteServices;
 
-    private ExecutorService mGetExecutor = Executors.newCachedThreadPool();
     private InProgressTracker<Get, GetResponse> mInProgressTracker = new InProgressTracker<Get, GetResponse>();
     private RequestAggregator mRequestAggregator = new RequestAggregator();
+    private RecentIdFilter mForwarded = new RecentIdFilter(FORWARDED_CAPACITY, TIMEOUT);
+    private NegativeCache mNegativeCache;
+    private ContentStore mContentStore;
 
 
-    public GetController(SetMultimap<Api, GetService> local, SetMultimap<Api, GetService> remote) {
+    public GetController(SetMultimap<Api, GetService> local, SetMultimap<Api, GetService> remote,
+            NegativeCache negativeCache, ContentStore contentStore) {
         mLocalServices = local;
         mRemoteServices = remote;
+        mNegativeCache = negativeCache;
+        mContentStore = contentStore;
     }
 
     public Future<GetResponse> submit(final Get get) {
@@ -46,25 +66,43 @@ public class GetController {
         Log.i(TAG, "NEW GET " + get);
         Node.log(LogEntry.newIncoming("UNKNOWN"), get);
 
-        SettableFuture<GetResponse> future = mInProgressTracker.newFutureOrNull(get);
+        // A remote Get with the id of a Get this node recently forwarded is looping
+        if (!get.isLocal() && mForwarded.contains(get.getId())) {
+            Log.d(TAG, "GET " + get + " is looping");
+            SettableFuture<GetResponse> future = SettableFuture.create();
+            future.set(new GetResponse.Builder(get).failed().build());
+            return future;
+        }
+
+        // The Ndo recently could not be found by any service
+        if (mNegativeCache.contains(get.getNdo())) {
+            Log.d(TAG, "GET " + get + " recently failed");
+            return FutureUtils.immediateFuture(new GetResponse.Builder(get).failed().build());
+        }
 
-        if (future == null) {
+        SettableFuture<GetResponse> created = SettableFuture.create();
+        SettableFuture<GetResponse> future = mInProgressTracker.startOrJoin(get, created);
 
-            // Request is in progress
-            Log.d(TAG, "GET " + get + " is already in progress");
-            future = SettableFuture.create();
-            future.set(new GetResponse.Builder(get).failed().build());
+        if (future != created) {
+
+            // Request is in progress, wait for the same result
+            Log.d(TAG, "GET " + get + " joined the request in progress");
 
         } else if (!mRequestAggregator.aggregate(get)) {
 
             // Request was not aggregates
             Log.d(TAG, "GET " + get + " was NOT aggregated");
-            mGetExecutor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    handle(get);
-                }
-            });
+            try {
+                NodeExecutors.GET.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(get);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "GET " + get + " rejected, too many Gets in progress");
+                respond(get, new GetResponse.Builder(get).failed().build());
+            }
 
         } else {
             Log.d(TAG, "GET " + get + " was aggregated");
@@ -74,23 +112,39 @@ public class GetController {
 
     }
 
-    private void handle(Get get) {
+    private void handle(final Get get) {
+
+        final AbstractFuture<GetResponse> future = perform(get);
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+
+                GetResponse getResponse = FutureUtils.getOrElse(future, new GetResponse.Builder(get).failed().build());
+
+                // Cached octets were stored or used
+                if (getResponse.getStatus().isSuccess()) {
+                    mContentStore.access(getResponse.getNdo(), false);
+                }
+
+                // Publish
+                publish(getResponse);
 
-        GetResponse getResponse = perform(get);
+                // Respond
+                respond(get, getResponse);
 
-        // Publish
-        publish(getResponse);
+            }
+        }, FutureUtils.sameThreadExecutor());
 
-        // Get aggregated requests
-        Set<Get> gets = mRequestAggregator.deaggregate(get);
+    }
 
-        // Add non-aggregated request
-        gets.add(get);
+    private void respond(Get get, GetResponse getResponse) {
 
-        // Stop all the Gets and set their futures
-        Map<Get, SettableFuture<GetResponse>> futures = mInProgressTracker.stopFutures(gets);
-        for (Get aggregated : futures.keySet()) {
-            SettableFuture<GetResponse> future = futures.get(aggregated);
+        // Stop all the Gets waiting for the Ndo (including this one) and set their futures
+        for (Get aggregated : mRequestAggregator.deaggregate(get)) {
+            SettableFuture<GetResponse> future = mInProgressTracker.stopFuture(aggregated);
+            if (future == null) {
+                continue;
+            }
             GetResponse aggregatedGetResponse = new GetResponse.Builder(getResponse).id(aggregated.getId()).build();
             Log.i(TAG, "GET " + get + "\n-> " + aggregatedGetResponse);
             Node.log(LogEntry.newOutgoing("UNKNOWN"), getResponse);
@@ -99,7 +153,7 @@ public class GetController {
 
     }
 
-    private GetResponse perform(Get get) {
+    private AbstractFuture<GetResponse> perform(Get get) {
 
         // Reduce hop limit (unless this was a local request)
         if (!get.isLocal()) {
@@ -110,8 +164,7 @@ public class GetController {
         Collection<GetService> local = mLocalServices.get(get.getSource());
         Collection<GetService> remote = mRemoteServices.get(get.getSource());
 
-        // Keep track of resolved locators
-        Set<Locator> resolved = new HashSet<Locator>();
+        // Locators to resolve
         Set<Locator> next = new HashSet<Locator>();
 
         // Assume Get will fail
@@ -123,7 +176,7 @@ public class GetController {
             if (getResponse.getStatus().isSuccess()) {
                 if (getResponse.getNdo().isCached()) {
                     // We got the data, done!
-                    return getResponse;
+                    return FutureUtils.immediateFuture(getResponse);
                 } else {
                     // We might have gotten locators
                     next.addAll(getResponse.getNdo().getLocators());
@@ -135,75 +188,265 @@ public class GetController {
 
         // Check all remote services and resolve locators as necessary
         if (get.getHopLimit() > 0) {
-            for (GetService getService : remote) {
+            // Remember the id so the Get is not handled again if it loops back
+            mForwarded.add(get.getId());
+            // Resolve each locator at most once within the budget of the Get
+            LocatorResolver resolver = new LocatorResolver(get, remote, SettingsActivity.getPreferenceAsLong("pref_key_get_resolve_budget"));
+            AbstractFuture<GetResponse> future;
+            if (SettingsActivity.getPreferenceAsBoolean("pref_key_get_racing")) {
+                future = race(get, remote, resolver, next);
+            } else {
+                future = sequential(get, remote, resolver, next);
+            }
+            rememberFailure(get, future);
+            return future;
+        }
 
-                // If this was a local request, first try to resolve all locators
-                if (get.isLocal()) {
-                    getResponse = resolveLocators(get, resolved, next);
-                    if (getResponse.getStatus().isSuccess() && getResponse.getNdo().isCached()) {
-                        return getResponse;
-                    }
+        return FutureUtils.immediateFuture(getResponse);
+
+    }
+
+    /**
+     * Adds the Ndo to the negative cache if a Get that was tried by all services fails.
+     * A Get that failed because a service was rejected fails with an exception instead and is not remembered.
+     * @param get
+     *     The Get
+     * @param future
+     *     The Future result of the Get
+     */
+    private void rememberFailure(final Get get, final AbstractFuture<GetResponse> future) {
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                GetResponse getResponse = FutureUtils.getOrElse(future, null);
+                if (getResponse != null && getResponse.getStatus().isError()) {
+                    mNegativeCache.add(get.getNdo(), SettingsActivity.getPreferenceAsLong("pref_key_get_negative_ttl"));
                 }
+            }
+        }, FutureUtils.sameThreadExecutor());
+    }
 
-                // Then try the default routing of the service
-                getResponse = getService.perform(get);
+    private AbstractFuture<GetResponse> sequential(Get get, Collection<GetService> remote, LocatorResolver resolver, Set<Locator> next) {
 
-                if (getResponse.getStatus().isSuccess()) {
-                    if (getResponse.getNdo().isCached()) {
-                        // We got the data, done!
-                        return getResponse;
-                    } else if (get.isLocal()) {
-                        // We might have gotten locators
-                        next.addAll(getResponse.getNdo().getLocators());
-                        getResponse = resolveLocators(get, resolved, next);
-                        if (getResponse.getStatus().isSuccess() && getResponse.getNdo().isCached()) {
-                            return getResponse;
-                        }
+        // Assume Get will fail
+        GetResponse failed = new GetResponse.Builder(get).failed().build();
+        GetResponse getResponse = failed;
+        boolean rejected = false;
+
+        for (GetService getService : remote) {
+
+            // If this was a local request, first try to resolve all locators
+            if (get.isLocal()) {
+                AbstractFuture<GetResponse> resolving = resolver.resolve(next);
+                getResponse = FutureUtils.getOrElse(resolving, failed);
+                rejected |= FutureUtils.isRejected(resolving);
+                if (getResponse.getStatus().isSuccess() && getResponse.getNdo().isCached()) {
+                    return FutureUtils.immediateFuture(getResponse);
+                }
+            }
+
+            // Then try the default routing of the service
+            getResponse = getService.perform(get);
+
+            if (getResponse.getStatus().isSuccess()) {
+                if (getResponse.getNdo().isCached()) {
+                    // We got the data, done!
+                    return FutureUtils.immediateFuture(getResponse);
+                } else if (get.isLocal()) {
+                    // We might have gotten locators
+                    next.addAll(getResponse.getNdo().getLocators());
+                    AbstractFuture<GetResponse> resolving = resolver.resolve(next);
+                    getResponse = FutureUtils.getOrElse(resolving, failed);
+                    rejected |= FutureUtils.isRejected(resolving);
+                    if (getResponse.getStatus().isSuccess() && getResponse.getNdo().isCached()) {
+                        return FutureUtils.immediateFuture(getResponse);
                     }
                 }
             }
         }
 
-        return getResponse;
+        SettableFuture<GetResponse> result = SettableFuture.create();
+        complete(get, result, getResponse, rejected);
+        return result;
 
     }
 
-    private GetResponse resolveLocators(Get get, Set<Locator> resolved, Set<Locator> next) {
+    /**
+     * Performs a Get using all remote services at the same time.
+     * If this was a local request the known locators are resolved first,
+     * and the locators returned by the services are resolved afterwards.
+     * No thread is occupied while waiting for the services.
+     * @param get
+     *     The Get to perform
+     * @param remote
+     *     The remote services to race
+     * @param resolver
+     *     The {@link LocatorResolver} of the Get
+     * @param next
+     *     Locators not yet resolved
+     * @return
+     *     A Future with the winning GetResponse, otherwise the last response received
+     */
+    AbstractFuture<GetResponse> race(final Get get, final Collection<GetService> remote,
+            final LocatorResolver resolver, final Set<Locator> next) {
 
-        // Assume Get will fail
-        GetResponse getResponse = new GetResponse.Builder(get).failed().build();
-
-        // Don't resolve twice
-        next.removeAll(resolved);
+        if (!get.isLocal()) {
+            return startRace(get, remote, resolver, next);
+        }
 
-        while (!next.isEmpty()) {
+        // If this was a local request, first try to resolve all locators
+        final AbstractFuture<GetResponse> resolving = resolver.resolve(next);
+        final SettableFuture<GetResponse> result = SettableFuture.create();
+        resolving.addListener(new Runnable() {
+            @Override
+            public void run() {
+                GetResponse getResponse = FutureUtils.getOrElse(resolving, null);
+                if (getResponse != null && getResponse.getStatus().isSuccess() && getResponse.getNdo().isCached()) {
+                    result.set(getResponse);
+                    return;
+                }
+                // Rejected locators are not resolved again by the race
+                final boolean rejected = FutureUtils.isRejected(resolving);
+                final AbstractFuture<GetResponse> racing = startRace(get, remote, resolver, next);
+                racing.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        GetResponse racingResponse = FutureUtils.getOrElse(racing, new GetResponse.Builder(get).failed().build());
+                        complete(get, result, racingResponse, rejected || FutureUtils.isRejected(racing));
+                    }
+                }, FutureUtils.sameThreadExecutor());
+            }
+        }, FutureUtils.sameThreadExecutor());
+        return result;
 
-            // Create Ndo with all known unresolved Locators
-            Ndo nextNdo = new Ndo.Builder(get.getNdo()).setLocators(next).build();
-            Get nextGet = new Get.Builder(get).ndo(nextNdo).build();
+    }
 
-            // Remember resolved Locators and removed resolved locators
-            resolved.addAll(next);
-            next.clear();
+    /**
+     * Starts all remote services at the same time.
+     * The first service to return the octets wins and the others are cancelled.
+     * @param get
+     *     The Get to perform
+     * @param remote
+     *     The remote services to race
+     * @param resolver
+     *     The {@link LocatorResolver} of the Get
+     * @param next
+     *     Locators not yet resolved
+     * @return
+     *     A Future with the winning GetResponse, otherwise the last response received,
+     *     fails with a {@link RejectedExecutionException} instead if nothing was found and a service was rejected
+     */
+    private AbstractFuture<GetResponse> startRace(final Get get, Collection<GetService> remote,
+            final LocatorResolver resolver, final Set<Locator> next) {
+
+        // Start all services at the same time
+        final List<AbstractFuture<GetResponse>> racing = new LinkedList<AbstractFuture<GetResponse>>();
+        for (GetService getService : remote) {
+            racing.add(AsyncGetServiceAdapter.wrap(getService, NodeExecutors.SERVICE).performAsync(get));
+        }
 
-            // Resolve the Locators
-            for (GetService getService : mRemoteServices.get(get.getSource())) {
-                getResponse = getService.resolveLocators(nextGet);
-                if (getResponse.getStatus().isSuccess()) {
-                    if (getResponse.getNdo().isCached()) {
-                        // We got the data, done!
-                        return getResponse;
-                    } else {
-                        // We might have gotten locators
-                        next.addAll(getResponse.getNdo().getLocators());
+        // The first response with the octets wins, null if there is no winner
+        final SettableFuture<GetResponse> winner = SettableFuture.create();
+        final Queue<GetResponse> partial = new ConcurrentLinkedQueue<GetResponse>();
+        final AtomicInteger pending = new AtomicInteger(racing.size());
+        final AtomicBoolean rejected = new AtomicBoolean(false);
+        if (racing.isEmpty()) {
+            winner.set(null);
+        }
+        for (final AbstractFuture<GetResponse> future : racing) {
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    GetResponse response = FutureUtils.getOrElse(future, null);
+                    if (FutureUtils.isRejected(future)) {
+                        rejected.set(true);
+                    } else if (response != null && response.getStatus().isSuccess()) {
+                        if (response.getNdo().isCached()) {
+                            // We got the data, done!
+                            winner.set(response);
+                        } else {
+                            // We might have gotten locators
+                            partial.add(response);
+                        }
+                    }
+                    if (pending.decrementAndGet() == 0) {
+                        winner.set(null);
                     }
                 }
+            }, FutureUtils.sameThreadExecutor());
+        }
+
+        final SettableFuture<GetResponse> result = SettableFuture.create();
+        winner.addListener(new Runnable() {
+            @Override
+            public void run() {
+
+                // Cancel the losers
+                for (AbstractFuture<GetResponse> future : racing) {
+                    future.cancel(true);
+                }
+
+                GetResponse winnerResponse = FutureUtils.getOrElse(winner, null);
+                if (winnerResponse != null) {
+                    Log.d(TAG, "GET " + get + " race won");
+                    result.set(winnerResponse);
+                    return;
+                }
+
+                // Nobody got the octets, cancelled services only ever left temporary files behind
+                // Assume Get will fail
+                GetResponse getResponse = new GetResponse.Builder(get).failed().build();
+                for (GetResponse response : partial) {
+                    next.addAll(response.getNdo().getLocators());
+                    getResponse = response;
+                }
+
+                if (!get.isLocal()) {
+                    complete(get, result, getResponse, rejected.get());
+                    return;
+                }
+
+                // Resolve any locators the services returned
+                final GetResponse partialResponse = getResponse;
+                final AbstractFuture<GetResponse> resolving = resolver.resolve(next);
+                resolving.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        GetResponse resolvedResponse = FutureUtils.getOrElse(resolving, partialResponse);
+                        if (resolvedResponse.getStatus().isSuccess()) {
+                            result.set(resolvedResponse);
+                        } else {
+                            complete(get, result, partialResponse, rejected.get() || FutureUtils.isRejected(resolving));
+                        }
+                    }
+                }, FutureUtils.sameThreadExecutor());
+
             }
+        }, FutureUtils.sameThreadExecutor());
 
-        }
+        return result;
 
-        return getResponse;
+    }
 
+    /**
+     * Completes the Future of a Get.
+     * A failed Get that was not tried by all services because one was rejected
+     * fails with a {@link RejectedExecutionException}, so it is not mistaken for an Ndo that was not found.
+     * @param get
+     *     The Get
+     * @param result
+     *     The Future to complete
+     * @param getResponse
+     *     The response of the Get
+     * @param rejected
+     *     If a service was rejected while performing the Get
+     */
+    private static void complete(Get get, SettableFuture<GetResponse> result, GetResponse getResponse, boolean rejected) {
+        if (rejected && getResponse.getStatus().isError()) {
+            result.setException(new RejectedExecutionException("GET " + get + " was not tried by all services"));
+        } else {
+            result.set(getResponse);
+        }
     }
 
     private void publish(GetResponse getResponse) {
@@ -1,8 +1,7 @@
 package android.netinf.node.get;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import android.netinf.messages.Request;
 import android.netinf.messages.Response;
@@ -11,59 +10,62 @@ import com.google.common.util.concurrent.SettableFuture;
 
 public class InProgressTracker<K extends Request, V extends Response> {
 
-    Map<String, SettableFuture<V>> mInProgress = new HashMap<String, SettableFuture<V>>();
+    // ConcurrentHashMap is lock striped, requests with different ids rarely contend
+    private ConcurrentMap<String, SettableFuture<V>> mInProgress = new ConcurrentHashMap<String, SettableFuture<V>>();
 
     /**
-     * Tries to start a request.
-     * @param get
-     *     The Get to start
+     * Starts a request or joins the request in progress with the same id.
+     * @param request
+     *     The request to start
      * @return
-     *     A Future representing the result of the request if the request has a new id,
-     *     otherwise null
+     *     A Future representing the result of the request
      */
-    public synchronized SettableFuture<V> newFutureOrNull(K request) {
-
-        if (mInProgress.containsKey(request.getId())) {
-            return null;
-        } else {
-            SettableFuture<V> future = SettableFuture.create();
-            mInProgress.put(request.getId(), future);
-            return future;
-        }
-
+    public SettableFuture<V> newFutureOrInProgress(K request) {
+        return startOrJoin(request, SettableFuture.<V>create());
     }
 
-    public synchronized SettableFuture<V> newFutureOrInProgress(K request) {
+    /**
+     * Starts a request using a given Future, unless a request with the same id is in progress.
+     * @param request
+     *     The request to start
+     * @param future
+     *     The Future to use if the request is started
+     * @return
+     *     The given Future if the request was started,
+     *     otherwise the Future of the request in progress
+     */
+    public SettableFuture<V> startOrJoin(K request, SettableFuture<V> future) {
 
-        if (mInProgress.containsKey(request.getId())) {
-            return mInProgress.get(request.getId());
-        } else {
-            SettableFuture<V> future = SettableFuture.create();
-            mInProgress.put(request.getId(), future);
-            return future;
+        SettableFuture<V> inProgress = mInProgress.putIfAbsent(request.getId(), future);
+        if (inProgress != null) {
+            return inProgress;
         }
+        return future;
 
     }
 
     /**
-     * Tries to stop a number of Gets and return their Futures.
-     * @param gets
-     *     The Gets to stop
+     * Tries to stop a request and return its Future.
+     * @param request
+     *     The request to stop
      * @return
-     *     A map with the subset of Gets that were actually stopped as keys
-     *     and their corresponding Futures as values. Could be empty.
+     *     The Future of the request if it is in progress, otherwise null
      */
-    public synchronized Map<K, SettableFuture<V>> stopFutures(Set<K> requests) {
-
-        Map<K, SettableFuture<V>> futures = new HashMap<K, SettableFuture<V>>();
-        for (K request : requests) {
-            SettableFuture<V> future = mInProgress.remove(request.getId());
-            if (future != null) {
-                futures.put(request, future);
-            }
-        }
+    public SettableFuture<V> stopFuture(K request) {
+        return mInProgress.remove(request.getId());
+    }
 
-        return futures;
+    /**
+     * Stops a request if it is still tracked with the given Future.
+     * @param request
+     *     The request to stop
+     * @param future
+     *     The Future the request was started with
+     * @return
+     *     True if the request was stopped, false if it was already stopped
+     */
+    public boolean stopFuture(K request, SettableFuture<V> future) {
+        return mInProgress.remove(request.getId(), future);
     }
 
     /**
@@ -73,7 +75,7 @@ public class InProgressTracker<K extends Request, V extends Response> {
      * @return
      *     The Future of the waiting Get if it exists, otherwise null
      */
-    public synchronized SettableFuture<V> stopFuture(V response) {
+    public SettableFuture<V> stopFuture(V response) {
         return mInProgress.remove(response.getId());
     }
 
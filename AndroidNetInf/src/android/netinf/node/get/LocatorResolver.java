@@ -0,0 +1,298 @@
+package android.netinf.node.get;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.netinf.common.FutureUtils;
+import android.netinf.common.Locator;
+import android.netinf.common.Ndo;
+import android.netinf.common.NetInfUtils;
+import android.netinf.messages.Get;
+import android.netinf.messages.GetResponse;
+import android.netinf.node.NodeExecutors;
+import android.util.Log;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Resolves the locators of a Get within a total time budget.
+ * Each locator is resolved at most once, no matter how many times it is returned.
+ * Locators are resolved in parallel, the ones expected to be fastest first,
+ * and locators returned while resolving are scheduled as soon as they arrive.
+ */
+public class LocatorResolver {
+
+    public static final String TAG = LocatorResolver.class.getSimpleName();
+
+    /** Maximum number of locators resolved at the same time for one Get. */
+    public static final int PARALLELISM = 4;
+
+    /** Orders locators by expected resolution time, HTTP before others before Bluetooth. */
+    public static final Comparator<Locator> EXPECTED_FASTEST_FIRST = new Comparator<Locator>() {
+        @Override
+        public int compare(Locator lhs, Locator rhs) {
+            return rank(lhs) - rank(rhs);
+        }
+        private int rank(Locator locator) {
+            if (locator.isHttp()) {
+                return 0;
+            } else if (locator.isBluetooth()) {
+                return 2;
+            }
+            return 1;
+        }
+    };
+
+    private final Get mGet;
+    private final List<AsyncGetService> mServices = new ArrayList<AsyncGetService>();
+    private final long mDeadline;
+    private final Set<Locator> mResolved = Collections.newSetFromMap(new ConcurrentHashMap<Locator, Boolean>());
+
+    /**
+     * Creates a new {@link LocatorResolver}.
+     * @param get
+     *     The Get whose locators to resolve
+     * @param services
+     *     The services used to resolve locators
+     * @param budget
+     *     The total time in milliseconds to spend resolving, starting now
+     */
+    public LocatorResolver(Get get, Collection<GetService> services, long budget) {
+        mGet = get;
+        for (GetService service : services) {
+            mServices.add(AsyncGetServiceAdapter.wrap(service, NodeExecutors.SERVICE));
+        }
+        mDeadline = System.currentTimeMillis() + budget;
+    }
+
+    /**
+     * Resolves the given locators that have not yet been resolved,
+     * and any new locators the resolution returns, until the Ndo is cached,
+     * there is nothing left to resolve or the budget is exhausted.
+     * @param locators
+     *     The locators
+     * @return
+     *     A Future with the response that cached the Ndo,
+     *     otherwise the last successful response or a failed response,
+     *     fails with a {@link RejectedExecutionException} instead if nothing was found and a service was rejected
+     */
+    public AbstractFuture<GetResponse> resolve(Collection<Locator> locators) {
+        Round round = new Round();
+        round.add(locators);
+        round.start();
+        return round.mResult;
+    }
+
+    /**
+     * Returns the time left of the budget.
+     * @return
+     *     Milliseconds left, 0 if the budget is exhausted
+     */
+    public long getRemaining() {
+        return Math.max(0, mDeadline - System.currentTimeMillis());
+    }
+
+    private class Round {
+
+        private final SettableFuture<GetResponse> mResult = SettableFuture.create();
+
+        // Guarded by this
+        private final PriorityQueue<Locator> mPending = new PriorityQueue<Locator>(11, EXPECTED_FASTEST_FIRST);
+        private final List<AbstractFuture<GetResponse>> mInFlight = new LinkedList<AbstractFuture<GetResponse>>();
+        private int mRunning = 0;
+        private boolean mFinished = false;
+        private GetResponse mLast = new GetResponse.Builder(mGet).failed().build();
+        private boolean mRejected = false;
+
+        private volatile ScheduledFuture<?> mTimeout;
+
+        private synchronized void add(Collection<Locator> locators) {
+            for (Locator locator : locators) {
+                if (!mResolved.contains(locator) && !mPending.contains(locator)) {
+                    mPending.add(locator);
+                }
+            }
+        }
+
+        private void start() {
+
+            long remaining = getRemaining();
+            if (remaining == 0) {
+                Log.d(TAG, "GET " + mGet + " has no time left to resolve locators");
+                finish(null);
+                return;
+            }
+
+            // Give up when the budget is exhausted
+            mTimeout = NodeExecutors.TIMER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Log.d(TAG, "GET " + mGet + " ran out of time resolving locators");
+                    finish(null);
+                }
+            }, remaining, TimeUnit.MILLISECONDS);
+
+            schedule();
+
+        }
+
+        /**
+         * Starts pending locators while fewer than {@link LocatorResolver#PARALLELISM} are running,
+         * finishes when nothing is running or pending.
+         */
+        private void schedule() {
+
+            List<Locator> start = new LinkedList<Locator>();
+            synchronized (this) {
+                if (mFinished) {
+                    return;
+                }
+                while (mRunning < PARALLELISM && !mPending.isEmpty()) {
+                    // A locator counts as resolved once it is tried, not when it is queued
+                    Locator locator = mPending.poll();
+                    if (mResolved.add(locator)) {
+                        start.add(locator);
+                        mRunning++;
+                    }
+                }
+                if (mRunning == 0) {
+                    start = null;
+                }
+            }
+
+            if (start == null) {
+                finish(null);
+                return;
+            }
+
+            for (Locator locator : start) {
+                resolve(locator);
+            }
+
+        }
+
+        private void resolve(Locator locator) {
+
+            Log.d(TAG, "GET " + mGet + " resolving " + locator);
+
+            // Create Get with only the locator to resolve, with its own id so responses to parallel resolutions are not mixed up
+            Ndo ndo = new Ndo.Builder(mGet.getNdo()).setLocators(Collections.singleton(locator)).build();
+            Get get = new Get.Builder(mGet).id(NetInfUtils.newId()).ndo(ndo).build();
+
+            // Resolve the locator using all services
+            List<AbstractFuture<GetResponse>> futures = new LinkedList<AbstractFuture<GetResponse>>();
+            for (AsyncGetService service : mServices) {
+                final AbstractFuture<GetResponse> future = service.resolveLocatorsAsync(get);
+                boolean finished;
+                synchronized (this) {
+                    finished = mFinished;
+                    if (!finished) {
+                        mInFlight.add(future);
+                    }
+                }
+                if (finished) {
+                    future.cancel(true);
+                }
+                future.addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        onResponse(future);
+                    }
+                }, FutureUtils.sameThreadExecutor());
+                futures.add(future);
+            }
+
+            // When done, start the next pending locator
+            FutureUtils.whenAll(futures).addListener(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (Round.this) {
+                        mRunning--;
+                    }
+                    schedule();
+                }
+            }, FutureUtils.sameThreadExecutor());
+
+        }
+
+        private void onResponse(AbstractFuture<GetResponse> future) {
+
+            synchronized (this) {
+                mInFlight.remove(future);
+            }
+
+            if (FutureUtils.isRejected(future)) {
+                // Not every service got to resolve the locator
+                synchronized (this) {
+                    mRejected = true;
+                }
+                return;
+            }
+
+            GetResponse getResponse = FutureUtils.getOrElse(future, null);
+            if (getResponse == null || getResponse.getStatus().isError()) {
+                return;
+            }
+
+            if (getResponse.getNdo().isCached()) {
+                // We got the data, done!
+                finish(getResponse);
+            } else {
+                // We might have gotten locators
+                synchronized (this) {
+                    mLast = getResponse;
+                }
+                add(getResponse.getNdo().getLocators());
+                schedule();
+            }
+
+        }
+
+        private void finish(GetResponse winner) {
+
+            GetResponse getResponse;
+            boolean rejected;
+            List<AbstractFuture<GetResponse>> inFlight;
+            synchronized (this) {
+                if (mFinished) {
+                    return;
+                }
+                mFinished = true;
+                getResponse = (winner != null) ? winner : mLast;
+                rejected = mRejected && getResponse.getStatus().isError();
+                inFlight = new ArrayList<AbstractFuture<GetResponse>>(mInFlight);
+                mInFlight.clear();
+            }
+
+            ScheduledFuture<?> timeout = mTimeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+
+            // Stop resolutions that are no longer needed
+            for (AbstractFuture<GetResponse> future : inFlight) {
+                future.cancel(true);
+            }
+
+            if (rejected) {
+                mResult.setException(new RejectedExecutionException("GET " + mGet + " could not resolve all locators"));
+            } else {
+                mResult.set(getResponse);
+            }
+
+        }
+
+    }
+
+}
@@ -0,0 +1,128 @@
+package android.netinf.node.get;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.netinf.common.Ndo;
+
+/**
+ * Remembers Ndos that recently could not be found by any service,
+ * so that repeated Gets for them fail without asking every service again.
+ * Ndos are forgotten when their time to live has passed,
+ * when more than the capacity number of newer Ndos have been added
+ * or when they are invalidated by a Publish.
+ * Ndos are compared by algorithm and hash only.
+ */
+public class NegativeCache {
+
+    public static final String TAG = NegativeCache.class.getSimpleName();
+
+    private final int mCapacity;
+
+    // Ndo -> Time when the failure expires
+    private final ConcurrentMap<Ndo, Long> mFailed = new ConcurrentHashMap<Ndo, Long>();
+    // Ndos in the order they were first added, used to enforce the capacity
+    private final Queue<Ndo> mOrder = new ConcurrentLinkedQueue<Ndo>();
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Creates a new {@link NegativeCache}.
+     * @param capacity
+     *     The maximum number of Ndos to remember
+     */
+    public NegativeCache(int capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * Remembers that an Ndo could not be found.
+     * @param ndo
+     *     The Ndo
+     * @param timeToLive
+     *     How long to remember the failure in milliseconds, 0 to not remember it
+     */
+    public void add(Ndo ndo, long timeToLive) {
+
+        if (timeToLive <= 0) {
+            return;
+        }
+
+        Long previous = mFailed.put(ndo, System.currentTimeMillis() + timeToLive);
+        if (previous == null) {
+            mOrder.add(ndo);
+            while (mFailed.size() > mCapacity) {
+                Ndo eldest = mOrder.poll();
+                if (eldest == null) {
+                    break;
+                }
+                mFailed.remove(eldest);
+            }
+        }
+
+    }
+
+    /**
+     * Checks if an Ndo recently could not be found, counting hits and misses.
+     * @param ndo
+     *     The Ndo
+     * @return
+     *     true if the Ndo was added and has neither expired nor been invalidated, otherwise false
+     */
+    public boolean contains(Ndo ndo) {
+        Long expires = mFailed.get(ndo);
+        if (expires != null && expires > System.currentTimeMillis()) {
+            mHits.incrementAndGet();
+            return true;
+        }
+        if (expires != null && mFailed.remove(ndo, expires)) {
+            // Expired, clean up unless it was added again meanwhile
+            mOrder.remove(ndo);
+        }
+        mMisses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Forgets an Ndo, for example because it was just published.
+     * @param ndo
+     *     The Ndo
+     */
+    public void invalidate(Ndo ndo) {
+        if (mFailed.remove(ndo) != null) {
+            mOrder.remove(ndo);
+        }
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * Returns a {@link JSONObject} representation of the counters.
+     * @return
+     *     {@link JSONObject} representation
+     * @throws JSONException
+     *     In case the {@link JSONObject} could not be created
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject jo = new JSONObject();
+        jo.put("size", mFailed.size());
+        jo.put("capacity", mCapacity);
+        jo.put("hits", getHitCount());
+        jo.put("misses", getMissCount());
+        return jo;
+    }
+
+}
@@ -0,0 +1,70 @@
+package android.netinf.node.get;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers a bounded number of recently seen request ids.
+ * Ids are forgotten when they are older than the time to live
+ * or when more than the capacity number of newer ids have been added.
+ */
+public class RecentIdFilter {
+
+    public static final String TAG = RecentIdFilter.class.getSimpleName();
+
+    private final int mCapacity;
+    private final long mTimeToLive;
+
+    // Id -> Time when the id expires
+    private final ConcurrentMap<String, Long> mSeen = new ConcurrentHashMap<String, Long>();
+    // Ids in the order they were first added, used to enforce the capacity
+    private final Queue<String> mOrder = new ConcurrentLinkedQueue<String>();
+
+    /**
+     * Creates a new {@link RecentIdFilter}.
+     * @param capacity
+     *     The maximum number of ids to remember
+     * @param timeToLive
+     *     How long to remember each id in milliseconds
+     */
+    public RecentIdFilter(int capacity, long timeToLive) {
+        mCapacity = capacity;
+        mTimeToLive = timeToLive;
+    }
+
+    /**
+     * Remembers an id, or extends the time to live of an id that is already remembered.
+     * @param id
+     *     The id
+     */
+    public void add(String id) {
+
+        Long previous = mSeen.put(id, System.currentTimeMillis() + mTimeToLive);
+        if (previous == null) {
+            mOrder.add(id);
+            while (mSeen.size() > mCapacity) {
+                String eldest = mOrder.poll();
+                if (eldest == null) {
+                    break;
+                }
+                mSeen.remove(eldest);
+            }
+        }
+
+    }
+
+    /**
+     * Checks if an id has been seen recently.
+     * @param id
+     *     The id
+     * @return
+     *     true if the id was added and has not yet expired, otherwise false
+     */
+    public boolean contains(String id) {
+        Long expires = mSeen.get(id);
+        return expires != null && expires > System.currentTimeMillis();
+    }
+
+}
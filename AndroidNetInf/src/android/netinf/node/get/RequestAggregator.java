@@ -1,16 +1,17 @@
 package android.netinf.node.get;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.netinf.common.Ndo;
 import android.netinf.messages.Get;
 
-import com.google.common.collect.HashMultimap;
-
 public class RequestAggregator {
 
-    private HashMultimap<Ndo, Get> mPending = HashMultimap.create();
+    private ConcurrentMap<Ndo, Aggregate> mPending = new ConcurrentHashMap<Ndo, Aggregate>();
 
     /**
      * Aggregates a Get if possible.
@@ -19,11 +20,20 @@ public class RequestAggregator {
      * @return
      *     true if the request was aggregated, otherwise false
      */
-    public synchronized boolean aggregate(Get get) {
+    public boolean aggregate(Get get) {
 
-        boolean aggregated = mPending.containsKey(get.getNdo());
-        mPending.put(get.getNdo(), get);
-        return aggregated;
+        Aggregate aggregate = new Aggregate(get);
+        while (true) {
+            Aggregate pending = mPending.putIfAbsent(get.getNdo(), aggregate);
+            if (pending == null) {
+                // First Get for this Ndo
+                return false;
+            } else if (pending.join(get)) {
+                return true;
+            }
+            // The pending Aggregate was finished while joining, start over
+            mPending.remove(get.getNdo(), pending);
+        }
 
     }
 
@@ -32,11 +42,91 @@ public class RequestAggregator {
      * @param get
      *     The Get that was finished
      * @return
-     *     A Set of all Gets waiting for the same Ndo
+     *     All Gets waiting for the same Ndo, including the finished Get
+     */
+    public Iterable<Get> deaggregate(Get get) {
+
+        Aggregate aggregate = mPending.remove(get.getNdo());
+        if (aggregate == null) {
+            return new Waiting(get, null);
+        }
+        return aggregate.finish();
+
+    }
+
+    /**
+     * The Gets waiting for the same Ndo.
+     * Gets are pushed onto a lock-free stack that is closed when the Aggregate finishes.
+     */
+    private static class Aggregate {
+
+        private static final Waiting FINISHED = new Waiting(null, null);
+
+        private final AtomicReference<Waiting> mWaiting;
+
+        public Aggregate(Get get) {
+            mWaiting = new AtomicReference<Waiting>(new Waiting(get, null));
+        }
+
+        public boolean join(Get get) {
+            while (true) {
+                Waiting waiting = mWaiting.get();
+                if (waiting == FINISHED) {
+                    return false;
+                }
+                if (mWaiting.compareAndSet(waiting, new Waiting(get, waiting))) {
+                    return true;
+                }
+            }
+        }
+
+        public Waiting finish() {
+            return mWaiting.getAndSet(FINISHED);
+        }
+
+    }
+
+    /**
+     * Immutable linked list of waiting Gets.
      */
-    public synchronized Set<Get> deaggregate(Get get) {
+    private static class Waiting implements Iterable<Get> {
+
+        private final Get mGet;
+        private final Waiting mNext;
+
+        public Waiting(Get get, Waiting next) {
+            mGet = get;
+            mNext = next;
+        }
+
+        @Override
+        public Iterator<Get> iterator() {
+            return new Iterator<Get>() {
+
+                private Waiting mCurrent = Waiting.this;
+
+                @Override
+                public boolean hasNext() {
+                    return mCurrent != null;
+                }
+
+                @Override
+                public Get next() {
+                    if (mCurrent == null) {
+                        throw new NoSuchElementException();
+                    }
+                    Get get = mCurrent.mGet;
+                    mCurrent = mCurrent.mNext;
+                    return get;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
 
-        return new HashSet<Get>(mPending.removeAll(get.getNdo()));
+            };
+        }
 
     }
 
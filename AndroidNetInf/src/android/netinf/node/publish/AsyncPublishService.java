@@ -0,0 +1,15 @@
+package android.netinf.node.publish;
+
+import android.netinf.messages.Publish;
+import android.netinf.messages.PublishResponse;
+
+import com.google.common.util.concurrent.AbstractFuture;
+
+/**
+ * A {@link PublishService} that does not block while waiting for a response.
+ */
+public interface AsyncPublishService {
+
+    public AbstractFuture<PublishResponse> performAsync(Publish publish);
+
+}
@@ -0,0 +1,60 @@
+package android.netinf.node.publish;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.netinf.common.FutureUtils;
+import android.netinf.messages.Publish;
+import android.netinf.messages.PublishResponse;
+import android.util.Log;
+
+import com.google.common.util.concurrent.AbstractFuture;
+
+/**
+ * Runs a blocking {@link PublishService} on an {@link Executor}.
+ */
+public class AsyncPublishServiceAdapter implements AsyncPublishService {
+
+    public static final String TAG = AsyncPublishServiceAdapter.class.getSimpleName();
+
+    private PublishService mService;
+    private Executor mExecutor;
+
+    public AsyncPublishServiceAdapter(PublishService service, Executor executor) {
+        mService = service;
+        mExecutor = executor;
+    }
+
+    /**
+     * Returns the {@link AsyncPublishService} of a {@link PublishService}.
+     * @param service
+     *     The {@link PublishService}
+     * @param executor
+     *     The {@link Executor} used if the service only supports blocking calls
+     * @return
+     *     The service itself if it is asynchronous, otherwise an adapter
+     */
+    public static AsyncPublishService wrap(PublishService service, Executor executor) {
+        if (service instanceof AsyncPublishService) {
+            return (AsyncPublishService) service;
+        }
+        return new AsyncPublishServiceAdapter(service, executor);
+    }
+
+    @Override
+    public AbstractFuture<PublishResponse> performAsync(final Publish publish) {
+        try {
+            return FutureUtils.submit(mExecutor, new Callable<PublishResponse>() {
+                @Override
+                public PublishResponse call() {
+                    return mService.perform(publish);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "PUBLISH " + publish + " could not start " + mService.getClass().getSimpleName() + ", too many services in progress");
+            return FutureUtils.immediateFuture(new PublishResponse.Builder(publish).failed().build());
+        }
+    }
+
+}
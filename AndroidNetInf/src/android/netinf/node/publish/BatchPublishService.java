@@ -0,0 +1,23 @@
+package android.netinf.node.publish;
+
+import java.util.List;
+
+import android.netinf.messages.Publish;
+import android.netinf.messages.PublishResponse;
+
+/**
+ * A {@link PublishService} that can perform many Publishes at once,
+ * for example in a single transaction or a single request per peer.
+ */
+public interface BatchPublishService extends PublishService {
+
+    /**
+     * Performs many Publishes.
+     * @param publishes
+     *     The Publishes
+     * @return
+     *     A PublishResponse for each Publish, in the same order
+     */
+    public List<PublishResponse> perform(List<Publish> publishes);
+
+}
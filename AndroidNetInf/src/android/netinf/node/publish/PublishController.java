@@ -1,62 +1,245 @@
 package android.netinf.node.publish;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
+import android.netinf.common.FutureUtils;
 import android.netinf.messages.Publish;
 import android.netinf.messages.PublishResponse;
+import android.netinf.node.NodeExecutors;
 import android.netinf.node.api.Api;
+import android.netinf.node.cache.ContentStore;
+import android.netinf.node.get.NegativeCache;
 import android.util.Log;
 
 import com.google.common.collect.SetMultimap;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
-public class PublishController implements PublishService {
+public class PublishController implements PublishService, AsyncPublishService {
 
     public static final String TAG = PublishController.class.getSimpleName();
 
     private SetMultimap<Api, PublishService> mLocalServices;
     private SetMultimap<Api, PublishService> mRemoteServices;
+    private NegativeCache mNegativeCache;
+    private ContentStore mContentStore;
 
-    public PublishController(SetMultimap<Api, PublishService> local, SetMultimap<Api, PublishService> remote) {
+    public PublishController(SetMultimap<Api, PublishService> local, SetMultimap<Api, PublishService> remote,
+            NegativeCache negativeCache, ContentStore contentStore) {
         mLocalServices = local;
         mRemoteServices = remote;
+        mNegativeCache = negativeCache;
+        mContentStore = contentStore;
     }
 
     @Override
     public PublishResponse perform(Publish publish) {
+        return FutureUtils.getOrElse(performAsync(publish), new PublishResponse.Builder(publish).failed().build());
+    }
+
+    @Override
+    public AbstractFuture<PublishResponse> performAsync(Publish publish) {
 
         // Reduce hop limit (unless this was a local request)
         if (!publish.isLocal()) {
             publish = new Publish.Builder(publish).consumeHop().build();
         }
+        final Publish finalPublish = publish;
+
+        // The Ndo might now be found
+        mNegativeCache.invalidate(finalPublish.getNdo());
+
+        // Octets that came with the Publish count towards the cache limits, octets published by this node are kept
+        mContentStore.access(finalPublish.getNdo(), isPinned(finalPublish));
 
-        List<PublishResponse> responses = new LinkedList<PublishResponse>();
+        final List<AbstractFuture<PublishResponse>> responses = new LinkedList<AbstractFuture<PublishResponse>>();
 
         // Publish to local services
-        for (PublishService publishService : mLocalServices.get(publish.getSource())) {
-            responses.add(publishService.perform(publish));
+        for (PublishService publishService : mLocalServices.get(finalPublish.getSource())) {
+            responses.add(AsyncPublishServiceAdapter.wrap(publishService, NodeExecutors.PUBLISH).performAsync(finalPublish));
         }
 
         // Publish to remote services
-        if (publish.getHopLimit() > 0) {
-            for (PublishService publishService : mRemoteServices.get(publish.getSource())) {
-                responses.add(publishService.perform(publish));
+        if (finalPublish.getHopLimit() > 0) {
+            for (PublishService publishService : mRemoteServices.get(finalPublish.getSource())) {
+                responses.add(AsyncPublishServiceAdapter.wrap(publishService, NodeExecutors.SERVICE).performAsync(finalPublish));
             }
         }
 
-        // Decide aggregated response status
-        for (PublishResponse response : responses) {
-            if (response.getStatus().isError()) {
-                PublishResponse publishResponse = new PublishResponse.Builder(publish).failed().build();
-                Log.i(TAG, "PUBLISH " + publish + "\n-> " + publishResponse);
-                return publishResponse;
+        return aggregate(finalPublish, responses);
+
+    }
+
+    /**
+     * Performs many Publishes at once.
+     * Services supporting it get all Publishes in a single call,
+     * see {@link BatchPublishService}, other services get them one at a time.
+     * @param publishes
+     *     The Publishes
+     * @return
+     *     A Future with a PublishResponse for each Publish, in the same order
+     */
+    public AbstractFuture<List<PublishResponse>> performAllAsync(Collection<Publish> publishes) {
+
+        // Reduce hop limits and group by source, services are selected by source
+        final List<Publish> prepared = new ArrayList<Publish>(publishes.size());
+        List<List<AbstractFuture<PublishResponse>>> responses = new ArrayList<List<AbstractFuture<PublishResponse>>>(publishes.size());
+        Map<Api, List<Integer>> bySource = new LinkedHashMap<Api, List<Integer>>();
+        for (Publish publish : publishes) {
+            if (!publish.isLocal()) {
+                publish = new Publish.Builder(publish).consumeHop().build();
+            }
+            mNegativeCache.invalidate(publish.getNdo());
+            mContentStore.access(publish.getNdo(), isPinned(publish));
+            if (!bySource.containsKey(publish.getSource())) {
+                bySource.put(publish.getSource(), new ArrayList<Integer>());
+            }
+            bySource.get(publish.getSource()).add(prepared.size());
+            prepared.add(publish);
+            responses.add(new LinkedList<AbstractFuture<PublishResponse>>());
+        }
+
+        for (Map.Entry<Api, List<Integer>> entry : bySource.entrySet()) {
+
+            // Publish to local services
+            for (PublishService publishService : mLocalServices.get(entry.getKey())) {
+                dispatch(publishService, prepared, entry.getValue(), NodeExecutors.PUBLISH, responses);
+            }
+
+            // Publish to remote services
+            List<Integer> remote = new ArrayList<Integer>();
+            for (Integer index : entry.getValue()) {
+                if (prepared.get(index).getHopLimit() > 0) {
+                    remote.add(index);
+                }
+            }
+            if (!remote.isEmpty()) {
+                for (PublishService publishService : mRemoteServices.get(entry.getKey())) {
+                    dispatch(publishService, prepared, remote, NodeExecutors.SERVICE, responses);
+                }
+            }
+
+        }
+
+        // Decide aggregated response status of each Publish
+        List<AbstractFuture<PublishResponse>> results = new ArrayList<AbstractFuture<PublishResponse>>(prepared.size());
+        for (int i = 0; i < prepared.size(); i++) {
+            results.add(aggregate(prepared.get(i), responses.get(i)));
+        }
+        return FutureUtils.successfulAsList(results);
+
+    }
+
+    /**
+     * Starts Publishes on a service, in a single call if the service supports it.
+     * @param service
+     *     The service
+     * @param publishes
+     *     All Publishes
+     * @param indices
+     *     The indices of the Publishes to start
+     * @param executor
+     *     The {@link Executor} used for blocking calls
+     * @param responses
+     *     The responses of each Publish, the response of the service is added
+     */
+    private void dispatch(PublishService service, final List<Publish> publishes, final List<Integer> indices,
+            Executor executor, List<List<AbstractFuture<PublishResponse>>> responses) {
+
+        if (!(service instanceof BatchPublishService) || indices.size() == 1) {
+            AsyncPublishService asyncService = AsyncPublishServiceAdapter.wrap(service, executor);
+            for (Integer index : indices) {
+                responses.get(index).add(asyncService.performAsync(publishes.get(index)));
             }
+            return;
+        }
+
+        final BatchPublishService batchService = (BatchPublishService) service;
+        final List<Publish> batch = new ArrayList<Publish>(indices.size());
+        for (Integer index : indices) {
+            batch.add(publishes.get(index));
+        }
+
+        AbstractFuture<List<PublishResponse>> batchResponse;
+        try {
+            batchResponse = FutureUtils.submit(executor, new Callable<List<PublishResponse>>() {
+                @Override
+                public List<PublishResponse> call() {
+                    return batchService.perform(batch);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "PUBLISH of " + batch.size() + " NDO(s) could not start " + service.getClass().getSimpleName() + ", too many services in progress");
+            batchResponse = FutureUtils.immediateFuture(null);
         }
 
-        PublishResponse publishResponse = new PublishResponse.Builder(publish).ok().build();
-        Log.i(TAG, "PUBLISH " + publish + "\n-> " + publishResponse);
-        return publishResponse;
+        // Split the batch response into a response per Publish
+        final AbstractFuture<List<PublishResponse>> finalBatchResponse = batchResponse;
+        for (int i = 0; i < batch.size(); i++) {
+            final int position = i;
+            final SettableFuture<PublishResponse> response = SettableFuture.create();
+            finalBatchResponse.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    List<PublishResponse> batchResponses = FutureUtils.getOrElse(finalBatchResponse, null);
+                    if (batchResponses != null && batchResponses.size() == batch.size()) {
+                        response.set(batchResponses.get(position));
+                    } else {
+                        response.set(new PublishResponse.Builder(batch.get(position)).failed().build());
+                    }
+                }
+            }, FutureUtils.sameThreadExecutor());
+            responses.get(indices.get(i)).add(response);
+        }
+
+    }
+
+    /**
+     * Aggregates the responses of all services to a Publish.
+     * @param publish
+     *     The Publish
+     * @param responses
+     *     The responses of the services
+     * @return
+     *     A Future with an OK response if all services succeeded, otherwise a failed response
+     */
+    private AbstractFuture<PublishResponse> aggregate(final Publish publish, final List<AbstractFuture<PublishResponse>> responses) {
+
+        // Decide aggregated response status once all services are done
+        final SettableFuture<PublishResponse> result = SettableFuture.create();
+        FutureUtils.whenAll(responses).addListener(new Runnable() {
+            @Override
+            public void run() {
+                PublishResponse publishResponse = new PublishResponse.Builder(publish).ok().build();
+                for (AbstractFuture<PublishResponse> future : responses) {
+                    PublishResponse response = FutureUtils.getOrElse(future, null);
+                    if (response == null || response.getStatus().isError()) {
+                        publishResponse = new PublishResponse.Builder(publish).failed().build();
+                        break;
+                    }
+                }
+                Log.i(TAG, "PUBLISH " + publish + "\n-> " + publishResponse);
+                result.set(publishResponse);
+            }
+        }, FutureUtils.sameThreadExecutor());
+
+        return result;
+
+    }
 
+    /**
+     * Checks if the octets of a Publish must never be evicted, true for full puts made by this node.
+     */
+    private boolean isPinned(Publish publish) {
+        return publish.isLocal() && publish.isFullPut();
     }
 
 }
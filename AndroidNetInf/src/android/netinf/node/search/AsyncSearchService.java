@@ -0,0 +1,15 @@
+package android.netinf.node.search;
+
+import android.netinf.messages.Search;
+import android.netinf.messages.SearchResponse;
+
+import com.google.common.util.concurrent.AbstractFuture;
+
+/**
+ * A {@link SearchService} that does not block while waiting for a response.
+ */
+public interface AsyncSearchService {
+
+    public AbstractFuture<SearchResponse> performAsync(Search search);
+
+}
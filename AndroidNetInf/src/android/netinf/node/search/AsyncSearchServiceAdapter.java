@@ -0,0 +1,60 @@
+package android.netinf.node.search;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.netinf.common.FutureUtils;
+import android.netinf.messages.Search;
+import android.netinf.messages.SearchResponse;
+import android.util.Log;
+
+import com.google.common.util.concurrent.AbstractFuture;
+
+/**
+ * Runs a blocking {@link SearchService} on an {@link Executor}.
+ */
+public class AsyncSearchServiceAdapter implements AsyncSearchService {
+
+    public static final String TAG = AsyncSearchServiceAdapter.class.getSimpleName();
+
+    private SearchService mService;
+    private Executor mExecutor;
+
+    public AsyncSearchServiceAdapter(SearchService service, Executor executor) {
+        mService = service;
+        mExecutor = executor;
+    }
+
+    /**
+     * Returns the {@link AsyncSearchService} of a {@link SearchService}.
+     * @param service
+     *     The {@link SearchService}
+     * @param executor
+     *     The {@link Executor} used if the service only supports blocking calls
+     * @return
+     *     The service itself if it is asynchronous, otherwise an adapter
+     */
+    public static AsyncSearchService wrap(SearchService service, Executor executor) {
+        if (service instanceof AsyncSearchService) {
+            return (AsyncSearchService) service;
+        }
+        return new AsyncSearchServiceAdapter(service, executor);
+    }
+
+    @Override
+    public AbstractFuture<SearchResponse> performAsync(final Search search) {
+        try {
+            return FutureUtils.submit(mExecutor, new Callable<SearchResponse>() {
+                @Override
+                public SearchResponse call() {
+                    return mService.perform(search);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "SEARCH " + search + " could not start " + mService.getClass().getSimpleName() + ", too many services in progress");
+            return FutureUtils.immediateFuture(new SearchResponse.Builder(search).failed().build());
+        }
+    }
+
+}
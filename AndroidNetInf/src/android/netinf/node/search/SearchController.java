@@ -1,18 +1,27 @@
 package android.netinf.node.search;
 
 import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+import android.netinf.common.FutureUtils;
+import android.netinf.common.Ndo;
 import android.netinf.messages.Search;
 import android.netinf.messages.SearchResponse;
+import android.netinf.node.NodeExecutors;
 import android.netinf.node.api.Api;
 import android.util.Log;
 
 import com.google.common.collect.SetMultimap;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
-public class SearchController implements SearchService {
+public class SearchController implements SearchService, AsyncSearchService {
 
     public static final String TAG = SearchController.class.getSimpleName();
 
@@ -26,6 +35,24 @@ public class SearchController implements SearchService {
 
     @Override
     public SearchResponse perform(Search search) {
+        return FutureUtils.getOrElse(performAsync(search), new SearchResponse.Builder(search).failed().build());
+    }
+
+    @Override
+    public AbstractFuture<SearchResponse> performAsync(Search search) {
+        return performAsync(search, null);
+    }
+
+    /**
+     * Performs a Search, passing results to a listener as each service produces them.
+     * @param search
+     *     The Search
+     * @param listener
+     *     The listener, or null
+     * @return
+     *     A Future with all results, done when all services are done or the Search timed out
+     */
+    public AbstractFuture<SearchResponse> performAsync(Search search, final SearchListener listener) {
 
         // Reduce hop limit (unless this was a local request)
         if (!search.isLocal()) {
@@ -35,35 +62,173 @@ public class SearchController implements SearchService {
 
         // Get search services to be used
         Log.i(TAG, "SEARCH " + finalSearch);
-        Set<SearchService> searchServices = new LinkedHashSet<SearchService>(mLocalServices.get(finalSearch.getSource()));
+        Set<SearchService> localServices = new LinkedHashSet<SearchService>(mLocalServices.get(finalSearch.getSource()));
+        Set<SearchService> remoteServices = new LinkedHashSet<SearchService>();
         if (finalSearch.getHopLimit() > 0) {
-            searchServices.addAll(mRemoteServices.get(finalSearch.getSource()));
+            remoteServices.addAll(mRemoteServices.get(finalSearch.getSource()));
+            remoteServices.removeAll(localServices);
         }
 
-        final CountDownLatch pendingSearches = new CountDownLatch(searchServices.size());
-        final SearchResponse.Builder searchResponseBuilder = new SearchResponse.Builder(finalSearch);
+        // Start all services
+        final List<AbstractFuture<SearchResponse>> responses = new LinkedList<AbstractFuture<SearchResponse>>();
+        for (SearchService searchService : localServices) {
+            responses.add(AsyncSearchServiceAdapter.wrap(searchService, NodeExecutors.SEARCH).performAsync(finalSearch));
+        }
+        for (SearchService searchService : remoteServices) {
+            responses.add(AsyncSearchServiceAdapter.wrap(searchService, NodeExecutors.SERVICE).performAsync(finalSearch));
+        }
 
-        for (final SearchService searchService : searchServices) {
-            // TODO use an Executor instead
-            new Thread(new Runnable() {
+        final SearchResponse.Builder searchResponseBuilder = new SearchResponse.Builder(finalSearch);
+        final SettableFuture<SearchResponse> result = SettableFuture.create();
+        // Results passed on so far and whether the response was decided, guarded by searchResponseBuilder
+        final Set<Ndo> seen = new LinkedHashSet<Ndo>();
+        final boolean[] done = new boolean[1];
+        // Calls the listener in order, without holding the lock or, unless overloaded, the thread of a service or the timer
+        final Delivery delivery = new Delivery();
+
+        // Add the results of each service as it finishes, passing on the ones not seen before
+        for (final AbstractFuture<SearchResponse> future : responses) {
+            future.addListener(new Runnable() {
                 @Override
                 public void run() {
-                    SearchResponse response = searchService.perform(finalSearch);
-                    searchResponseBuilder.addResults(response.getResults());
-                    pendingSearches.countDown();
+                    SearchResponse response = FutureUtils.getOrElse(future, null);
+                    synchronized (searchResponseBuilder) {
+                        if (response == null || done[0]) {
+                            return;
+                        }
+                        final Set<Ndo> added = new LinkedHashSet<Ndo>();
+                        for (Ndo ndo : response.getResults()) {
+                            if (seen.add(ndo)) {
+                                added.add(ndo);
+                            }
+                        }
+                        searchResponseBuilder.addResults(added);
+                        // Queued while holding the lock, so results are delivered in the order they were added
+                        if (listener != null && !added.isEmpty()) {
+                            delivery.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    listener.onResults(finalSearch, added);
+                                }
+                            });
+                        }
+                    }
+                }
+            }, FutureUtils.sameThreadExecutor());
+        }
+
+        // Respond when all services are done or when the Search times out, whichever comes first
+        final Runnable respond = new Runnable() {
+            @Override
+            public void run() {
+                final SearchResponse searchResponse;
+                synchronized (searchResponseBuilder) {
+                    if (done[0]) {
+                        return;
+                    }
+                    done[0] = true;
+                    searchResponse = searchResponseBuilder.build();
+                }
+                // No results are queued after done is set, so this is still the last call
+                if (listener != null) {
+                    delivery.postLast(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onDone(searchResponse);
+                        }
+                    });
+                }
+                Log.i(TAG, "SEARCH " + finalSearch + "\n-> " + searchResponse);
+                result.set(searchResponse);
+                // Stop services that did not finish in time
+                for (AbstractFuture<SearchResponse> future : responses) {
+                    future.cancel(true);
                 }
-            }).start();
+            }
+        };
+        final ScheduledFuture<?> timeout = NodeExecutors.TIMER.schedule(respond, finalSearch.getTimeout(), TimeUnit.MILLISECONDS);
+        FutureUtils.whenAll(responses).addListener(new Runnable() {
+            @Override
+            public void run() {
+                timeout.cancel(false);
+                respond.run();
+            }
+        }, FutureUtils.sameThreadExecutor());
+
+        return result;
+
+    }
+
+    /**
+     * Runs the calls to a {@link SearchListener} one at a time on {@link NodeExecutors#SEARCH}, in the order they were posted.
+     * If {@link NodeExecutors#SEARCH} rejects the calls, the queued results are dropped,
+     * but the last call is still made in the posting thread so the listener always learns the Search is done.
+     */
+    private static class Delivery implements Runnable {
+
+        // Guarded by this
+        private final Queue<Runnable> mCalls = new LinkedList<Runnable>();
+        private boolean mRunning = false;
+
+        public void post(Runnable call) {
+            post(call, false);
+        }
+
+        /**
+         * Posts the last call, no calls may be posted after it.
+         * @param call
+         *     The call
+         */
+        public void postLast(Runnable call) {
+            post(call, true);
         }
 
-        try {
-            pendingSearches.await(finalSearch.getTimeout(), TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-            Log.i(TAG, "SEARCH interrupted");
+        private void post(Runnable call, boolean last) {
+            synchronized (this) {
+                mCalls.add(call);
+                if (mRunning) {
+                    return;
+                }
+                mRunning = true;
+            }
+            try {
+                NodeExecutors.SEARCH.execute(this);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    mCalls.clear();
+                    mRunning = false;
+                }
+                if (last) {
+                    Log.w(TAG, "Dropped search results and ended search in calling thread, too many searches in progress");
+                    deliver(call);
+                } else {
+                    Log.w(TAG, "Dropped search results, too many searches in progress");
+                }
+            }
         }
 
-        SearchResponse searchResponse = searchResponseBuilder.build();
-        Log.i(TAG, "SEARCH " + finalSearch + "\n-> " + searchResponse);
-        return searchResponse;
+        @Override
+        public void run() {
+            while (true) {
+                Runnable call;
+                synchronized (this) {
+                    call = mCalls.poll();
+                    if (call == null) {
+                        mRunning = false;
+                        return;
+                    }
+                }
+                deliver(call);
+            }
+        }
+
+        private static void deliver(Runnable call) {
+            try {
+                call.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Search listener failed", e);
+            }
+        }
 
     }
 
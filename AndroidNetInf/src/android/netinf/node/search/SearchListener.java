@@ -0,0 +1,34 @@
+package android.netinf.node.search;
+
+import java.util.Set;
+
+import android.netinf.common.Ndo;
+import android.netinf.messages.Search;
+import android.netinf.messages.SearchResponse;
+
+/**
+ * Receives the results of a {@link Search} as each service produces them,
+ * rather than all at once when the slowest service is done.
+ * Calls are made one at a time and in order on {@link android.netinf.node.NodeExecutors#SEARCH}.
+ * If too many searches are in progress, results may be dropped and {@link #onDone(SearchResponse)}
+ * is made from the thread of a service or the timer instead, but it is always made.
+ */
+public interface SearchListener {
+
+    /**
+     * Called when a service produced results that were not produced before.
+     * @param search
+     *     The Search
+     * @param results
+     *     The new results, no Ndo is passed twice for the same Search
+     */
+    public void onResults(Search search, Set<Ndo> results);
+
+    /**
+     * Called once when all services are done or the Search timed out, after the last {@link #onResults(Search, Set)}.
+     * @param response
+     *     The response with all results
+     */
+    public void onDone(SearchResponse response);
+
+}
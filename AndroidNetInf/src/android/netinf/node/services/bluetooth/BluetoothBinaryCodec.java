@@ -0,0 +1,427 @@
+package android.netinf.node.services.bluetooth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.netinf.common.NetInfException;
+import android.netinf.common.NetInfUtils;
+import android.util.Base64;
+
+/**
+ * Compact binary encoding of the Bluetooth messages, used instead of JSON text
+ * with peers that announced {@link #FEATURE} in their hello message.
+ * A message starts with a fixed header of type, msgid and hop limit, followed by tagged fields
+ * and an end tag. Lengths and numbers are varints, hashes are sent as bytes instead of base64
+ * and locators and hash algorithms are interned, so after their first use on a connection
+ * they are sent as a small index.
+ * Messages are still handed around as {@link JSONObject}, but no JSON text is written or parsed.
+ * Fields without a binary form are sent as JSON text, so any message can be encoded.
+ * The intern tables are per connection and direction, so {@link #encode(JSONObject)} must be called
+ * in the order messages are written and {@link #decode(byte[])} in the order they are read.
+ */
+public class BluetoothBinaryCodec {
+
+    public static final String TAG = BluetoothBinaryCodec.class.getSimpleName();
+
+    /** Feature announced in the hello message if binary messages are understood. */
+    public static final String FEATURE = "binary";
+
+    /** Maximum number of interned strings per connection and direction. */
+    public static final int MAX_INTERNED = 256;
+    /** Maximum size of a message, and so of any string in it. */
+    public static final int MAX_MESSAGE_SIZE = 256 * 1024;
+
+    private static final List<String> TYPES = Arrays.asList(
+            "publish", "get", "search", "publish-response", "get-response", "search-response");
+
+    private static final int BASE64_FLAGS = Base64.NO_PADDING | Base64.NO_WRAP | Base64.URL_SAFE;
+
+    // Field tags
+    private static final int END = 0;
+    private static final int URI = 1;
+    private static final int LOCATORS = 2;
+    private static final int OCTETS = 3;
+    private static final int STREAM = 4;
+    private static final int LENGTH = 5;
+    private static final int CHUNKED = 6;
+    private static final int STATUS = 7;
+    private static final int TOKENS = 8;
+    private static final int RESULTS = 9;
+    private static final int EXT = 10;
+    private static final int OTHER = 11;
+
+    // URI forms
+    private static final int URI_TEXT = 0;
+    private static final int URI_BINARY = 1;
+
+    // Only used by the writer
+    private final Map<String, Integer> mEncoderTable = new HashMap<String, Integer>();
+    // Only used by the reader
+    private final List<String> mDecoderTable = new ArrayList<String>();
+
+    /**
+     * Checks if a message has a binary form.
+     * @param jo
+     *     The message
+     * @return
+     *     true if the type of the message is known, otherwise false
+     */
+    public static boolean canEncode(JSONObject jo) {
+        return TYPES.contains(jo.optString("type")) && jo.has("msgid");
+    }
+
+    /**
+     * Encodes a message.
+     * @param jo
+     *     The message, see {@link #canEncode(JSONObject)}
+     * @return
+     *     The binary form
+     * @throws IOException
+     *     In case the message could not be encoded
+     */
+    public byte[] encode(JSONObject jo) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+
+            // Header
+            out.writeByte(TYPES.indexOf(jo.getString("type")));
+            writeString(out, jo.getString("msgid"));
+            writeVarint(out, Math.max(0, jo.optInt("hoplimit", 0)));
+
+            // Fields
+            Iterator<?> keys = jo.keys();
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                if (key.equals("type") || key.equals("msgid") || key.equals("hoplimit")) {
+                    continue;
+                }
+                writeField(out, key, jo.get(key));
+            }
+            writeVarint(out, END);
+
+        } catch (JSONException e) {
+            throw new IOException("Failed to encode message", e);
+        }
+
+        return bytes.toByteArray();
+
+    }
+
+    /**
+     * Decodes a message.
+     * @param buffer
+     *     The binary form
+     * @return
+     *     The message
+     * @throws IOException
+     *     In case the message could not be decoded
+     */
+    public JSONObject decode(byte[] buffer) throws IOException {
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer));
+        JSONObject jo = new JSONObject();
+
+        try {
+
+            // Header
+            int type = in.readUnsignedByte();
+            if (type >= TYPES.size()) {
+                throw new IOException("Unknown message type " + type);
+            }
+            jo.put("type", TYPES.get(type));
+            jo.put("msgid", readString(in));
+            jo.put("hoplimit", (int) readVarint(in));
+
+            // Fields
+            int tag;
+            while ((tag = (int) readVarint(in)) != END) {
+                readField(in, tag, jo);
+            }
+
+        } catch (JSONException e) {
+            throw new IOException("Failed to decode message", e);
+        }
+
+        return jo;
+
+    }
+
+    private void writeField(DataOutput out, String key, Object value) throws IOException, JSONException {
+
+        if (key.equals("uri") && value instanceof String) {
+            writeVarint(out, URI);
+            writeUri(out, (String) value);
+        } else if (key.equals("locators") && value instanceof JSONArray) {
+            JSONArray locators = (JSONArray) value;
+            writeVarint(out, LOCATORS);
+            writeVarint(out, locators.length());
+            for (int i = 0; i < locators.length(); i++) {
+                writeInterned(out, locators.getString(i));
+            }
+        } else if (key.equals("octets") && Boolean.TRUE.equals(value)) {
+            writeVarint(out, OCTETS);
+        } else if (key.equals("chunked") && Boolean.TRUE.equals(value)) {
+            writeVarint(out, CHUNKED);
+        } else if (key.equals("stream") && isVarint(value)) {
+            writeVarint(out, STREAM);
+            writeVarint(out, ((Number) value).longValue());
+        } else if (key.equals("length") && isVarint(value)) {
+            writeVarint(out, LENGTH);
+            writeVarint(out, ((Number) value).longValue());
+        } else if (key.equals("status") && isVarint(value)) {
+            writeVarint(out, STATUS);
+            writeVarint(out, ((Number) value).longValue());
+        } else if (key.equals("tokens") && value instanceof JSONArray) {
+            JSONArray tokens = (JSONArray) value;
+            writeVarint(out, TOKENS);
+            writeVarint(out, tokens.length());
+            for (int i = 0; i < tokens.length(); i++) {
+                writeString(out, tokens.getString(i));
+            }
+        } else if (key.equals("results") && value instanceof JSONArray) {
+            JSONArray results = (JSONArray) value;
+            writeVarint(out, RESULTS);
+            writeVarint(out, results.length());
+            for (int i = 0; i < results.length(); i++) {
+                JSONObject result = results.getJSONObject(i);
+                writeUri(out, result.getString("ni"));
+                writeString(out, result.optString("metadata", "{}"));
+            }
+        } else if (key.equals("ext") && value instanceof JSONObject) {
+            writeVarint(out, EXT);
+            writeString(out, value.toString());
+        } else {
+            // No binary form, send as JSON text
+            writeVarint(out, OTHER);
+            writeString(out, key);
+            writeString(out, new JSONArray().put(value).toString());
+        }
+
+    }
+
+    private void readField(DataInput in, int tag, JSONObject jo) throws IOException, JSONException {
+
+        switch (tag) {
+            case URI:
+                jo.put("uri", readUri(in));
+                break;
+            case LOCATORS:
+                JSONArray locators = new JSONArray();
+                for (long i = readVarint(in); i > 0; i--) {
+                    locators.put(readInterned(in));
+                }
+                jo.put("locators", locators);
+                break;
+            case OCTETS:
+                jo.put("octets", true);
+                break;
+            case CHUNKED:
+                jo.put("chunked", true);
+                break;
+            case STREAM:
+                jo.put("stream", (int) readVarint(in));
+                break;
+            case LENGTH:
+                jo.put("length", readVarint(in));
+                break;
+            case STATUS:
+                jo.put("status", (int) readVarint(in));
+                break;
+            case TOKENS:
+                JSONArray tokens = new JSONArray();
+                for (long i = readVarint(in); i > 0; i--) {
+                    tokens.put(readString(in));
+                }
+                jo.put("tokens", tokens);
+                break;
+            case RESULTS:
+                JSONArray results = new JSONArray();
+                for (long i = readVarint(in); i > 0; i--) {
+                    JSONObject result = new JSONObject();
+                    result.put("ni", readUri(in));
+                    result.put("metadata", readString(in));
+                    results.put(result);
+                }
+                jo.put("results", results);
+                break;
+            case EXT:
+                jo.put("ext", new JSONObject(readString(in)));
+                break;
+            case OTHER:
+                String key = readString(in);
+                jo.put(key, new JSONArray(readString(in)).get(0));
+                break;
+            default:
+                throw new IOException("Unknown field " + tag);
+        }
+
+    }
+
+    /**
+     * Writes a NetInf URI as authority, interned algorithm and hash bytes.
+     * URIs that would not come back exactly the same are written as text.
+     */
+    private void writeUri(DataOutput out, String uri) throws IOException {
+
+        try {
+            String authority = NetInfUtils.getAuthority(uri);
+            String algorithm = NetInfUtils.getAlgorithm(uri);
+            String hash = NetInfUtils.getHash(uri);
+            byte[] binaryHash = Base64.decode(hash, BASE64_FLAGS);
+            String rebuilt = "ni://" + authority + "/" + algorithm + ";" + Base64.encodeToString(binaryHash, BASE64_FLAGS);
+            if (rebuilt.equals(uri)) {
+                writeVarint(out, URI_BINARY);
+                writeString(out, authority);
+                writeInterned(out, algorithm);
+                writeVarint(out, binaryHash.length);
+                out.write(binaryHash);
+                return;
+            }
+        } catch (NetInfException e) {
+            // Not a NetInf URI, write as text
+        } catch (IllegalArgumentException e) {
+            // Hash not base64, write as text
+        }
+
+        writeVarint(out, URI_TEXT);
+        writeString(out, uri);
+
+    }
+
+    private String readUri(DataInput in) throws IOException {
+        int form = (int) readVarint(in);
+        if (form == URI_TEXT) {
+            return readString(in);
+        }
+        String authority = readString(in);
+        String algorithm = readInterned(in);
+        byte[] binaryHash = new byte[readLength(in, MAX_MESSAGE_SIZE)];
+        in.readFully(binaryHash);
+        return "ni://" + authority + "/" + algorithm + ";" + Base64.encodeToString(binaryHash, BASE64_FLAGS);
+    }
+
+    /**
+     * Writes a string, as an index if it has been written before on this connection.
+     * 0 is followed by the string itself, which is added to the table while there is room.
+     * Any other value is the index plus one of a previously added string.
+     */
+    private void writeInterned(DataOutput out, String string) throws IOException {
+        Integer index = mEncoderTable.get(string);
+        if (index != null) {
+            writeVarint(out, index + 1);
+            return;
+        }
+        writeVarint(out, 0);
+        writeString(out, string);
+        if (mEncoderTable.size() < MAX_INTERNED) {
+            mEncoderTable.put(string, mEncoderTable.size());
+        }
+    }
+
+    private String readInterned(DataInput in) throws IOException {
+        int index = (int) readVarint(in);
+        if (index == 0) {
+            String string = readString(in);
+            if (mDecoderTable.size() < MAX_INTERNED) {
+                mDecoderTable.add(string);
+            }
+            return string;
+        }
+        if (index > mDecoderTable.size()) {
+            throw new IOException("Unknown interned string " + index);
+        }
+        return mDecoderTable.get(index - 1);
+    }
+
+    private static boolean isVarint(Object value) {
+        return (value instanceof Integer || value instanceof Long) && ((Number) value).longValue() >= 0;
+    }
+
+    private static void writeString(DataOutput out, String string) throws IOException {
+        byte[] buffer = string.getBytes("UTF-8");
+        writeVarint(out, buffer.length);
+        out.write(buffer);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] buffer = new byte[readLength(in, MAX_MESSAGE_SIZE)];
+        in.readFully(buffer);
+        return new String(buffer, "UTF-8");
+    }
+
+    /**
+     * Writes a non-negative number using 7 bits per byte, the high bit set on all but the last byte.
+     * @param out
+     *     The output
+     * @param value
+     *     The number
+     * @throws IOException
+     *     In case writing failed
+     */
+    public static void writeVarint(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads a length written as a varint, checking it before it is used to allocate anything.
+     * @param in
+     *     The input
+     * @param max
+     *     The maximum length
+     * @return
+     *     The length
+     * @throws IOException
+     *     In case reading failed or the length is larger than the maximum
+     */
+    public static int readLength(DataInput in, int max) throws IOException {
+        long length = readVarint(in);
+        if (length < 0 || length > max) {
+            throw new IOException("Invalid length " + length + ", maximum is " + max);
+        }
+        return (int) length;
+    }
+
+    /**
+     * Reads a number written by {@link #writeVarint(DataOutput, long)}.
+     * @param in
+     *     The input
+     * @return
+     *     The number
+     * @throws IOException
+     *     In case reading failed or the number is too long
+     */
+    public static long readVarint(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+}
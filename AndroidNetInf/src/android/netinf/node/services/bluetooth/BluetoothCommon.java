@@ -2,9 +2,13 @@ package android.netinf.node.services.bluetooth;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.IOUtils;
@@ -14,6 +18,10 @@ import org.json.JSONObject;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
+import android.netinf.common.BufferPool;
+import android.netinf.common.CacheOutputStream;
+import android.netinf.common.PeerScoreboard;
+import android.netinf.common.ProgressListener;
 import android.netinf.node.SettingsActivity;
 import android.util.Log;
 
@@ -31,6 +39,14 @@ public class BluetoothCommon {
 
     public static final TimeUnit TIMEOUT_UNIT = TimeUnit.MILLISECONDS;
 
+    /** Size of the buffer used to copy octets. */
+    public static final int BUFFER_SIZE = 8192;
+    /** Maximum size of a frame when octets are sent chunked. */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    /** Scores of the Bluetooth devices, shared by all Bluetooth services. */
+    public static final PeerScoreboard<BluetoothDevice> SCOREBOARD = new PeerScoreboard<BluetoothDevice>("bluetooth");
+
     // Ugly hack to restart Bluetooth
     private static Boolean mRestartingBluetooth = false;
 
@@ -344,26 +360,110 @@ public class BluetoothCommon {
     }
 
     public static void write(JSONObject jo, File file, BluetoothSocket socket) throws IOException {
+        write(jo, file, socket, null);
+    }
+
+    /**
+     * Writes a JSON message followed by the octets of a file.
+     * If chunked octets are enabled, or the file is too long for a single frame,
+     * the octets are sent as frames of at most {@link #CHUNK_SIZE} bytes,
+     * each prefixed with its length and terminated by an empty frame.
+     * The JSON message then has "chunked" set to true and "length" set to the file length.
+     * Otherwise the octets are sent as a single frame prefixed with the length.
+     * @param jo
+     *     The JSON message
+     * @param file
+     *     The file
+     * @param socket
+     *     The socket to write to
+     * @param listener
+     *     Receives the progress of the transfer, null for none
+     * @throws IOException
+     *     In case writing failed
+     */
+    public static void write(JSONObject jo, File file, BluetoothSocket socket, ProgressListener listener) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            write(jo, in.getChannel(), file.length(), socket, listener);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes a JSON message followed by octets read from a channel,
+     * as {@link #write(JSONObject, File, BluetoothSocket, ProgressListener)}.
+     * The octets are read into a buffer from {@link BufferPool#TRANSFER}.
+     * @param jo
+     *     The JSON message
+     * @param in
+     *     The channel, which is not closed
+     * @param length
+     *     The number of octets in the channel
+     * @param socket
+     *     The socket to write to
+     * @param listener
+     *     Receives the progress of the transfer, null for none
+     * @throws IOException
+     *     In case reading or writing failed
+     */
+    public static void write(JSONObject jo, ReadableByteChannel in, long length, BluetoothSocket socket, ProgressListener listener) throws IOException {
         synchronized (socket) {
-//            Log.v(TAG, "write(JSON+File)");
-            write(jo, socket);
-//            Log.v(TAG, "write(File)");
-            long length = file.length();
-            if (length > Integer.MAX_VALUE) {
-                throw new IOException("Failed to write file. File too long.");
+
+            boolean chunked = length > Integer.MAX_VALUE || isChunkedEnabled();
+            if (chunked) {
+                try {
+                    jo.put("chunked", true);
+                    jo.put("length", length);
+                } catch (JSONException e) {
+                    throw new IOException("Failed to mark message as chunked", e);
+                }
             }
+
+            write(jo, socket);
+
             DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-            out.writeInt((int) length);
-            IOUtils.copy(new FileInputStream(file), out);
-            Log.d(TAG, "Wrote file " + length + " bytes to " + socket.getRemoteDevice().getName());
+            byte[] buffer = BufferPool.TRANSFER.acquire();
+            try {
+                // Frames of chunked octets must not exceed the chunk size
+                ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, Math.min(buffer.length, CHUNK_SIZE));
+                long written = 0;
+                if (!chunked) {
+                    out.writeInt((int) length);
+                }
+                int read;
+                while ((read = in.read(wrapped)) != -1) {
+                    if (chunked) {
+                        out.writeInt(read);
+                    }
+                    out.write(buffer, 0, read);
+                    written += read;
+                    if (listener != null) {
+                        listener.onProgress(written, length);
+                    }
+                    wrapped.clear();
+                    wrapped.limit(Math.min(buffer.length, CHUNK_SIZE));
+                }
+                if (chunked) {
+                    out.writeInt(0);
+                }
+                out.flush();
+            } finally {
+                BufferPool.TRANSFER.release(buffer);
+            }
+            Log.d(TAG, "Wrote octets " + length + " bytes" + (chunked ? " chunked" : "") + " to " + socket.getRemoteDevice().getName());
+
         }
     }
 
-    private static byte[] read(BluetoothSocket socket) throws IOException {
+    public static boolean isChunkedEnabled() {
+        return SettingsActivity.getPreferenceAsBoolean("pref_key_bluetooth_chunked");
+    }
+
+    private static byte[] read(BluetoothSocket socket, int length) throws IOException {
 //        Log.v(TAG, "read()");
         // Read appropriate part from the Bluetooth stream
         DataInputStream in = new DataInputStream(socket.getInputStream());
-        int length = in.readInt();
         byte[] buffer = new byte[length];
 
         int offset = 0;
@@ -377,8 +477,24 @@ public class BluetoothCommon {
 
     public static JSONObject readJson(BluetoothSocket socket) throws IOException {
 //        Log.v(TAG, "readJson()");
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        return readJson(socket, in.readInt());
+    }
+
+    /**
+     * Reads a JSON message whose length prefix has already been read.
+     * @param socket
+     *     The socket to read from
+     * @param length
+     *     The length of the message
+     * @return
+     *     The message
+     * @throws IOException
+     *     In case reading failed or the message was not valid JSON
+     */
+    public static JSONObject readJson(BluetoothSocket socket, int length) throws IOException {
         try {
-            byte[] buffer = read(socket);
+            byte[] buffer = read(socket, length);
             String json = new String(buffer, "UTF-8");
             JSONObject jo = new JSONObject(json);
             Log.d(TAG, "Read " + buffer.length + " bytes from " + socket.getRemoteDevice().getName() + ": " + jo);
@@ -388,12 +504,83 @@ public class BluetoothCommon {
         }
     }
 
-    public static byte[] readFile(BluetoothSocket socket) throws IOException {
-//        Log.v(TAG, "readFile()");
-        // TODO Don't read entire file into memory? Or maybe for cut through forwarding
-        return read(socket);
+    /**
+     * Reads the octets following a JSON message straight into a stream, using a fixed size buffer.
+     * Handles both chunked and single frame octets, see {@link #write(JSONObject, File, BluetoothSocket, ProgressListener)}.
+     * The stream is not closed, octets read into a {@link CacheOutputStream} become cached once it is committed.
+     * @param socket
+     *     The socket to read from
+     * @param jo
+     *     The JSON message the octets belong to
+     * @param out
+     *     The stream to write the octets to
+     * @param listener
+     *     Receives the progress of the transfer, null for none
+     * @throws IOException
+     *     In case reading or writing failed
+     */
+    public static void readFile(BluetoothSocket socket, JSONObject jo, OutputStream out, ProgressListener listener) throws IOException {
+
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        boolean chunked = jo.optBoolean("chunked", false);
+        long total;
+        if (chunked) {
+            total = jo.optLong("length", -1);
+        } else {
+            total = in.readInt() & 0xFFFFFFFFL;
+        }
+
+        byte[] buffer = BufferPool.TRANSFER.acquire();
+        try {
+            long transferred = 0;
+            long remaining = chunked ? in.readInt() : total;
+            while (remaining > 0) {
+                // Copy the current frame
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read == -1) {
+                        throw new EOFException("Socket closed after " + transferred + " bytes");
+                    }
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                    transferred += read;
+                    if (listener != null) {
+                        listener.onProgress(transferred, total);
+                    }
+                }
+                // Chunked octets end with an empty frame
+                if (chunked) {
+                    remaining = in.readInt();
+                }
+            }
+            Log.d(TAG, "Read file " + transferred + " bytes" + (chunked ? " chunked" : "") + " from " + socket.getRemoteDevice().getName());
+        } finally {
+            BufferPool.TRANSFER.release(buffer);
+        }
+
+    }
+
+    /**
+     * Creates a {@link ProgressListener} that logs every tenth of a transfer.
+     * @param description
+     *     Description of the transfer
+     * @return
+     *     The {@link ProgressListener}
+     */
+    public static ProgressListener newLoggingProgressListener(final String description) {
+        return new ProgressListener() {
+            private long mLogged = 0;
+            @Override
+            public void onProgress(long transferred, long total) {
+                if (total > 0 && transferred * 10 / total > mLogged) {
+                    mLogged = transferred * 10 / total;
+                    Log.v(TAG, description + " " + transferred + "/" + total + " bytes");
+                }
+            }
+        };
     }
 
+
     private static String bluetoothStateToString(int state) {
         switch (state) {
             case BluetoothAdapter.STATE_CONNECTED: return "STATE_CONNECTED";
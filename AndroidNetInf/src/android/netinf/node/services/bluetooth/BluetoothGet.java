@@ -6,24 +6,24 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeoutException;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
+import android.netinf.common.FutureUtils;
 import android.netinf.common.Locator;
 import android.netinf.messages.Get;
 import android.netinf.messages.GetResponse;
 import android.netinf.node.Node;
+import android.netinf.node.get.AsyncGetService;
 import android.netinf.node.get.GetService;
 import android.netinf.node.logging.LogEntry;
 import android.util.Log;
 
-public class BluetoothGet implements GetService {
+import com.google.common.util.concurrent.AbstractFuture;
+
+public class BluetoothGet implements GetService, AsyncGetService {
 
     public static final String TAG = BluetoothGet.class.getSimpleName();
 
@@ -35,11 +35,21 @@ public class BluetoothGet implements GetService {
 
     @Override
     public GetResponse perform(Get get) {
-        return perform(get, mApi.getBluetoothDevices());
+        return FutureUtils.getOrElse(performAsync(get), new GetResponse.Builder(get).failed().build());
     }
 
     @Override
     public GetResponse resolveLocators(Get get) {
+        return FutureUtils.getOrElse(resolveLocatorsAsync(get), new GetResponse.Builder(get).failed().build());
+    }
+
+    @Override
+    public AbstractFuture<GetResponse> performAsync(Get get) {
+        return performAsync(get, mApi.getBluetoothDevices());
+    }
+
+    @Override
+    public AbstractFuture<GetResponse> resolveLocatorsAsync(Get get) {
 
         Set<BluetoothDevice> devices = new HashSet<BluetoothDevice>();
         for (Locator locator : get.getNdo().getLocators()) {
@@ -53,67 +63,52 @@ public class BluetoothGet implements GetService {
 
         Log.d(TAG, "Bluetooth locators resulted in: " + devices);
 
-        return perform(get, devices);
+        return performAsync(get, devices);
 
     }
 
-    private GetResponse perform(Get get, Set<BluetoothDevice> devices) {
+    private AbstractFuture<GetResponse> performAsync(final Get get, Set<BluetoothDevice> devices) {
         Log.i(TAG, "Bluetooth GET " + get);
 
         // Check if Bluetooth is available, could be restarting
         if (!BluetoothCommon.isBluetoothAvailable()) {
-            return new GetResponse.Builder(get).failed().build();
+            return FutureUtils.immediateFuture(new GetResponse.Builder(get).failed().build());
         }
 
         // Create JSON representation of the Get
-        JSONObject jo = null;
+        final JSONObject jo;
         try {
             jo = createGetJson(get);
         } catch (JSONException e) {
             Log.wtf(TAG, "Failed to create JSON representation of Get", e);
-            return new GetResponse.Builder(get).failed().build();
+            return FutureUtils.immediateFuture(new GetResponse.Builder(get).failed().build());
         }
 
-        // Get from all relevant devices
-        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        // Get from all relevant devices until one succeeds, shuffled so equally scored devices share the load
         List<BluetoothDevice> random = new ArrayList<BluetoothDevice>(devices);
         Collections.shuffle(random);
-        for (BluetoothDevice device : random) {
-
-            try {
+        return new BluetoothRequestChain<GetResponse>(mApi, "GET " + get, random) {
 
-                Log.d(TAG, adapter.getName() + " getting socket to " + device.getName());
-
-                // Get BluetoothSocket
-                BluetoothSocket socket = mApi.getManager().getSocket(device);
-                Log.i(TAG, adapter.getName() + " got socket to " + device.getName() + ", sending GET " + get);
-
-                // Send Get
-                BluetoothCommon.write(jo, socket);
+            @Override
+            protected AbstractFuture<GetResponse> send(BluetoothMultiplexer multiplexer) throws IOException {
+                AbstractFuture<GetResponse> response = mApi.getManager().getResponse(get);
+                multiplexer.write(jo);
                 Node.log(LogEntry.newOutgoing("Bluetooth"), get);
+                return response;
+            }
 
-                // Wait for Response
-                GetResponse response = mApi.getManager().getResponse(get).get(BluetoothCommon.getTimeout(), BluetoothCommon.TIMEOUT_UNIT);
+            @Override
+            protected boolean onResponse(BluetoothDevice device, GetResponse response) {
                 Node.log(LogEntry.newIncoming("Bluetooth"), response);
-                if (response.getStatus().isSuccess()) {
-                    return response;
-                }
-
-            } catch (IOException e) {
-                Log.e(TAG, "GET to " + device.getName() + " failed", e);
-            } catch (InterruptedException e) {
-                Log.e(TAG, "GET to " + device.getName() + " failed", e);
-            } catch (ExecutionException e) {
-                Log.e(TAG, "GET to " + device.getName() + " failed", e);
-            } catch (TimeoutException e) {
-                Log.e(TAG, "GET to " + device.getName() + " failed", e);
+                return response.getStatus().isSuccess();
             }
 
-        }
-
-        Log.d(TAG, "after");
+            @Override
+            protected GetResponse onDone() {
+                return new GetResponse.Builder(get).failed().build();
+            }
 
-        return new GetResponse.Builder(get).failed().build();
+        }.start();
 
     }
 
@@ -0,0 +1,671 @@
+package android.netinf.node.services.bluetooth;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.bluetooth.BluetoothSocket;
+import android.netinf.common.BufferPool;
+import android.netinf.common.CacheOutputStream;
+import android.netinf.common.Ndo;
+import android.netinf.common.NetInfException;
+import android.netinf.common.NetInfUtils;
+import android.netinf.common.ProgressListener;
+import android.netinf.node.SettingsActivity;
+import android.netinf.node.cache.ContentStore;
+import android.util.Log;
+
+/**
+ * Carries many outstanding requests over a single Bluetooth socket.
+ * Messages are written as before, prefixed with their length.
+ * If the peer announced {@link #FEATURE} in its hello message, octets are not written right after
+ * their message but as a stream of frames tagged with a stream id. Frames of different streams
+ * and other messages take turns on the socket, so a large transfer does not hold up small requests.
+ * Each stream may have at most {@link #WINDOW} bytes the receiver has not given credit for,
+ * so a sender never runs far ahead of a receiver busy storing octets.
+ * Both peers number the streams they send from 1, so a stream id alone does not name a stream.
+ * Frames about a stream say by their tag whether the stream is sent by the writer of the frame or by its reader.
+ * If the peer announced {@link BluetoothBinaryCodec#FEATURE}, messages are written in binary
+ * using a {@link BluetoothBinaryCodec} instead of as JSON text.
+ * Peers without support never receive frames or binary messages, so they keep working as before.
+ */
+public class BluetoothMultiplexer {
+
+    public static final String TAG = BluetoothMultiplexer.class.getSimpleName();
+
+    /** Feature announced in the hello message if frames are understood. */
+    public static final String FEATURE = "mux";
+    /** Key added to a message that announced a stream, true once the octets are cached. */
+    public static final String RECEIVED = "received";
+
+    /** Maximum number of octets in a frame, small enough to not hold up other messages for long. */
+    public static final int FRAME_SIZE = 16 * 1024;
+    /** Number of octets a stream may send before it needs credit from the receiver. */
+    public static final int WINDOW = 256 * 1024;
+    /** The receiver gives credit once it has stored this many octets of a stream. */
+    public static final int CREDIT_THRESHOLD = WINDOW / 4;
+
+    // Frames are [tag][stream][length][payload], where the tag is negative
+    // A message is [length][payload], where the length is never negative
+    static final int DATA = -1;
+    static final int END = -2;
+    // Sent by the receiver of a stream, the sender may send more
+    static final int CREDIT = -3;
+    // Sent by the sender of a stream, which stopped sending it
+    static final int RESET = -4;
+    // A binary message is [tag][varint length][payload]
+    static final int BINARY = -5;
+    // Sent by the receiver of a stream, the sender has to stop sending it
+    static final int STOP = -6;
+
+    private final BluetoothSocket mSocket;
+    private final String mName;
+    private final DataInputStream mIn;
+    private final DataOutputStream mOut;
+
+    // Fair, so a writer between two frames lets waiting messages go first
+    private final ReentrantLock mWriteLock = new ReentrantLock(true);
+    // Control frames [tag, stream, length] waiting for whoever holds the write lock
+    private final Queue<int[]> mControl = new ConcurrentLinkedQueue<int[]>();
+
+    private final Set<String> mPeerFeatures = new HashSet<String>();
+    private volatile boolean mMultiplexing = false;
+
+    private final BluetoothBinaryCodec mCodec = new BluetoothBinaryCodec();
+
+    private final AtomicInteger mNextStream = new AtomicInteger();
+    private final ConcurrentMap<Integer, OutgoingStream> mOutgoing = new ConcurrentHashMap<Integer, OutgoingStream>();
+    // Only used by the thread reading the socket
+    private final Map<Integer, IncomingStream> mIncoming = new HashMap<Integer, IncomingStream>();
+    private final byte[] mReadBuffer = new byte[BluetoothCommon.BUFFER_SIZE];
+
+    /**
+     * Creates a new {@link BluetoothMultiplexer}.
+     * @param socket
+     *     The connected socket
+     * @throws IOException
+     *     In case the streams of the socket could not be opened
+     */
+    public BluetoothMultiplexer(BluetoothSocket socket) throws IOException {
+        this(socket, socket.getInputStream(), socket.getOutputStream(), socket.getRemoteDevice().getName());
+    }
+
+    /**
+     * Creates a new {@link BluetoothMultiplexer} over given streams.
+     * @param socket
+     *     The socket, only used for messages to a peer that does not support binary messages
+     * @param in
+     *     The input stream of the socket
+     * @param out
+     *     The output stream of the socket
+     * @param name
+     *     The name of the peer, used for logging
+     */
+    BluetoothMultiplexer(BluetoothSocket socket, InputStream in, OutputStream out, String name) {
+        mSocket = socket;
+        mName = name;
+        mIn = new DataInputStream(in);
+        mOut = new DataOutputStream(new BufferedOutputStream(out, FRAME_SIZE + 12));
+    }
+
+    public BluetoothSocket getSocket() {
+        return mSocket;
+    }
+
+    /**
+     * Checks if the peer supports a feature.
+     * @param feature
+     *     The feature
+     * @return
+     *     true if the peer announced the feature in its hello message, otherwise false
+     */
+    public boolean isSupported(String feature) {
+        synchronized (mPeerFeatures) {
+            return mPeerFeatures.contains(feature);
+        }
+    }
+
+    /**
+     * Announces the features of this node to the peer.
+     * Peers not knowing the hello message log and ignore it.
+     * @throws IOException
+     *     In case writing failed
+     */
+    public void writeHello() throws IOException {
+        try {
+            JSONObject jo = new JSONObject();
+            jo.put("type", "hello");
+            JSONArray features = new JSONArray();
+            features.put(FEATURE);
+            features.put(BluetoothBinaryCodec.FEATURE);
+            features.put(BluetoothPublish.FEATURE_BATCH);
+            jo.put("features", features);
+            write(jo);
+        } catch (JSONException e) {
+            throw new IOException("Failed to create hello", e);
+        }
+    }
+
+    /**
+     * Handles the hello message of the peer.
+     * @param jo
+     *     The hello message
+     */
+    public void handleHello(JSONObject jo) {
+        JSONArray features = jo.optJSONArray("features");
+        if (features == null) {
+            return;
+        }
+        synchronized (mPeerFeatures) {
+            for (int i = 0; i < features.length(); i++) {
+                mPeerFeatures.add(features.optString(i));
+            }
+        }
+        mMultiplexing = isSupported(FEATURE);
+        Log.i(TAG, mName + " supports " + features);
+    }
+
+    /**
+     * Writes a message, in binary if the peer supports it.
+     * @param jo
+     *     The message
+     * @throws IOException
+     *     In case writing failed
+     */
+    public void write(JSONObject jo) throws IOException {
+        mWriteLock.lock();
+        try {
+            if (isSupported(BluetoothBinaryCodec.FEATURE) && BluetoothBinaryCodec.canEncode(jo)) {
+                // Encode while holding the lock, the codec must see messages in the order they are written
+                byte[] buffer = mCodec.encode(jo);
+                mOut.writeInt(BINARY);
+                BluetoothBinaryCodec.writeVarint(mOut, buffer.length);
+                mOut.write(buffer);
+                mOut.flush();
+                Log.d(TAG, "Wrote binary " + buffer.length + " bytes to " + mName + ": " + jo);
+            } else {
+                BluetoothCommon.write(jo, mSocket);
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    /**
+     * Writes a message followed by the octets of a file.
+     * If the peer supports frames, the message gets "stream" and "length"
+     * and the octets are written as frames of that stream, taking turns with other writers.
+     * Otherwise the octets are written as by {@link BluetoothCommon#write(JSONObject, File, BluetoothSocket, ProgressListener)},
+     * keeping the socket until done.
+     * @param jo
+     *     The message
+     * @param file
+     *     The file
+     * @param listener
+     *     Receives the progress of the transfer, null for none
+     * @throws IOException
+     *     In case writing failed or the peer stopped the stream
+     */
+    public void write(JSONObject jo, File file, ProgressListener listener) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            write(jo, in.getChannel(), file.length(), listener);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes a message followed by octets held in memory, as {@link #write(JSONObject, File, ProgressListener)}.
+     * @param jo
+     *     The message
+     * @param octets
+     *     The octets
+     * @param listener
+     *     Receives the progress of the transfer, null for none
+     * @throws IOException
+     *     In case writing failed or the peer stopped the stream
+     */
+    public void write(JSONObject jo, byte[] octets, ProgressListener listener) throws IOException {
+        write(jo, Channels.newChannel(new ByteArrayInputStream(octets)), octets.length, listener);
+    }
+
+    private void write(JSONObject jo, ReadableByteChannel in, long length, ProgressListener listener) throws IOException {
+
+        if (!mMultiplexing) {
+            mWriteLock.lock();
+            try {
+                BluetoothCommon.write(jo, in, length, mSocket, listener);
+            } finally {
+                unlock();
+            }
+            return;
+        }
+
+        int id = mNextStream.incrementAndGet();
+        JSONObject announce;
+        try {
+            // Copy, the message may be sent to other peers as well
+            announce = new JSONObject(jo.toString());
+            announce.put("stream", id);
+            announce.put("length", length);
+        } catch (JSONException e) {
+            throw new IOException("Failed to add stream to message", e);
+        }
+
+        OutgoingStream stream = new OutgoingStream();
+        mOutgoing.put(id, stream);
+        byte[] buffer = BufferPool.TRANSFER.acquire();
+        boolean complete = false;
+        try {
+
+            write(announce);
+
+            ByteBuffer frame = ByteBuffer.wrap(buffer, 0, FRAME_SIZE);
+            long written = 0;
+            int read;
+            while ((read = in.read(frame)) != -1) {
+                stream.acquire(read);
+                writeFrame(DATA, id, buffer, read);
+                written += read;
+                if (listener != null) {
+                    listener.onProgress(written, length);
+                }
+                frame.clear();
+                frame.limit(FRAME_SIZE);
+            }
+            writeFrame(END, id, null, 0);
+            complete = true;
+            Log.d(TAG, "Wrote stream " + id + " " + written + " bytes to " + mName);
+
+        } finally {
+            BufferPool.TRANSFER.release(buffer);
+            mOutgoing.remove(id);
+            if (!complete && !stream.isReset()) {
+                // Tell the receiver to discard what it got
+                writeControl(RESET, id, 0);
+            }
+        }
+
+    }
+
+    /**
+     * Reads from the socket until a message is ready to be handled.
+     * Frames are handled as they arrive. A message announcing a stream is returned
+     * once all its octets have been received and cached, with {@link #RECEIVED} set.
+     * Must only be called by the thread reading the socket.
+     * @return
+     *     The next message
+     * @throws IOException
+     *     In case reading failed
+     */
+    public JSONObject read() throws IOException {
+
+        while (true) {
+
+            // Message
+            int tag = mIn.readInt();
+            JSONObject jo = null;
+            if (tag >= 0) {
+                if (tag > BluetoothBinaryCodec.MAX_MESSAGE_SIZE) {
+                    throw new IOException("Message of " + tag + " bytes from " + mName + " is too large");
+                }
+                jo = BluetoothCommon.readJson(mSocket, tag);
+            } else if (tag == BINARY) {
+                byte[] buffer = new byte[BluetoothBinaryCodec.readLength(mIn, BluetoothBinaryCodec.MAX_MESSAGE_SIZE)];
+                mIn.readFully(buffer);
+                jo = mCodec.decode(buffer);
+                Log.d(TAG, "Read binary " + buffer.length + " bytes from " + mName + ": " + jo);
+            }
+            if (jo != null) {
+                if (!jo.has("stream")) {
+                    return jo;
+                }
+                int id = jo.optInt("stream");
+                IncomingStream previous = mIncoming.remove(id);
+                if (previous != null) {
+                    // The peer reused an id, drop the unfinished stream before it leaks its file
+                    Log.w(TAG, "Stream " + id + " from " + mName + " was announced again");
+                    previous.abort();
+                }
+                mIncoming.put(id, new IncomingStream(id, jo));
+                continue;
+            }
+
+            // Frame, a peer never sends more than a frame or a window at once
+            int id = mIn.readInt();
+            int length = mIn.readInt();
+            if (length < 0 || length > (tag == CREDIT ? WINDOW : FRAME_SIZE)) {
+                throw new IOException("Invalid frame length " + length + " from " + mName);
+            }
+            switch (tag) {
+                case DATA:
+                    receive(id, length);
+                    break;
+                case END:
+                    IncomingStream incoming = mIncoming.remove(id);
+                    if (incoming != null && incoming.finish()) {
+                        return incoming.getMessage();
+                    }
+                    break;
+                case CREDIT:
+                    OutgoingStream outgoing = mOutgoing.get(id);
+                    if (outgoing != null) {
+                        outgoing.grant(length);
+                    }
+                    break;
+                case RESET:
+                    // The peer stopped sending its stream
+                    IncomingStream reset = mIncoming.remove(id);
+                    if (reset != null) {
+                        Log.w(TAG, "Stream " + id + " from " + mName + " was reset");
+                        reset.abort();
+                    }
+                    break;
+                case STOP:
+                    // The peer does not want our stream
+                    OutgoingStream stopped = mOutgoing.get(id);
+                    if (stopped != null) {
+                        Log.w(TAG, "Stream " + id + " to " + mName + " was stopped");
+                        stopped.reset();
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown frame " + tag + " from " + mName);
+            }
+
+        }
+
+    }
+
+    /**
+     * Stops all streams, to be called when the socket is closed.
+     * Must only be called by the thread reading the socket.
+     */
+    public void close() {
+        for (IncomingStream incoming : mIncoming.values()) {
+            incoming.abort();
+        }
+        mIncoming.clear();
+        for (OutgoingStream outgoing : mOutgoing.values()) {
+            outgoing.reset();
+        }
+    }
+
+    private void receive(int id, int length) throws IOException {
+
+        IncomingStream incoming = mIncoming.get(id);
+        if (incoming == null) {
+            // Unknown or stopped stream, skip the octets
+            IOUtils.skipFully(mIn, length);
+            return;
+        }
+
+        if (!incoming.receive(mIn, length)) {
+            // Failed to store the octets, tell the sender to stop
+            mIncoming.remove(id);
+            writeControl(STOP, id, 0);
+            return;
+        }
+
+        int credit = incoming.takeCredit();
+        if (credit > 0) {
+            writeControl(CREDIT, id, credit);
+        }
+
+    }
+
+    /**
+     * Writes a control frame without waiting for the write lock, so the reading thread never blocks on a writer.
+     * If another thread holds the lock, it writes the frame before releasing the lock.
+     * Otherwise the frame would wait behind a large transfer of a peer that is itself waiting for it.
+     */
+    private void writeControl(int tag, int id, int length) {
+        mControl.add(new int[] {tag, id, length});
+        if (mWriteLock.tryLock()) {
+            unlock();
+        }
+    }
+
+    /**
+     * Writes the queued control frames and releases the write lock,
+     * taking it again if a control frame was queued meanwhile by a thread that could not get it.
+     */
+    private void unlock() {
+        while (true) {
+            try {
+                int[] frame;
+                while ((frame = mControl.poll()) != null) {
+                    mOut.writeInt(frame[0]);
+                    mOut.writeInt(frame[1]);
+                    mOut.writeInt(frame[2]);
+                }
+                mOut.flush();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write control frames to " + mName, e);
+            }
+            mWriteLock.unlock();
+            if (mControl.isEmpty() || !mWriteLock.tryLock()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Creates the stream the octets of an incoming stream are stored with.
+     * @param ndo
+     *     The Ndo the octets belong to
+     * @return
+     *     The stream
+     * @throws IOException
+     *     In case the stream could not be created
+     */
+    CacheOutputStream newCacheStream(Ndo ndo) throws IOException {
+        return ndo.newCacheStream(SettingsActivity.getPreferenceAsBoolean("pref_key_cache_verify"));
+    }
+
+    /**
+     * Gets how long a stream waits for credit from the receiver.
+     * @return
+     *     The timeout in {@link BluetoothCommon#TIMEOUT_UNIT}
+     */
+    long getTimeout() {
+        return BluetoothCommon.getTimeout();
+    }
+
+    /**
+     * Gets the maximum number of octets accepted in a stream.
+     * @return
+     *     The maximum size in bytes
+     */
+    long getMaxLength() {
+        return ContentStore.getMaxBytes();
+    }
+
+    private void writeFrame(int tag, int id, byte[] payload, int length) throws IOException {
+        mWriteLock.lock();
+        try {
+            mOut.writeInt(tag);
+            mOut.writeInt(id);
+            mOut.writeInt(length);
+            if (payload != null) {
+                mOut.write(payload, 0, length);
+            }
+            mOut.flush();
+        } finally {
+            unlock();
+        }
+    }
+
+    private class OutgoingStream {
+
+        private final Semaphore mCredit = new Semaphore(WINDOW);
+        private volatile boolean mReset = false;
+
+        public void acquire(int octets) throws IOException {
+            try {
+                if (!mCredit.tryAcquire(octets, getTimeout(), BluetoothCommon.TIMEOUT_UNIT)) {
+                    throw new IOException("Timed out waiting for credit from " + mName);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for credit", e);
+            }
+            if (mReset) {
+                throw new IOException("Stream reset by " + mName);
+            }
+        }
+
+        public void grant(int octets) {
+            mCredit.release(octets);
+        }
+
+        public void reset() {
+            mReset = true;
+            // Wake up the writer
+            mCredit.release(WINDOW);
+        }
+
+        public boolean isReset() {
+            return mReset;
+        }
+
+    }
+
+    private class IncomingStream {
+
+        private final int mId;
+        private final JSONObject mMessage;
+        private final ProgressListener mListener;
+        private final long mTotal;
+        // The announced length, or the size of the cache if none was announced
+        private final long mLimit;
+
+        private CacheOutputStream mOut;
+        private long mReceived = 0;
+        private int mUncredited = 0;
+
+        public IncomingStream(int id, JSONObject message) {
+            mId = id;
+            mMessage = message;
+            mListener = BluetoothCommon.newLoggingProgressListener("Stream " + id + " from " + mName);
+            mTotal = message.optLong("length", -1);
+            long max = getMaxLength();
+            mLimit = mTotal >= 0 ? mTotal : max;
+            if (mLimit > max) {
+                Log.e(TAG, "Stream " + id + " of " + mTotal + " bytes is larger than the cache");
+                return;
+            }
+            // The octets of a stream belong to the Ndo of the message
+            try {
+                mOut = newCacheStream(NetInfUtils.toNdo(message));
+            } catch (NetInfException e) {
+                Log.e(TAG, "Stream " + id + " is not for an NDO", e);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to store stream " + id, e);
+            }
+        }
+
+        public JSONObject getMessage() {
+            return mMessage;
+        }
+
+        /**
+         * Copies a frame from the socket to the file.
+         * @return
+         *     true if stored, false if the stream failed and the octets were discarded
+         */
+        public boolean receive(DataInputStream in, int length) throws IOException {
+            if (mOut != null && mReceived + length > mLimit) {
+                Log.e(TAG, "Stream " + mId + " from " + mName + " is longer than " + mLimit + " bytes");
+                abort();
+            }
+            while (length > 0) {
+                int read = in.read(mReadBuffer, 0, Math.min(mReadBuffer.length, length));
+                if (read == -1) {
+                    throw new EOFException("Socket closed in stream " + mId);
+                }
+                length -= read;
+                if (mOut == null) {
+                    continue;
+                }
+                try {
+                    mOut.write(mReadBuffer, 0, read);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to store stream " + mId, e);
+                    abort();
+                    continue;
+                }
+                mReceived += read;
+                mUncredited += read;
+                mListener.onProgress(mReceived, mTotal);
+            }
+            return mOut != null;
+        }
+
+        public int takeCredit() {
+            if (mUncredited < CREDIT_THRESHOLD) {
+                return 0;
+            }
+            int credit = mUncredited;
+            mUncredited = 0;
+            return credit;
+        }
+
+        public boolean finish() {
+            if (mOut == null) {
+                return false;
+            }
+            if (mTotal >= 0 && mReceived != mTotal) {
+                Log.e(TAG, "Stream " + mId + " from " + mName + " ended after " + mReceived + " of " + mTotal + " bytes");
+                abort();
+                return false;
+            }
+            try {
+                mOut.commit();
+                mMessage.put(RECEIVED, true);
+                Log.d(TAG, "Read stream " + mId + " " + mReceived + " bytes from " + mName);
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to store stream " + mId, e);
+            } catch (JSONException e) {
+                Log.e(TAG, "Failed to store stream " + mId, e);
+            }
+            abort();
+            return false;
+        }
+
+        public void abort() {
+            IOUtils.closeQuietly(mOut);
+            mOut = null;
+        }
+
+    }
+
+}
@@ -1,27 +1,35 @@
 package android.netinf.node.services.bluetooth;
 
 import java.io.IOException;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
+import android.netinf.common.FutureUtils;
 import android.netinf.common.Locator;
 import android.netinf.common.Ndo;
 import android.netinf.common.NetInfStatus;
+import android.netinf.common.NetInfUtils;
 import android.netinf.messages.Publish;
 import android.netinf.messages.PublishResponse;
-import android.netinf.node.publish.PublishService;
+import android.netinf.node.publish.AsyncPublishService;
+import android.netinf.node.publish.BatchPublishService;
 import android.util.Log;
 
-public class BluetoothPublish implements PublishService {
+import com.google.common.util.concurrent.AbstractFuture;
+
+public class BluetoothPublish implements BatchPublishService, AsyncPublishService {
 
     public static final String TAG = BluetoothPublish.class.getSimpleName();
 
+    /** Feature announced in the hello message if publish-batch messages are understood. */
+    public static final String FEATURE_BATCH = "publish-batch";
+
     private BluetoothApi mApi;
 
     public BluetoothPublish(BluetoothApi api) {
@@ -30,54 +38,167 @@ public class BluetoothPublish implements PublishService {
 
     @Override
     public PublishResponse perform(Publish publish) {
-            Log.i(TAG, "Bluetooth PUBLISH " + publish);
-
-            // Create JSON representation of Publish
-            JSONObject jo = null;
-            try {
-                jo = createPublishJson(publish);
-            } catch (JSONException e) {
-                Log.wtf(TAG, "Failed to create JSON representation of Publish", e);
-                return new PublishResponse.Builder(publish).failed().build();
+        return FutureUtils.getOrElse(performAsync(publish), new PublishResponse.Builder(publish).failed().build());
+    }
+
+    @Override
+    public AbstractFuture<PublishResponse> performAsync(final Publish publish) {
+        Log.i(TAG, "Bluetooth PUBLISH " + publish);
+
+        // Create JSON representation of Publish
+        final JSONObject jo;
+        try {
+            jo = createPublishJson(publish);
+        } catch (JSONException e) {
+            Log.wtf(TAG, "Failed to create JSON representation of Publish", e);
+            return FutureUtils.immediateFuture(new PublishResponse.Builder(publish).failed().build());
+        }
+
+        // Publish to all relevant devices
+        return new BluetoothRequestChain<PublishResponse>(mApi, "PUBLISH " + publish, mApi.getBluetoothDevices()) {
+
+            private NetInfStatus mStatus = NetInfStatus.FAILED;
+
+            @Override
+            protected AbstractFuture<PublishResponse> send(BluetoothMultiplexer multiplexer) throws IOException {
+                AbstractFuture<PublishResponse> response = mApi.getManager().getResponse(publish);
+                if (publish.isFullPut()) {
+                    multiplexer.write(jo, publish.getNdo().getOctets(), null);
+                } else {
+                    multiplexer.write(jo);
+                }
+                return response;
+            }
+
+            @Override
+            protected boolean onResponse(BluetoothDevice device, PublishResponse response) {
+                if (response.getStatus().isSuccess()) {
+                    mStatus = NetInfStatus.OK;
+                    Log.i(TAG, "PUBLISH to " + device.getName() + " succeeded");
+                } else {
+                    Log.e(TAG, "PUBLISH to " + device.getName() + " failed: " + response);
+                }
+                return false;
+            }
+
+            @Override
+            protected PublishResponse onDone() {
+                return new PublishResponse.Builder(publish).status(mStatus).build();
             }
 
-            // Publish to all relevant devices
-            NetInfStatus status = NetInfStatus.FAILED;
-            for (BluetoothDevice device : mApi.getBluetoothDevices()) {
+        }.start();
+    }
+
+    @Override
+    public List<PublishResponse> perform(List<Publish> publishes) {
+        return FutureUtils.getOrElse(performAllAsync(publishes), failed(publishes));
+    }
+
+    /**
+     * Publishes many Ndos to each device using a single socket.
+     * Devices supporting {@link #FEATURE_BATCH} get the Publishes without octets in a single message,
+     * other devices and full puts get one message per Publish, all written without waiting for responses.
+     * @param publishes
+     *     The Publishes
+     * @return
+     *     A Future with a PublishResponse for each Publish, in the same order
+     */
+    public AbstractFuture<List<PublishResponse>> performAllAsync(final List<Publish> publishes) {
+        Log.i(TAG, "Bluetooth PUBLISH " + publishes.size() + " NDO(s)");
+
+        // Create JSON representation of each Publish
+        final List<JSONObject> jos = new ArrayList<JSONObject>(publishes.size());
+        try {
+            for (Publish publish : publishes) {
+                jos.add(createPublishJson(publish));
+            }
+        } catch (JSONException e) {
+            Log.wtf(TAG, "Failed to create JSON representation of Publish", e);
+            return FutureUtils.immediateFuture(failed(publishes));
+        }
 
-                try {
+        // Publish to all relevant devices
+        return new BluetoothRequestChain<List<PublishResponse>>(mApi, "PUBLISH of " + publishes.size() + " NDO(s)", mApi.getBluetoothDevices()) {
 
-                    // Connect
-                    BluetoothSocket socket = mApi.getManager().getSocket(device);
+            private NetInfStatus[] mStatuses = newFailedStatuses(publishes.size());
 
-                    // Send
+            @Override
+            protected AbstractFuture<List<PublishResponse>> send(BluetoothMultiplexer multiplexer) throws IOException {
+
+                List<AbstractFuture<PublishResponse>> responses = new ArrayList<AbstractFuture<PublishResponse>>(publishes.size());
+                for (Publish publish : publishes) {
+                    responses.add(mApi.getManager().getResponse(publish));
+                }
+
+                boolean batch = multiplexer.isSupported(FEATURE_BATCH);
+                JSONArray items = new JSONArray();
+                for (int i = 0; i < publishes.size(); i++) {
+                    Publish publish = publishes.get(i);
                     if (publish.isFullPut()) {
-                        BluetoothCommon.write(jo, publish.getNdo().getOctets(), socket);
+                        multiplexer.write(jos.get(i), publish.getNdo().getOctets(), null);
+                    } else if (batch) {
+                        items.put(jos.get(i));
                     } else {
-                        BluetoothCommon.write(jo, socket);
+                        multiplexer.write(jos.get(i));
                     }
+                }
+                if (items.length() > 0) {
+                    multiplexer.write(createPublishBatchJson(items));
+                }
 
-                    // Receive
-                    PublishResponse response = mApi.getManager().getResponse(publish).get(BluetoothCommon.getTimeout(), BluetoothCommon.TIMEOUT_UNIT);
-                    if (response.getStatus().isSuccess()) {
-                        status = NetInfStatus.OK;
-                        Log.i(TAG, "PUBLISH to " + device.getName() + " succeeded");
-                    } else {
-                        Log.e(TAG, "PUBLISH to " + device.getName() + " failed: " + response);
-                    }
+                return FutureUtils.successfulAsList(responses);
+
+            }
 
-                } catch (IOException e) {
-                    Log.e(TAG, "PUBLISH to " + device.getName() + " failed", e);
-                } catch (InterruptedException e) {
-                    Log.e(TAG, "PUBLISH to " + device.getName() + " failed", e);
-                } catch (ExecutionException e) {
-                    Log.e(TAG, "PUBLISH to " + device.getName() + " failed", e);
-                } catch (TimeoutException e) {
-                    Log.e(TAG, "PUBLISH to " + device.getName() + " failed", e);
+            @Override
+            protected boolean onResponse(BluetoothDevice device, List<PublishResponse> responses) {
+                int succeeded = 0;
+                for (int i = 0; i < responses.size(); i++) {
+                    if (responses.get(i) != null && responses.get(i).getStatus().isSuccess()) {
+                        mStatuses[i] = NetInfStatus.OK;
+                        succeeded++;
+                    }
                 }
+                Log.i(TAG, "PUBLISH to " + device.getName() + " succeeded for " + succeeded + "/" + responses.size() + " NDO(s)");
+                return false;
+            }
 
+            @Override
+            protected List<PublishResponse> onDone() {
+                List<PublishResponse> publishResponses = new ArrayList<PublishResponse>(publishes.size());
+                for (int i = 0; i < publishes.size(); i++) {
+                    publishResponses.add(new PublishResponse.Builder(publishes.get(i)).status(mStatuses[i]).build());
+                }
+                return publishResponses;
             }
-            return new PublishResponse.Builder(publish).status(status).build();
+
+        }.start();
+    }
+
+    private static NetInfStatus[] newFailedStatuses(int size) {
+        NetInfStatus[] statuses = new NetInfStatus[size];
+        Arrays.fill(statuses, NetInfStatus.FAILED);
+        return statuses;
+    }
+
+    private static List<PublishResponse> failed(List<Publish> publishes) {
+        List<PublishResponse> publishResponses = new ArrayList<PublishResponse>(publishes.size());
+        for (Publish publish : publishes) {
+            publishResponses.add(new PublishResponse.Builder(publish).failed().build());
+        }
+        return publishResponses;
+    }
+
+    private JSONObject createPublishBatchJson(JSONArray items) throws IOException {
+        try {
+            JSONObject jo = new JSONObject();
+            jo.put("type", "publish-batch");
+            jo.put("msgid", NetInfUtils.newId());
+            jo.put("publishes", items);
+            return jo;
+        } catch (JSONException e) {
+            throw new IOException("Failed to create JSON representation of batch", e);
+        }
     }
 
     private JSONObject createPublishJson(Publish publish) throws JSONException {
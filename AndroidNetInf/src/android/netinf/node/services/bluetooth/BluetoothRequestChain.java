@@ -0,0 +1,165 @@
+package android.netinf.node.services.bluetooth;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.bluetooth.BluetoothDevice;
+import android.netinf.common.FutureUtils;
+import android.netinf.node.NodeExecutors;
+import android.util.Log;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Sends a request to Bluetooth devices, one device at a time.
+ * Devices are tried in the order of {@link BluetoothCommon#SCOREBOARD}, skipping dead devices.
+ * Connecting and writing is done on a service thread,
+ * waiting for a response does not occupy a thread.
+ * @param <V>
+ *     The response type
+ */
+abstract class BluetoothRequestChain<V> {
+
+    public static final String TAG = BluetoothRequestChain.class.getSimpleName();
+
+    private BluetoothApi mApi;
+    private String mDescription;
+    private Iterator<BluetoothDevice> mDevices;
+    private SettableFuture<V> mResult = SettableFuture.create();
+
+    /**
+     * Creates a new {@link BluetoothRequestChain}.
+     * @param api
+     *     The {@link BluetoothApi}
+     * @param description
+     *     Description of the request used for logging
+     * @param devices
+     *     The devices to send the request to, ties in score keep this order
+     */
+    BluetoothRequestChain(BluetoothApi api, String description, Collection<BluetoothDevice> devices) {
+        mApi = api;
+        mDescription = description;
+        mDevices = BluetoothCommon.SCOREBOARD.order(devices).iterator();
+    }
+
+    /**
+     * Registers for the response and writes the request to the socket.
+     * @param multiplexer
+     *     The {@link BluetoothMultiplexer} of the socket to the device
+     * @return
+     *     A Future that is set when the response arrives
+     * @throws IOException
+     *     In case writing failed
+     */
+    protected abstract AbstractFuture<V> send(BluetoothMultiplexer multiplexer) throws IOException;
+
+    /**
+     * Handles a response from a device.
+     * Called in the thread that received the response and must not block.
+     * @param device
+     *     The device that responded
+     * @param response
+     *     The response
+     * @return
+     *     true if the request is done, false to continue with the next device
+     */
+    protected abstract boolean onResponse(BluetoothDevice device, V response);
+
+    /**
+     * Creates the result once all devices have been tried.
+     * @return
+     *     The result
+     */
+    protected abstract V onDone();
+
+    /**
+     * Starts sending the request.
+     * @return
+     *     A Future with the result, cancelling it stops the request after the current device
+     */
+    public AbstractFuture<V> start() {
+        next();
+        return mResult;
+    }
+
+    private void next() {
+
+        // Cancelled
+        if (mResult.isDone()) {
+            return;
+        }
+
+        // Tried all devices
+        if (!mDevices.hasNext()) {
+            mResult.set(onDone());
+            return;
+        }
+
+        final BluetoothDevice device = mDevices.next();
+        try {
+            NodeExecutors.SERVICE.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendTo(device);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, mDescription + " could not be sent, too many services in progress");
+            mResult.set(onDone());
+        }
+
+    }
+
+    private void sendTo(final BluetoothDevice device) {
+
+        // Cancelled while waiting for a thread
+        if (mResult.isDone()) {
+            return;
+        }
+
+        // Connect and send
+        final long start = System.currentTimeMillis();
+        final long timeout = BluetoothCommon.getTimeout();
+        final AbstractFuture<V> response;
+        try {
+            BluetoothMultiplexer multiplexer = mApi.getManager().getMultiplexer(device);
+            Log.d(TAG, mDescription + " sending to " + device.getName());
+            response = FutureUtils.withTimeout(send(multiplexer), timeout, BluetoothCommon.TIMEOUT_UNIT, NodeExecutors.TIMER);
+        } catch (IOException e) {
+            BluetoothCommon.SCOREBOARD.failure(device, timeout);
+            Log.e(TAG, mDescription + " to " + device.getName() + " failed", e);
+            next();
+            return;
+        }
+
+        // Receive
+        response.addListener(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    V value = response.get();
+                    BluetoothCommon.SCOREBOARD.success(device, System.currentTimeMillis() - start);
+                    if (onResponse(device, value)) {
+                        mResult.set(value);
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    Log.e(TAG, mDescription + " to " + device.getName() + " failed", e);
+                } catch (ExecutionException e) {
+                    BluetoothCommon.SCOREBOARD.failure(device, timeout);
+                    Log.e(TAG, mDescription + " to " + device.getName() + " failed", e.getCause());
+                } catch (CancellationException e) {
+                    Log.e(TAG, mDescription + " to " + device.getName() + " failed", e);
+                }
+                next();
+            }
+        }, FutureUtils.sameThreadExecutor());
+
+    }
+
+}
@@ -1,21 +1,22 @@
 package android.netinf.node.services.bluetooth;
 
 import java.io.IOException;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeoutException;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
+import android.netinf.common.FutureUtils;
 import android.netinf.messages.Search;
 import android.netinf.messages.SearchResponse;
+import android.netinf.node.search.AsyncSearchService;
 import android.netinf.node.search.SearchService;
 import android.util.Log;
 
-public class BluetoothSearch implements SearchService {
+import com.google.common.util.concurrent.AbstractFuture;
+
+public class BluetoothSearch implements SearchService, AsyncSearchService {
 
     public static final String TAG = BluetoothSearch.class.getSimpleName();
 
@@ -27,43 +28,43 @@ public class BluetoothSearch implements SearchService {
 
     @Override
     public SearchResponse perform(Search search) {
+        return FutureUtils.getOrElse(performAsync(search), new SearchResponse.Builder(search).build());
+    }
+
+    @Override
+    public AbstractFuture<SearchResponse> performAsync(final Search search) {
         Log.i(TAG, "Bluetooth SEARCH " + search);
 
         // Create JSON representation of Search
-        JSONObject jo = null;
+        final JSONObject jo;
         try {
             jo = createSearchJson(search);
         } catch (JSONException e) {
             Log.wtf(TAG, "Failed to create JSON representation of Search", e);
-            return new SearchResponse.Builder(search).build();
+            return FutureUtils.immediateFuture(new SearchResponse.Builder(search).build());
         }
 
-        // Search to all relevant devices
-        for (BluetoothDevice device : mApi.getBluetoothDevices()) {
-
-            try {
+        // Search to all relevant devices until one responds
+        return new BluetoothRequestChain<SearchResponse>(mApi, "SEARCH " + search, mApi.getBluetoothDevices()) {
 
-                // Connect
-                BluetoothSocket socket = mApi.getManager().getSocket(device);
-
-                // Send
-                BluetoothCommon.write(jo, socket);
+            @Override
+            protected AbstractFuture<SearchResponse> send(BluetoothMultiplexer multiplexer) throws IOException {
+                AbstractFuture<SearchResponse> response = mApi.getManager().getResponse(search);
+                multiplexer.write(jo);
+                return response;
+            }
 
-                // Receive
-                return mApi.getManager().getResponse(search).get(BluetoothCommon.getTimeout(), BluetoothCommon.TIMEOUT_UNIT);
+            @Override
+            protected boolean onResponse(BluetoothDevice device, SearchResponse response) {
+                return true;
+            }
 
-            } catch (IOException e) {
-                Log.e(TAG, "SEARCH to " + device.getName() + " failed", e);
-            } catch (InterruptedException e) {
-                Log.e(TAG, "SEARCH to " + device.getName() + " failed", e);
-            } catch (ExecutionException e) {
-                Log.e(TAG, "SEARCH to " + device.getName() + " failed", e);
-            } catch (TimeoutException e) {
-                Log.e(TAG, "SEARCH to " + device.getName() + " failed", e);
+            @Override
+            protected SearchResponse onDone() {
+                return new SearchResponse.Builder(search).build();
             }
-        }
 
-        return new SearchResponse.Builder(search).build();
+        }.start();
 
     }
 
@@ -1,10 +1,11 @@
 package android.netinf.node.services.bluetooth;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.io.IOUtils;
@@ -13,6 +14,8 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.bluetooth.BluetoothSocket;
+import android.netinf.common.CacheOutputStream;
+import android.netinf.common.FutureUtils;
 import android.netinf.common.Locator;
 import android.netinf.common.Metadata;
 import android.netinf.common.Ndo;
@@ -26,22 +29,25 @@ import android.netinf.messages.PublishResponse;
 import android.netinf.messages.Search;
 import android.netinf.messages.SearchResponse;
 import android.netinf.node.Node;
+import android.netinf.node.NodeExecutors;
+import android.netinf.node.SettingsActivity;
 import android.util.Log;
 
 public class BluetoothSocketHandler implements Runnable {
 
     public static final String TAG = BluetoothSocketHandler.class.getSimpleName();
 
-    private ExecutorService mMessageExecutor = Executors.newCachedThreadPool();
     private BluetoothSocketManager mManager;
     private BluetoothApi mApi;
+    private BluetoothMultiplexer mMultiplexer;
     private BluetoothSocket mSocket;
     private Exception mException;
 
-    public BluetoothSocketHandler(BluetoothSocketManager manager, BluetoothApi api, BluetoothSocket socket) {
+    public BluetoothSocketHandler(BluetoothSocketManager manager, BluetoothApi api, BluetoothMultiplexer multiplexer) {
         mManager = manager;
         mApi = api;
-        mSocket = socket;
+        mMultiplexer = multiplexer;
+        mSocket = multiplexer.getSocket();
     }
 
     @Override
@@ -60,6 +66,7 @@ public class BluetoothSocketHandler implements Runnable {
             Log.e(TAG, "Failed to handle request", e);
         } finally {
             mManager.removeSocket(mSocket);
+            mMultiplexer.close();
             IOUtils.closeQuietly(mSocket);
         }
 
@@ -71,19 +78,25 @@ public class BluetoothSocketHandler implements Runnable {
 
     private void handleMessage() throws IOException, JSONException, NetInfException {
 
-        // Read the JSON part of the next message
-        JSONObject message = BluetoothCommon.readJson(mSocket);
+        // Read the JSON part of the next message, handling any frames in between
+        JSONObject message = mMultiplexer.read();
 
         // Switch on message type
         String type = message.getString("type");
-        if (type.equals("publish")) {
+        if (type.equals("hello")) {
+            mMultiplexer.handleHello(message);
+        } else if (type.equals("publish")) {
             handlePublish(message);
+        } else if (type.equals("publish-batch")) {
+            handlePublishBatch(message);
         } else if (type.equals("get")) {
             handleGet(message);
         } else if (type.equals("search")) {
             handleSearch(message);
         } else if (type.equals("publish-response")) {
             handlePublishResponse(message);
+        } else if (type.equals("publish-batch-response")) {
+            handlePublishBatchResponse(message);
         } else if (type.equals("get-response")) {
             handleGetResponse(message);
         } else if (type.equals("search-response")) {
@@ -109,8 +122,7 @@ public class BluetoothSocketHandler implements Runnable {
 
         // Handle the fullput case
         if (jo.getBoolean("octets") == true) {
-            byte[] octets = BluetoothCommon.readFile(mSocket);
-            ndo.cache(octets);
+            readOctets(jo, ndo, "PUBLISH " + ndo.getUri());
             publishBuilder.fullPut();
         }
 
@@ -121,13 +133,18 @@ public class BluetoothSocketHandler implements Runnable {
         Future<PublishResponse> future = Node.submit(publish);
 
         // Write the result (asynchronously)
-        writePublishResponse(future);
+        try {
+            NodeExecutors.BLUETOOTH_MESSAGE.execute(newPublishResponseWriter(future));
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Failed to handle PUBLISH, too many messages in progress");
+            newPublishResponseWriter(FutureUtils.immediateFuture(new PublishResponse.Builder(publish).failed().build())).run();
+        }
 
     }
 
-    private void writePublishResponse(final Future<PublishResponse> future) {
+    private Runnable newPublishResponseWriter(final Future<PublishResponse> future) {
 
-        mMessageExecutor.execute(new Runnable() {
+        return new Runnable() {
             @Override
             public void run() {
                 try {
@@ -139,7 +156,97 @@ public class BluetoothSocketHandler implements Runnable {
                     responseJo.put("type", "publish-response");
                     responseJo.put("msgid", publishResponse.getId());
                     responseJo.put("status", publishResponse.getStatus().getCode());
-                    BluetoothCommon.write(responseJo, mSocket);
+                    mMultiplexer.write(responseJo);
+
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "Failed to handle PUBLISH", e);
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "Failed to handle PUBLISH", e);
+                } catch (TimeoutException e) {
+                    Log.e(TAG, "Failed to handle PUBLISH", e);
+                } catch (IOException e) {
+                    // Information sent over socket is incorrect
+                    setException(e);
+                } catch (JSONException e) {
+                    // Information sent over socket is incorrect
+                    setException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Puts the octets following a message in place,
+     * either already received in a stream or still to be read from the socket.
+     */
+    private void readOctets(JSONObject jo, Ndo ndo, String description) throws IOException {
+        if (jo.optBoolean(BluetoothMultiplexer.RECEIVED, false)) {
+            // Already cached by the multiplexer
+            return;
+        }
+        CacheOutputStream out = ndo.newCacheStream(SettingsActivity.getPreferenceAsBoolean("pref_key_cache_verify"));
+        try {
+            BluetoothCommon.readFile(mSocket, jo, out, BluetoothCommon.newLoggingProgressListener(description));
+            out.commit();
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    private void handlePublishBatch(JSONObject jo) throws IOException, NetInfException, JSONException {
+
+        // Convert JSON to Publishes, none of them with octets
+        JSONArray items = jo.getJSONArray("publishes");
+        List<Publish> publishes = new ArrayList<Publish>(items.length());
+        for (int i = 0; i < items.length(); i++) {
+            JSONObject item = items.getJSONObject(i);
+            publishes.add(new Publish.Builder(mApi, NetInfUtils.toNdo(item))
+                    .id(item.getString("msgid"))
+                    .hoplimit(item.getInt("hoplimit"))
+                    .build());
+        }
+        Log.i(TAG, "Bluetooth API received PUBLISH of " + publishes.size() + " NDO(s)");
+
+        // Submit the Publishes for execution
+        Future<List<PublishResponse>> future = Node.submitAll(publishes);
+
+        // Write the results (asynchronously)
+        String id = jo.getString("msgid");
+        try {
+            NodeExecutors.BLUETOOTH_MESSAGE.execute(newPublishBatchResponseWriter(id, future));
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Failed to handle PUBLISH, too many messages in progress");
+            List<PublishResponse> failed = new ArrayList<PublishResponse>(publishes.size());
+            for (Publish publish : publishes) {
+                failed.add(new PublishResponse.Builder(publish).failed().build());
+            }
+            newPublishBatchResponseWriter(id, FutureUtils.immediateFuture(failed)).run();
+        }
+
+    }
+
+    private Runnable newPublishBatchResponseWriter(final String id, final Future<List<PublishResponse>> future) {
+
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Wait for PublishResponses with timeout
+                    List<PublishResponse> publishResponses = future.get(BluetoothCommon.getTimeout(), BluetoothCommon.TIMEOUT_UNIT);
+
+                    // Convert PublishResponses into JSON and send it
+                    JSONArray responses = new JSONArray();
+                    for (PublishResponse publishResponse : publishResponses) {
+                        JSONObject response = new JSONObject();
+                        response.put("msgid", publishResponse.getId());
+                        response.put("status", publishResponse.getStatus().getCode());
+                        responses.put(response);
+                    }
+                    JSONObject responseJo = new JSONObject();
+                    responseJo.put("type", "publish-batch-response");
+                    responseJo.put("msgid", id);
+                    responseJo.put("responses", responses);
+                    mMultiplexer.write(responseJo);
 
                 } catch (InterruptedException e) {
                     Log.e(TAG, "Failed to handle PUBLISH", e);
@@ -155,7 +262,7 @@ public class BluetoothSocketHandler implements Runnable {
                     setException(e);
                 }
             }
-        });
+        };
     }
 
     private void handleGet(JSONObject jo) throws IOException, NetInfException, JSONException {
@@ -176,13 +283,18 @@ public class BluetoothSocketHandler implements Runnable {
         Future<GetResponse> future = Node.submit(get);
 
         // Write the result (asynchronously)
-        writeGetResponse(get, future);
+        try {
+            NodeExecutors.BLUETOOTH_MESSAGE.execute(newGetResponseWriter(get, future));
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Failed to handle GET, too many messages in progress");
+            newGetResponseWriter(get, FutureUtils.immediateFuture(new GetResponse.Builder(get).failed().build())).run();
+        }
 
     }
 
-    private void writeGetResponse(final Get get, final Future<GetResponse> future) {
+    private Runnable newGetResponseWriter(final Get get, final Future<GetResponse> future) {
 
-        mMessageExecutor.execute(new Runnable() {
+        return new Runnable() {
             @Override
             public void run() {
                 try {
@@ -198,22 +310,27 @@ public class BluetoothSocketHandler implements Runnable {
                         // If Get failed
                         jo.put("status", NetInfStatus.FAILED.getCode());
                         jo.put("uri", get.getNdo().getCanonicalUri());
-                        BluetoothCommon.write(jo, mSocket);
+                        mMultiplexer.write(jo);
                     } else {
                         // If Get succeeded
                         jo.put("status", NetInfStatus.OK.getCode());
                         jo.put("uri", getResponse.getNdo().getCanonicalUri());
-                        if (get.getNdo().isCached()) {
+                        byte[] hot = Node.getHotOctets(get.getNdo());
+                        if (hot != null) {
+                            // If popular, add octets from memory
+                            jo.put("octets", true);
+                            mMultiplexer.write(jo, hot, null);
+                        } else if (get.getNdo().isCached()) {
                             // If cached, add octets
                             jo.put("octets", true);
-                            BluetoothCommon.write(jo, get.getNdo().getOctets(), mSocket);
+                            mMultiplexer.write(jo, get.getNdo().getOctets(), null);
                         } else {
                             // Otherwise, add locators
                             JSONArray locators = new JSONArray();
                             for (Locator locator : get.getNdo().getLocators()) {
                                 locators.put(locator.toString());
                             }
-                            BluetoothCommon.write(jo, mSocket);
+                            mMultiplexer.write(jo);
                         }
                     }
 
@@ -231,16 +348,13 @@ public class BluetoothSocketHandler implements Runnable {
                     setException(e);
                 }
             }
-        });
-
-
-
+        };
 
     }
 
-    private void writeSearchResponse(final Future<SearchResponse> future) {
+    private Runnable newSearchResponseWriter(final Future<SearchResponse> future) {
 
-        mMessageExecutor.execute(new Runnable() {
+        return new Runnable() {
             @Override
             public void run() {
                 try {
@@ -258,7 +372,7 @@ public class BluetoothSocketHandler implements Runnable {
                     if (searchResponse.getStatus().isError()) {
                         // If Search failed
                         responseJo.put("status", NetInfStatus.FAILED.getCode());
-                        BluetoothCommon.write(responseJo, mSocket);
+                        mMultiplexer.write(responseJo);
                     } else {
                         // If Search succeeded
                         responseJo.put("status", NetInfStatus.OK.getCode());
@@ -269,7 +383,7 @@ public class BluetoothSocketHandler implements Runnable {
                         }
                     }
 
-                    BluetoothCommon.write(responseJo, mSocket);
+                    mMultiplexer.write(responseJo);
 
                 } catch (InterruptedException e) {
                     Log.e(TAG, "Failed to handle GET", e);
@@ -285,7 +399,7 @@ public class BluetoothSocketHandler implements Runnable {
                     setException(e);
                 }
             }
-        });
+        };
     }
 
     private void handleSearch(JSONObject jo) throws IOException, JSONException {
@@ -311,7 +425,12 @@ public class BluetoothSocketHandler implements Runnable {
         Future<SearchResponse> future = Node.submit(search);
 
         // Write the result (asynchronously)
-        writeSearchResponse(future);
+        try {
+            NodeExecutors.BLUETOOTH_MESSAGE.execute(newSearchResponseWriter(future));
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Failed to handle SEARCH, too many messages in progress");
+            newSearchResponseWriter(FutureUtils.immediateFuture(new SearchResponse.Builder(search).failed().build())).run();
+        }
 
     }
 
@@ -329,6 +448,24 @@ public class BluetoothSocketHandler implements Runnable {
 
     }
 
+    private void handlePublishBatchResponse(JSONObject jo) throws IOException {
+
+        try {
+
+            JSONArray responses = jo.getJSONArray("responses");
+            for (int i = 0; i < responses.length(); i++) {
+                JSONObject response = responses.getJSONObject(i);
+                String id = response.getString("msgid");
+                NetInfStatus status = NetInfStatus.valueOf(response.getInt("status"));
+                mManager.addResponse(new PublishResponse.Builder(id).status(status).build());
+            }
+
+        } catch (JSONException e) {
+            throw new IOException("Failed to handle PUBLISH-BATCH-RESP", e);
+        }
+
+    }
+
     private void handleGetResponse(JSONObject jo) throws IOException {
 
         try {
@@ -355,8 +492,7 @@ public class BluetoothSocketHandler implements Runnable {
             Ndo ndo = builder.build();
 
             if (jo.has("octets") && jo.getBoolean("octets")) {
-                byte[] octets = BluetoothCommon.readFile(mSocket);
-                ndo.cache(octets);
+                readOctets(jo, ndo, "GET-RESP " + ndo.getUri());
             }
 
             GetResponse getResponse = new GetResponse.Builder(id).ok(ndo).build();
@@ -1,22 +1,30 @@
 package android.netinf.node.services.bluetooth;
 
 import java.io.IOException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+
+import org.apache.commons.io.IOUtils;
 
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
+import android.netinf.common.FutureUtils;
 import android.netinf.messages.Get;
 import android.netinf.messages.GetResponse;
 import android.netinf.messages.Publish;
 import android.netinf.messages.PublishResponse;
+import android.netinf.messages.Request;
+import android.netinf.messages.Response;
 import android.netinf.messages.Search;
 import android.netinf.messages.SearchResponse;
+import android.netinf.node.NodeExecutors;
 import android.netinf.node.get.InProgressTracker;
 
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
+import com.google.common.util.concurrent.AbstractFuture;
 import com.google.common.util.concurrent.SettableFuture;
 
 public class BluetoothSocketManager {
@@ -25,8 +33,8 @@ public class BluetoothSocketManager {
 
     private BluetoothApi mApi;
 
-    private ExecutorService mExecutor = Executors.newCachedThreadPool();
     private BiMap<BluetoothDevice, BluetoothSocket> mSockets = HashBiMap.create();
+    private Map<BluetoothSocket, BluetoothMultiplexer> mMultiplexers = new HashMap<BluetoothSocket, BluetoothMultiplexer>();
 
     private InProgressTracker<Publish, PublishResponse> mPublishes = new InProgressTracker<Publish, PublishResponse>();
     private InProgressTracker<Get, GetResponse> mGets = new InProgressTracker<Get, GetResponse>();
@@ -36,38 +44,83 @@ public class BluetoothSocketManager {
         mApi = api;
     }
 
-    public synchronized void addSocket(BluetoothSocket socket) {
+    public synchronized void addSocket(BluetoothSocket socket) throws IOException {
         // Store socket
+        BluetoothMultiplexer multiplexer = new BluetoothMultiplexer(socket);
         mSockets.put(socket.getRemoteDevice(), socket);
+        mMultiplexers.put(socket, multiplexer);
         // Start reading socket
-        mExecutor.execute(new BluetoothSocketHandler(this, mApi, socket));
+        try {
+            NodeExecutors.BLUETOOTH_SOCKET.execute(new BluetoothSocketHandler(this, mApi, multiplexer));
+        } catch (RejectedExecutionException e) {
+            removeSocket(socket);
+            IOUtils.closeQuietly(socket);
+            throw new IOException("Too many Bluetooth sockets, closed socket to " + socket.getRemoteDevice().getName(), e);
+        }
+        // Tell the other side what we support
+        multiplexer.writeHello();
     }
 
     public synchronized void removeSocket(BluetoothSocket socket) {
         mSockets.inverse().remove(socket);
+        mMultiplexers.remove(socket);
     }
 
-    public synchronized BluetoothSocket getSocket(BluetoothDevice device) throws IOException {
-        if (mSockets.containsKey(device)) {
-            return mSockets.get(device);
-        } else {
-            BluetoothSocket socket = BluetoothCommon.connect(device);
-            addSocket(socket);
-            return socket;
+    /**
+     * Gets the {@link BluetoothMultiplexer} of the socket to a device, connecting if needed.
+     * All requests to the device share the socket.
+     * @param device
+     *     The device
+     * @return
+     *     The {@link BluetoothMultiplexer}
+     * @throws IOException
+     *     In case connecting failed
+     */
+    public synchronized BluetoothMultiplexer getMultiplexer(BluetoothDevice device) throws IOException {
+        if (!mSockets.containsKey(device)) {
+            addSocket(BluetoothCommon.connect(device));
         }
+        return mMultiplexers.get(mSockets.get(device));
     }
 
     // Assumption: Requests are always received before Responses.
-    public Future<PublishResponse> getResponse(Publish publish) {
-        return mPublishes.newFutureOrInProgress(publish);
+    public AbstractFuture<PublishResponse> getResponse(Publish publish) {
+        return track(mPublishes, publish);
     }
 
-    public Future<GetResponse> getResponse(Get get) {
-        return mGets.newFutureOrInProgress(get);
+    public AbstractFuture<GetResponse> getResponse(Get get) {
+        return track(mGets, get);
     }
 
-    public Future<SearchResponse> getResponse(Search search) {
-        return mSearches.newFutureOrInProgress(search);
+    public AbstractFuture<SearchResponse> getResponse(Search search) {
+        return track(mSearches, search);
+    }
+
+    /**
+     * Starts waiting for the response to a request, or joins the wait in progress.
+     * The wait is stopped after the Bluetooth timeout, so that a late response
+     * does not answer a later request with the same id.
+     */
+    private <K extends Request, V extends Response> AbstractFuture<V> track(final InProgressTracker<K, V> tracker,
+            final K request) {
+
+        final SettableFuture<V> future = tracker.newFutureOrInProgress(request);
+        final ScheduledFuture<?> timeout = NodeExecutors.TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (tracker.stopFuture(request, future)) {
+                    future.cancel(false);
+                }
+            }
+        }, BluetoothCommon.getTimeout(), BluetoothCommon.TIMEOUT_UNIT);
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                timeout.cancel(false);
+            }
+        }, FutureUtils.sameThreadExecutor());
+        return future;
+
     }
 
     public void addResponse(PublishResponse publishResponse) {
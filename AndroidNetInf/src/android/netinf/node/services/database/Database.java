@@ -1,9 +1,14 @@
 package android.netinf.node.services.database;
 
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
+import org.apache.commons.lang3.SerializationException;
 import org.apache.commons.lang3.SerializationUtils;
 
 import android.content.ContentValues;
@@ -11,7 +16,10 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.netinf.common.Locator;
+import android.netinf.common.Metadata;
 import android.netinf.common.Ndo;
+import android.netinf.common.NetInfException;
 import android.netinf.messages.Get;
 import android.netinf.messages.GetResponse;
 import android.netinf.messages.Publish;
@@ -19,41 +27,51 @@ import android.netinf.messages.PublishResponse;
 import android.netinf.messages.Search;
 import android.netinf.messages.SearchResponse;
 import android.netinf.node.get.GetService;
-import android.netinf.node.publish.PublishService;
+import android.netinf.node.publish.BatchPublishService;
 import android.netinf.node.search.SearchService;
 import android.util.Log;
 
-public class Database extends SQLiteOpenHelper implements PublishService, GetService, SearchService {
+public class Database extends SQLiteOpenHelper implements BatchPublishService, GetService, SearchService {
 
     public static final String TAG = Database.class.getSimpleName();
 
     public static final String DATABASE_NAME = "NdoDatabase.db3";
-    private static final int DATABASE_VERSION = 1;
+    // 1: ndos
+    // 2: tokens, an inverted index of the metadata values of the ndos
+    // 3: ndos stored as columns instead of a serialized Ndo
+    private static final int DATABASE_VERSION = 3;
 
     private static final String TEXT = "TEXT";
     private static final String INTEGER = "INTEGER";
-    private static final String BLOB = "BLOB";
     private static final String NOT_NULL = "NOT NULL";
     private static final String PRIMARY_KEY = "PRIMARY KEY";
     private static final String TABLE_NDO = "ndos";
     private static final String COLUMN_HASH_ALG = "alg";
     private static final String COLUMN_HASH = "hash";
+    private static final String COLUMN_AUTHORITY = "authority";
+    private static final String COLUMN_LOCATORS = "locators";
+    private static final String COLUMN_METADATA = "metadata";
+    private static final String COLUMN_TIMESTAMP = "timestamp";
+    private static final String[] COLUMNS_NDO = {COLUMN_HASH_ALG, COLUMN_HASH, COLUMN_AUTHORITY,
+        COLUMN_LOCATORS, COLUMN_METADATA, COLUMN_TIMESTAMP};
+    // Locators are stored separated by newlines, which a locator URI never contains
+    private static final String LOCATOR_SEPARATOR = "\n";
+    // Only in version 1 and 2
     private static final String COLUMN_NDO = "ndo";
+    private static final String TABLE_TOKEN = "tokens";
+    private static final String COLUMN_TOKEN = "token";
 
     public Database(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
     @Override
-    public synchronized PublishResponse perform(Publish publish) {
+    public PublishResponse perform(Publish publish) {
 
         Log.i(TAG, "Database PUBLISH " + publish);
         Ndo ndo = publish.getNdo();
         // TODO Don't just overwrite
-        if (contains(ndo)) {
-            Log.d(TAG, "Deleted: "+delete(ndo));
-        }
-        insert(ndo);
+        insert(Collections.singletonList(ndo));
         //if (!contains(ndo)) {
         //    insert(ndo);
         //    Log.i(TAG,"Inserted new NDO into database");
@@ -66,14 +84,40 @@ public class Database extends SQLiteOpenHelper implements PublishService, GetSer
 
     }
 
+    /**
+     * Performs many Publishes in a single transaction,
+     * much cheaper than one at a time when many Ndos arrive together.
+     * @param publishes
+     *     The Publishes
+     * @return
+     *     The PublishResponses, in the same order
+     */
+    @Override
+    public List<PublishResponse> perform(List<Publish> publishes) {
+
+        Log.i(TAG, "Database PUBLISH " + publishes.size() + " NDO(s)");
+        List<Ndo> ndos = new ArrayList<Ndo>(publishes.size());
+        for (Publish publish : publishes) {
+            ndos.add(publish.getNdo());
+        }
+        insert(ndos);
+
+        List<PublishResponse> publishResponses = new ArrayList<PublishResponse>(publishes.size());
+        for (Publish publish : publishes) {
+            publishResponses.add(new PublishResponse.Builder(publish).ok().build());
+        }
+        return publishResponses;
+
+    }
+
     @Override
-    public synchronized GetResponse perform(Get get) {
+    public GetResponse perform(Get get) {
         Log.i(TAG, "Database GET " + get);
-        byte[] blob = getBlob(get.getNdo());
-        Ndo ndo = null;
-        if (blob != null ) {
-            ndo = (Ndo) SerializationUtils.deserialize(blob);
-            return new GetResponse.Builder(get).ok(get).build();
+        // A Get only needs the locators, the metadata is not read
+        Set<Locator> locators = getLocators(get.getNdo());
+        if (locators != null) {
+            Ndo ndo = new Ndo.Builder(get.getNdo()).addLocators(locators).build();
+            return new GetResponse.Builder(get).ok(ndo).build();
         }
         return new GetResponse.Builder(get).failed().build();
     }
@@ -85,20 +129,34 @@ public class Database extends SQLiteOpenHelper implements PublishService, GetSer
     }
 
     @Override
-    public synchronized SearchResponse perform(Search search) {
+    public SearchResponse perform(Search search) {
         Log.i(TAG, "Database SEARCH " + search);
-        String[] columns = {COLUMN_NDO};
+
+        Set<Ndo> results = new HashSet<Ndo>();
+        Set<String> tokens = search.getTokens();
+        if (tokens.isEmpty()) {
+            return new SearchResponse.Builder(search).build();
+        }
+
+        // Only read the ndos with a metadata value equal to one of the tokens
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < tokens.size(); i++) {
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        StringBuilder columns = new StringBuilder();
+        for (String column : COLUMNS_NDO) {
+            columns.append(columns.length() == 0 ? "" : ", ").append(TABLE_NDO).append(".").append(column);
+        }
+        String query = "SELECT " + columns
+                + " FROM " + TABLE_NDO + " JOIN " + TABLE_TOKEN + " USING (" + COLUMN_HASH_ALG + ", " + COLUMN_HASH + ")"
+                + " WHERE " + TABLE_TOKEN + "." + COLUMN_TOKEN + " IN (" + placeholders + ")"
+                + " GROUP BY " + COLUMN_HASH_ALG + ", " + COLUMN_HASH;
         SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.query(TABLE_NDO, columns, null, null, null, null, null);
+        Cursor cursor = db.rawQuery(query, tokens.toArray(new String[tokens.size()]));
         cursor.moveToFirst();
 
-        Set<Ndo> results = new HashSet<Ndo>();
         while (!cursor.isAfterLast()) {
-            byte[] blob = cursor.getBlob(cursor.getColumnIndex(COLUMN_NDO));
-            Ndo ndo = (Ndo) SerializationUtils.deserialize(blob);
-            if (ndo.matches(search.getTokens())) {
-                results.add(ndo);
-            }
+            results.add(toNdo(cursor));
             cursor.moveToNext();
         }
         cursor.close();
@@ -108,57 +166,200 @@ public class Database extends SQLiteOpenHelper implements PublishService, GetSer
 
     }
 
-    private byte[] getBlob(Ndo ndo) {
-        String[] columns = {COLUMN_NDO};
+    /**
+     * Reads only the locators of an {@link Ndo}.
+     * @param ndo
+     *     The {@link Ndo}
+     * @return
+     *     The stored locators, or null if the {@link Ndo} is not in the database
+     */
+    public Set<Locator> getLocators(Ndo ndo) {
+        String[] columns = {COLUMN_LOCATORS};
         String selection = COLUMN_HASH_ALG + "=? AND " + COLUMN_HASH + "=?";
         String[] selectionArgs = {ndo.getAlgorithm(), ndo.getHash()};
         SQLiteDatabase db = getReadableDatabase();
         Cursor cursor = db.query(TABLE_NDO, columns, selection, selectionArgs, null, null, null);
         cursor.moveToFirst();
-        byte[] blob = null;
+        Set<Locator> locators = null;
         if (!cursor.isAfterLast()) {
-            blob = cursor.getBlob(cursor.getColumnIndex(COLUMN_NDO));
+            locators = toLocators(cursor.getString(0));
         }
         cursor.close();
-        return blob;
+        return locators;
     }
 
-    private boolean contains(Ndo ndo) {
-        return getBlob(ndo) != null;
+    /**
+     * Inserts or replaces Ndos and their tokens in a single transaction.
+     * Readers keep seeing the previous version until the transaction commits.
+     * @param ndos
+     *     The Ndos
+     */
+    private void insert(List<Ndo> ndos) {
+        SQLiteDatabase db = getWritableDatabase();
+        String whereClause = COLUMN_HASH_ALG + "=? AND " + COLUMN_HASH + "=?";
+        db.beginTransaction();
+        try {
+            for (Ndo ndo : ndos) {
+                db.insertWithOnConflict(TABLE_NDO, null, toValues(ndo), SQLiteDatabase.CONFLICT_REPLACE);
+                db.delete(TABLE_TOKEN, whereClause, new String[] {ndo.getAlgorithm(), ndo.getHash()});
+                insertTokens(db, ndo);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
-    private void insert(Ndo ndo) {
+    /**
+     * Converts an {@link Ndo} to the values of its row.
+     * @param ndo
+     *     The {@link Ndo}
+     * @return
+     *     The values of all columns in {@link #COLUMNS_NDO}
+     */
+    private static ContentValues toValues(Ndo ndo) {
+        StringBuilder locators = new StringBuilder();
+        for (Locator locator : ndo.getLocators()) {
+            if (locators.length() > 0) {
+                locators.append(LOCATOR_SEPARATOR);
+            }
+            locators.append(locator.toString());
+        }
         ContentValues values = new ContentValues();
         values.put(COLUMN_HASH_ALG, ndo.getAlgorithm());
         values.put(COLUMN_HASH, ndo.getHash());
-        values.put(COLUMN_NDO, SerializationUtils.serialize(ndo));
+        values.put(COLUMN_AUTHORITY, ndo.getAuthority());
+        values.put(COLUMN_LOCATORS, locators.toString());
+        values.put(COLUMN_METADATA, ndo.getMetadata().toString());
+        values.put(COLUMN_TIMESTAMP, ndo.getTimestamp());
+        return values;
+    }
 
-        SQLiteDatabase db = getWritableDatabase();
-        db.insert(TABLE_NDO, null, values);
+    /**
+     * Creates an {@link Ndo} from the current row of a {@link Cursor}.
+     * @param cursor
+     *     The {@link Cursor}, with the columns in {@link #COLUMNS_NDO} in that order
+     * @return
+     *     The {@link Ndo}
+     */
+    private static Ndo toNdo(Cursor cursor) {
+        Ndo.Builder builder = new Ndo.Builder(cursor.getString(0), cursor.getString(1))
+                .authority(cursor.getString(2))
+                .addLocators(toLocators(cursor.getString(3)))
+                .timestamp(cursor.getLong(5));
+        try {
+            builder.metadata(new Metadata(cursor.getString(4)));
+        } catch (NetInfException e) {
+            Log.w(TAG, "Invalid metadata in database, defaulting to empty", e);
+        }
+        return builder.build();
     }
 
-    private int delete(Ndo ndo) {
-        SQLiteDatabase db = getWritableDatabase();
-        String whereClause = COLUMN_HASH_ALG + "=? AND " + COLUMN_HASH + "=?";
-        String[] whereArgs = new String[] {ndo.getAlgorithm(), ndo.getHash()};
-        int deleted = db.delete(TABLE_NDO, whereClause , whereArgs);
-        return deleted;
+    private static Set<Locator> toLocators(String locators) {
+        Set<Locator> result = new LinkedHashSet<Locator>();
+        if (locators == null || locators.length() == 0) {
+            return result;
+        }
+        for (String locator : locators.split(LOCATOR_SEPARATOR)) {
+            result.add(Locator.fromString(locator));
+        }
+        return result;
+    }
+
+    /**
+     * Adds the metadata values of an {@link Ndo} to the token index.
+     * @param db
+     *     The database
+     * @param ndo
+     *     The {@link Ndo}
+     */
+    private void insertTokens(SQLiteDatabase db, Ndo ndo) {
+        for (String token : ndo.getMetadata().getValues()) {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_TOKEN, token);
+            values.put(COLUMN_HASH_ALG, ndo.getAlgorithm());
+            values.put(COLUMN_HASH, ndo.getHash());
+            db.insertWithOnConflict(TABLE_TOKEN, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // Readers use their own connections and are not blocked by a writer, nor block it
+        if (!db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
         Log.i(TAG, "(Re)creating table(s)...");
-        String createTable = "CREATE TABLE " + TABLE_NDO + " ("
+        createNdoTable(db, TABLE_NDO);
+        createTokenTable(db);
+    }
+
+    private void createNdoTable(SQLiteDatabase db, String name) {
+        String createTable = "CREATE TABLE " + name + " ("
                 + COLUMN_HASH_ALG + " " + TEXT + " " + NOT_NULL + ", "
                 + COLUMN_HASH + " " + TEXT + " " + NOT_NULL + ", "
-                + COLUMN_NDO + " " + BLOB + " " + NOT_NULL + ", "
+                + COLUMN_AUTHORITY + " " + TEXT + " " + NOT_NULL + " DEFAULT '', "
+                + COLUMN_LOCATORS + " " + TEXT + " " + NOT_NULL + " DEFAULT '', "
+                + COLUMN_METADATA + " " + TEXT + " " + NOT_NULL + " DEFAULT '{}', "
+                + COLUMN_TIMESTAMP + " " + INTEGER + " " + NOT_NULL + " DEFAULT 0, "
                 + PRIMARY_KEY + "(" + COLUMN_HASH_ALG + ", " + COLUMN_HASH + "));";
         db.execSQL(createTable);
     }
 
+    private void createTokenTable(SQLiteDatabase db) {
+        // Primary key starts with the token, so it doubles as the index used by Search
+        String createTable = "CREATE TABLE " + TABLE_TOKEN + " ("
+                + COLUMN_TOKEN + " " + TEXT + " " + NOT_NULL + ", "
+                + COLUMN_HASH_ALG + " " + TEXT + " " + NOT_NULL + ", "
+                + COLUMN_HASH + " " + TEXT + " " + NOT_NULL + ", "
+                + PRIMARY_KEY + "(" + COLUMN_TOKEN + ", " + COLUMN_HASH_ALG + ", " + COLUMN_HASH + "));";
+        db.execSQL(createTable);
+        // Used when deleting the tokens of an ndo
+        db.execSQL("CREATE INDEX " + TABLE_TOKEN + "_ndo ON " + TABLE_TOKEN
+                + " (" + COLUMN_HASH_ALG + ", " + COLUMN_HASH + ");");
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        clearDatabase();
+        Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+        if (oldVersion < 2) {
+            // Index the ndos already in the database, once
+            createTokenTable(db);
+            Cursor cursor = db.query(TABLE_NDO, new String[] {COLUMN_NDO}, null, null, null, null, null);
+            cursor.moveToFirst();
+            while (!cursor.isAfterLast()) {
+                try {
+                    insertTokens(db, (Ndo) SerializationUtils.deserialize(cursor.getBlob(0)));
+                } catch (SerializationException e) {
+                    Log.w(TAG, "Skipped indexing ndo that could not be deserialized", e);
+                }
+                cursor.moveToNext();
+            }
+            cursor.close();
+        }
+        if (oldVersion < 3) {
+            // Convert the serialized ndos to columns, keeping the data
+            String converted = TABLE_NDO + "_v3";
+            createNdoTable(db, converted);
+            Cursor cursor = db.query(TABLE_NDO, new String[] {COLUMN_NDO}, null, null, null, null, null);
+            cursor.moveToFirst();
+            while (!cursor.isAfterLast()) {
+                try {
+                    db.insert(converted, null, toValues((Ndo) SerializationUtils.deserialize(cursor.getBlob(0))));
+                } catch (SerializationException e) {
+                    Log.w(TAG, "Dropped ndo that could not be deserialized", e);
+                }
+                cursor.moveToNext();
+            }
+            cursor.close();
+            db.execSQL("DROP TABLE " + TABLE_NDO);
+            db.execSQL("ALTER TABLE " + converted + " RENAME TO " + TABLE_NDO);
+        }
     }
 
     public void clearDatabase() {
@@ -167,6 +368,7 @@ public class Database extends SQLiteOpenHelper implements PublishService, GetSer
 
     private void clearDatabase(SQLiteDatabase db) {
         Log.i(TAG, "Dropping table(s)...");
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_TOKEN);
         db.execSQL("DROP TABLE IF EXISTS " + TABLE_NDO);
         onCreate(db);
     }
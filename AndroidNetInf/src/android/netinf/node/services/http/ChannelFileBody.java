@@ -0,0 +1,32 @@
+package android.netinf.node.services.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.http.entity.mime.content.FileBody;
+
+import android.netinf.common.BufferPool;
+
+/**
+ * A {@link FileBody} that writes the file using a pooled buffer,
+ * instead of allocating a buffer for every part written.
+ */
+public class ChannelFileBody extends FileBody {
+
+    public static final String TAG = ChannelFileBody.class.getSimpleName();
+
+    public ChannelFileBody(File file) {
+        super(file);
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        if (out == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        BufferPool.TRANSFER.copy(getFile(), out);
+        out.flush();
+    }
+
+}
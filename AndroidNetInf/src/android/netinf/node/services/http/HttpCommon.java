@@ -1,33 +1,60 @@
 package android.netinf.node.services.http;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.entity.mime.MultipartEntity;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.netinf.common.NetInfException;
+import android.netinf.common.PeerScoreboard;
+import android.netinf.node.NodeExecutors;
 import android.netinf.node.SettingsActivity;
-import android.os.Environment;
 import android.util.Log;
 
 public class HttpCommon {
 
     public static final String TAG = HttpCommon.class.getSimpleName();
 
+    /** Scores of the HTTP peers, shared by all HTTP services. */
+    public static final PeerScoreboard<String> SCOREBOARD = new PeerScoreboard<String>("http");
+
     // public static final String[] PEERS = {"http://213.159.185.124:8080", "http://213.159.185.166:8082"};
 //    public static final String[] PEERS = {"http://213.159.185.166:8082"};
 //    public static final String[] PEERS = {"http://213.159.185.124:8080"};
 
+    /** Maximum number of connections to a single peer, further requests wait for a free connection. */
+    public static final int MAX_CONNECTIONS_PER_PEER = 4;
+    /** Maximum number of connections to all peers. */
+    public static final int MAX_CONNECTIONS = 16;
+    /** How long an idle connection is kept open for reuse in milliseconds. */
+    public static final long IDLE_TIMEOUT = 30000;
+
+    // Shared by all HTTP services, created when first used
+    private static DefaultHttpClient sClient;
+
     public static int getTimeout() {
         return SettingsActivity.getPreferenceAsInt("pref_key_http_timeout");
     }
@@ -48,6 +75,77 @@ public class HttpCommon {
         }
     }
 
+    /**
+     * Gets the HTTP client shared by all HTTP services.
+     * Connections are pooled per peer and kept alive for {@link #IDLE_TIMEOUT},
+     * at most {@link #MAX_CONNECTIONS_PER_PEER} connections are used per peer.
+     * Responses must be released using {@link #release(HttpResponse)} so the connection can be reused.
+     * @return
+     *     The client
+     */
+    public static synchronized HttpClient getClient() {
+        if (sClient == null) {
+
+            HttpParams params = new BasicHttpParams();
+            ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_PEER));
+            ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+
+            SchemeRegistry registry = new SchemeRegistry();
+            registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+            final ClientConnectionManager manager = new ThreadSafeClientConnManager(params, registry);
+            sClient = new DefaultHttpClient(manager, params);
+
+            // Close connections that were not reused in time
+            NodeExecutors.TIMER.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    manager.closeExpiredConnections();
+                    manager.closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+                }
+            }, IDLE_TIMEOUT, IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        }
+        return sClient;
+    }
+
+    /**
+     * Executes a request using the shared client, with the timeouts from the preferences.
+     * The timeout also bounds the wait for a free connection to the peer.
+     * @param request
+     *     The request
+     * @return
+     *     The response, to be released using {@link #release(HttpResponse)}
+     * @throws IOException
+     *     In case the request failed
+     */
+    public static HttpResponse execute(HttpUriRequest request) throws IOException {
+        int timeout = getTimeout();
+        HttpParams params = request.getParams();
+        HttpConnectionParams.setConnectionTimeout(params, timeout);
+        HttpConnectionParams.setSoTimeout(params, timeout);
+        ConnManagerParams.setTimeout(params, timeout);
+        return getClient().execute(request);
+    }
+
+    /**
+     * Releases the connection of a response for reuse by reading what is left of the content.
+     * @param response
+     *     The response, null is ignored
+     */
+    public static void release(HttpResponse response) {
+        if (response == null || response.getEntity() == null) {
+            return;
+        }
+        try {
+            response.getEntity().consumeContent();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to release connection", e);
+        }
+    }
+
     public static String getContentType(HttpResponse response) throws NetInfException {
         Header header = getEntity(response).getContentType();
         if (header == null) {
@@ -91,19 +189,4 @@ public class HttpCommon {
         }
     }
 
-    public static String postToString(MultipartEntity multipart) {
-
-        String result = "<Failed to convert post to string>";
-        try {
-            File file = new File(Environment.getExternalStorageDirectory() + "/post.txt");
-            FileOutputStream fis = new FileOutputStream(file);
-            multipart.writeTo(fis);
-            return FileUtils.readFileToString(file);
-        } catch (IOException e) {
-            Log.wtf(TAG, "Failed to convert post to string", e);
-        }
-        return result;
-
-    }
-
 }
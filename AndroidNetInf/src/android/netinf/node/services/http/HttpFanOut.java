@@ -0,0 +1,326 @@
+package android.netinf.node.services.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.netinf.common.NetInfException;
+import android.netinf.node.NodeExecutors;
+import android.netinf.node.SettingsActivity;
+import android.util.Log;
+
+/**
+ * Sends a request to many peers on {@link NodeExecutors#HTTP} and gathers the results as they arrive.
+ * Gathering stops when {@link #gather(String, Object)} has all it needs, all peers have answered,
+ * or the deadline has passed. Requests still in flight are then aborted,
+ * which closes their connections, so a slow peer does not hold up the caller.
+ * <p>
+ * Requests are either sent to all peers at once, or hedged: sent to the first peer,
+ * and to the next peer only if the previous ones have not answered within
+ * the 95th percentile of the round trip time of the last peer tried,
+ * or as soon as they have all failed.
+ * An instance is used for a single {@link #perform(List, long, boolean)}.
+ * @param <V>
+ *     The type of the parsed results
+ */
+public abstract class HttpFanOut<V> {
+
+    public static final String TAG = HttpFanOut.class.getSimpleName();
+
+    /** Percentile of the round trip time of a peer after which a hedged request is sent to the next peer. */
+    public static final int HEDGE_PERCENTILE = 95;
+
+    // Counters of all hedged requests
+    private static final AtomicLong sHedged = new AtomicLong();
+    private static final AtomicLong sHedgeWins = new AtomicLong();
+    private static final AtomicLong sDuplicateBytes = new AtomicLong();
+
+    private final String mName;
+    // Peer -> Request in flight
+    private final Map<String, HttpUriRequest> mPending = new HashMap<String, HttpUriRequest>();
+    private boolean mDone = false;
+    private boolean mHedge = false;
+    private String mWinner;
+
+    /**
+     * Creates a new {@link HttpFanOut}.
+     * @param name
+     *     The name of the request, used for logging
+     */
+    public HttpFanOut(String name) {
+        mName = name;
+    }
+
+    /**
+     * Creates the request to a peer.
+     * @param peer
+     *     The peer
+     * @return
+     *     The request
+     * @throws IOException
+     *     In case the request could not be created
+     */
+    protected abstract HttpUriRequest createRequest(String peer) throws IOException;
+
+    /**
+     * Parses the response of a peer, called on an HTTP thread.
+     * @param peer
+     *     The peer
+     * @param response
+     *     The response, released afterwards
+     * @return
+     *     The result
+     * @throws NetInfException
+     *     In case the response is not usable
+     */
+    protected abstract V parse(String peer, HttpResponse response) throws NetInfException;
+
+    /**
+     * Gathers the result of a peer, called one result at a time in the order they arrive.
+     * @param peer
+     *     The peer
+     * @param result
+     *     The result
+     * @return
+     *     True if no more results are needed, which aborts the remaining requests
+     */
+    protected abstract boolean gather(String peer, V result);
+
+    /**
+     * Sends the request to all peers at once and blocks until gathering is done.
+     * @param peers
+     *     The peers, requests are started in this order
+     * @param timeout
+     *     The maximum time to wait in milliseconds
+     */
+    public void perform(List<String> peers, long timeout) {
+        perform(peers, timeout, false);
+    }
+
+    /**
+     * Sends the request to the peers and blocks until gathering is done.
+     * @param peers
+     *     The peers, requests are started in this order
+     * @param timeout
+     *     The maximum time to wait in milliseconds
+     * @param hedge
+     *     True to only send the request to the next peer when the previous ones are slow or failed,
+     *     false to send it to all peers at once
+     */
+    public void perform(List<String> peers, long timeout, boolean hedge) {
+
+        long start = System.currentTimeMillis();
+        long deadline = timeout > Long.MAX_VALUE - start ? Long.MAX_VALUE : start + timeout;
+        Iterator<String> unique = new LinkedHashSet<String>(peers).iterator();
+        long nextAt = start;
+
+        synchronized (this) {
+            mHedge = hedge;
+            try {
+                while (!mDone) {
+
+                    long now = System.currentTimeMillis();
+
+                    // Scatter, to the next peer unless hedging and the others are still within their usual time
+                    if (unique.hasNext() && (!hedge || mPending.isEmpty() || now >= nextAt)) {
+                        String peer = unique.next();
+                        if (send(peer) && hedge) {
+                            nextAt = now + getHedgeDelay(peer);
+                        }
+                        continue;
+                    }
+
+                    // All peers answered
+                    if (mPending.isEmpty()) {
+                        return;
+                    }
+
+                    // Gather until a peer answers, the next hedge is due or the deadline passes
+                    if (now >= deadline) {
+                        Log.i(TAG, mName + " timed out after " + timeout + " ms");
+                        return;
+                    }
+                    long wait = deadline - now;
+                    if (hedge && unique.hasNext()) {
+                        wait = Math.min(wait, Math.max(1, nextAt - now));
+                    }
+                    wait(wait);
+
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                finish();
+            }
+        }
+
+    }
+
+    /**
+     * Returns a {@link JSONObject} with the counters of hedged requests.
+     * @return
+     *     {@link JSONObject} representation
+     * @throws JSONException
+     *     In case the {@link JSONObject} could not be created
+     */
+    public static JSONObject toJson() throws JSONException {
+        JSONObject jo = new JSONObject();
+        jo.put("hedged", sHedged.get());
+        jo.put("hedge_wins", sHedgeWins.get());
+        jo.put("duplicate_bytes", sDuplicateBytes.get());
+        return jo;
+    }
+
+    /**
+     * Creates the request to a peer and sends it on an HTTP thread.
+     * @return
+     *     True if the request was sent
+     */
+    private boolean send(final String peer) {
+        final HttpUriRequest request;
+        try {
+            request = createRequest(peer);
+        } catch (IOException e) {
+            Log.e(TAG, mName + " to " + peer + " failed", e);
+            return false;
+        }
+        // A hedge if sent while another hedged request is in flight
+        final boolean hedged = mHedge && !mPending.isEmpty();
+        mPending.put(peer, request);
+        try {
+            NodeExecutors.HTTP.execute(new Runnable() {
+                @Override
+                public void run() {
+                    exchange(peer, request, hedged);
+                }
+            });
+            if (hedged) {
+                sHedged.incrementAndGet();
+            }
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, mName + " to " + peer + " rejected");
+            mPending.remove(peer);
+            return false;
+        }
+    }
+
+    private void exchange(String peer, HttpUriRequest request, boolean hedged) {
+        HttpResponse response = null;
+        CountingEntity counted = null;
+        try {
+            if (isDone()) {
+                return;
+            }
+            long start = System.currentTimeMillis();
+            response = HttpCommon.execute(request);
+            HttpCommon.SCOREBOARD.success(peer, System.currentTimeMillis() - start);
+            if (response.getEntity() != null) {
+                counted = new CountingEntity(response.getEntity());
+                response.setEntity(counted);
+            }
+            V result = parse(peer, response);
+            synchronized (this) {
+                if (!mDone && gather(peer, result)) {
+                    mWinner = peer;
+                    if (hedged) {
+                        sHedgeWins.incrementAndGet();
+                    }
+                    // Keep the connection of this response for reuse
+                    mPending.remove(peer);
+                    finish();
+                }
+            }
+        } catch (IOException e) {
+            // Aborted requests are not the fault of the peer
+            if (!isDone()) {
+                HttpCommon.SCOREBOARD.failure(peer, HttpCommon.getTimeout());
+                Log.e(TAG, mName + " to " + peer + " failed", e);
+            }
+        } catch (NetInfException e) {
+            if (!isDone()) {
+                Log.e(TAG, mName + " to " + peer + " failed", e);
+            }
+        } finally {
+            HttpCommon.release(response);
+            synchronized (this) {
+                // Octets received by a hedged request that lost were transferred twice
+                if (mHedge && mWinner != null && !peer.equals(mWinner) && counted != null) {
+                    sDuplicateBytes.addAndGet(counted.getByteCount());
+                }
+                mPending.remove(peer);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Stops gathering and aborts the requests still in flight.
+     */
+    private synchronized void finish() {
+        if (mDone) {
+            return;
+        }
+        mDone = true;
+        for (HttpUriRequest request : mPending.values()) {
+            request.abort();
+        }
+        mPending.clear();
+        notifyAll();
+    }
+
+    private synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * Gets how long to wait for a peer before hedging, its recent round trip time percentile if known.
+     */
+    private long getHedgeDelay(String peer) {
+        long latency = HttpCommon.SCOREBOARD.getLatency(peer, HEDGE_PERCENTILE);
+        if (latency < 0) {
+            return SettingsActivity.getPreferenceAsLong("pref_key_http_hedge_delay");
+        }
+        return latency;
+    }
+
+    /**
+     * Counts the bytes read from the content of a response.
+     */
+    private static class CountingEntity extends HttpEntityWrapper {
+
+        private CountingInputStream mContent;
+
+        public CountingEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public synchronized InputStream getContent() throws IOException {
+            if (mContent == null) {
+                mContent = new CountingInputStream(super.getContent());
+            }
+            return mContent;
+        }
+
+        public synchronized long getByteCount() {
+            return mContent == null ? 0 : mContent.getByteCount();
+        }
+
+    }
+
+}
@@ -1,34 +1,28 @@
 package android.netinf.node.services.http;
 
 import java.io.ByteArrayOutputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.Set;
 
-import org.apache.commons.fileupload.MultipartStream;
-import org.apache.commons.fileupload.MultipartStream.MalformedStreamException;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.netinf.common.BufferPool;
+import android.netinf.common.CacheOutputStream;
 import android.netinf.common.Locator;
 import android.netinf.common.Metadata;
 import android.netinf.common.Ndo;
@@ -36,6 +30,8 @@ import android.netinf.common.NetInfException;
 import android.netinf.messages.Get;
 import android.netinf.messages.GetResponse;
 import android.netinf.node.Node;
+import android.netinf.node.SettingsActivity;
+import android.netinf.node.cache.ContentStore;
 import android.netinf.node.get.GetService;
 import android.netinf.node.logging.LogEntry;
 import android.util.Log;
@@ -44,7 +40,8 @@ public class HttpGetService implements GetService {
 
     public static final String TAG = HttpGetService.class.getSimpleName();
 
-    public static final int TIMEOUT = 2000;
+    /** Maximum size of the JSON part of a multipart response. */
+    public static final int MAX_JSON_SIZE = 64 * 1024;
 
     @Override
     public GetResponse perform(Get get) {
@@ -66,36 +63,53 @@ public class HttpGetService implements GetService {
 
     }
 
-    private GetResponse perform(Get get, String[] peers) {
+    private GetResponse perform(final Get get, String[] peers) {
         Log.i(TAG, "HTTP GET " + get);
 
-        // HTTP Client
-        HttpParams params = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(params, TIMEOUT);
-        HttpConnectionParams.setSoTimeout(params, TIMEOUT);
-        HttpClient client = new DefaultHttpClient(params);
-
-        // Repeat GET until ok result
-        for (String peer : peers) {
-            try {
-                HttpResponse response = client.execute(createGet(peer, get));
+        // Race the peers, all at once or hedged, the first result with octets wins and the other requests are aborted
+        // Only a response with the octets wins, the response with most locators is kept in case none has them
+        final GetResponse[] winner = new GetResponse[1];
+        final GetResponse[] fallback = new GetResponse[1];
+        HttpFanOut<GetResponse> fanOut = new HttpFanOut<GetResponse>("GET") {
+            @Override
+            protected HttpUriRequest createRequest(String peer) throws IOException {
+                return createGet(peer, get);
+            }
+            @Override
+            protected GetResponse parse(String peer, HttpResponse response) throws NetInfException {
                 Node.log(LogEntry.newOutgoing("HTTP"), get);
-                GetResponse getResponse = parse(get, response);
+                GetResponse getResponse = HttpGetService.this.parse(get, response);
                 Node.log(LogEntry.newIncoming("HTTP"), getResponse);
-                if (getResponse.getStatus().isSuccess()) {
-                    return getResponse;
+                return getResponse;
+            }
+            @Override
+            protected boolean gather(String peer, GetResponse getResponse) {
+                if (!getResponse.getStatus().isSuccess()) {
+                    return false;
                 }
-            } catch (ClientProtocolException e) {
-                Log.e(TAG, "GET to " + peer + " failed", e);
-            } catch (UnsupportedEncodingException e) {
-                Log.e(TAG, "GET to " + peer + " failed", e);
-            } catch (IOException e) {
-                Log.e(TAG, "GET to " + peer + " failed", e);
-            } catch (NetInfException e) {
-                Log.e(TAG, "GET to " + peer + " failed", e);
+                if (getResponse.getNdo().isCached()) {
+                    winner[0] = getResponse;
+                    return true;
+                }
+                if (fallback[0] == null
+                        || getResponse.getNdo().getLocators().size() > fallback[0].getNdo().getLocators().size()) {
+                    fallback[0] = getResponse;
+                }
+                return false;
+            }
+        };
+        // Each request is bounded by the HTTP timeouts, a large transfer in progress is not cut short
+        boolean hedge = SettingsActivity.getPreferenceAsBoolean("pref_key_http_hedging");
+        fanOut.perform(HttpCommon.SCOREBOARD.order(Arrays.asList(peers)), Long.MAX_VALUE, hedge);
+
+        synchronized (fanOut) {
+            if (winner[0] != null) {
+                return winner[0];
+            }
+            if (fallback[0] != null) {
+                return fallback[0];
             }
         }
-
         return new GetResponse.Builder(get).failed().build();
     }
 
@@ -179,51 +193,57 @@ public class HttpGetService implements GetService {
     private GetResponse parseMultipart(Get get, HttpResponse response) throws NetInfException {
 
         // Multipart Boundary
-        String contentType = HttpCommon.getContentType(response);
-        byte[] boundary = contentType.substring(contentType.indexOf("boundary=") + 9).getBytes();
+        String boundary = MultipartReader.getBoundary(HttpCommon.getContentType(response));
+        if (boundary == null) {
+            throw new NetInfException("Multipart boundary missing");
+        }
 
         // Multipart Content
         HttpEntity entity = HttpCommon.getEntity(response);
         InputStream content = HttpCommon.getContent(entity);
 
-        // Multipart Stream
-        @SuppressWarnings("deprecation")
-        MultipartStream multipartStream = new MultipartStream(content, boundary);
-
-        // Read
-        OutputStream jsonStream = null;
-        OutputStream binaryStream = null;
+        // Read, the JSON part is kept in memory and the octets part is written to the cache
+        MultipartReader reader = new MultipartReader(content, boundary);
+        ByteArrayOutputStream jsonStream = null;
+        CacheOutputStream binaryStream = null;
 
         try {
 
-            jsonStream = new ByteArrayOutputStream();
-            binaryStream = new FileOutputStream(get.getNdo().getOctets());
-
-            // TODO Is the order of the fields always the same?
-            multipartStream.readHeaders();
-            multipartStream.readBodyData(jsonStream);
-            multipartStream.readBoundary();
-            multipartStream.readHeaders();
-            multipartStream.readBodyData(binaryStream);
-
-            binaryStream.flush();
+            while (reader.nextPart()) {
+                String partType = reader.getHeader("Content-Type");
+                boolean octets = partType != null && partType.startsWith("application/octet-stream");
+                if (jsonStream == null && !octets) {
+                    jsonStream = new ByteArrayOutputStream();
+                    reader.readBody(jsonStream, MAX_JSON_SIZE);
+                } else if (binaryStream == null) {
+                    binaryStream = get.getNdo().newCacheStream(SettingsActivity.getPreferenceAsBoolean("pref_key_cache_verify"));
+                    reader.readBody(binaryStream, ContentStore.getMaxBytes());
+                }
+            }
 
-            jsonStream.close();
-            binaryStream.close();
+            if (jsonStream == null) {
+                throw new NetInfException("Multipart JSON part missing");
+            }
+            if (binaryStream != null) {
+                binaryStream.commit();
+            }
 
-        } catch (MalformedStreamException e) {
-            throw new NetInfException("Malformed multipart/form-data", e);
         } catch (IOException e) {
             throw new NetInfException("Failed to parse multipart/form-data", e);
         } finally {
-            IOUtils.closeQuietly(jsonStream);
+            reader.close();
             IOUtils.closeQuietly(binaryStream);
         }
 
         // Result NDO
         Ndo.Builder builder = new Ndo.Builder(get.getNdo());
 
-        JSONObject jo = HttpCommon.parseJson(jsonStream.toString());
+        JSONObject jo;
+        try {
+            jo = HttpCommon.parseJson(jsonStream.toString("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new NetInfException("Failed to decode JSON part", e);
+        }
         try {
             builder.addLocators(getLocators(jo));
         } catch (JSONException e) {
@@ -235,7 +255,8 @@ public class HttpGetService implements GetService {
             Log.w(TAG, "Failed to parse metadata", e);
         }
 
-        return new GetResponse.Builder(get).ok(get).build();
+        Ndo ndo = builder.build();
+        return new GetResponse.Builder(get).ok(ndo).build();
 
     }
 
@@ -243,13 +264,13 @@ public class HttpGetService implements GetService {
 
         // Read
         InputStream in = null;
-        OutputStream out = null;
+        CacheOutputStream out = null;
         try {
             in = HttpCommon.getContent(HttpCommon.getEntity(response));
-            out = get.getNdo().newCacheStream();
-            IOUtils.copy(in, out);
+            out = get.getNdo().newCacheStream(SettingsActivity.getPreferenceAsBoolean("pref_key_cache_verify"));
+            BufferPool.TRANSFER.copy(in, out, ContentStore.getMaxBytes());
             in.close();
-            out.close();
+            out.commit();
         } catch (IOException e) {
             throw new NetInfException("Failed to parse application/octet-stream", e);
         } finally {
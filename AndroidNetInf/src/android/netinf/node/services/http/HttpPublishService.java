@@ -2,67 +2,89 @@ package android.netinf.node.services.http;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.mime.MultipartEntity;
 import org.apache.http.entity.mime.content.FileBody;
 import org.apache.http.entity.mime.content.StringBody;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
 
 import android.netinf.common.Locator;
 import android.netinf.common.Ndo;
 import android.netinf.common.NetInfStatus;
 import android.netinf.messages.Publish;
 import android.netinf.messages.PublishResponse;
-import android.netinf.node.publish.PublishService;
+import android.netinf.node.publish.BatchPublishService;
 import android.util.Log;
 
-public class HttpPublishService implements PublishService {
+public class HttpPublishService implements BatchPublishService {
 
     public static final String TAG = HttpPublishService.class.getSimpleName();
 
     @Override
     public PublishResponse perform(Publish publish) {
-        Log.i(TAG, "HTTP PUBLISH " + publish);
-
-        // HTTP Client
-        HttpParams params = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(params, HttpCommon.getTimeout());
-        HttpConnectionParams.setSoTimeout(params, HttpCommon.getTimeout());
-        HttpClient client = new DefaultHttpClient(params);
-
-        // Publish to all peers
-        NetInfStatus status = NetInfStatus.FAILED;
-        for (String peer : HttpCommon.getPeers()) {
-            try {
-                HttpResponse response = client.execute(createPublish(peer, publish));
-                // Log.d(TAG, IOUtils.toString(response.getEntity().getContent()));
-                int code = response.getStatusLine().getStatusCode();
-                // NiProxy returns 200, Erlang returns 201
-                if (code == HttpStatus.SC_CREATED || code == HttpStatus.SC_OK) {
-                    Log.i(TAG, "PUBLISH to " + peer + " succeeded");
-                    status = NetInfStatus.OK;
-                } else {
-                    Log.e(TAG, "PUBLISH to " + peer + " failed: " + code);
-                }
+        return perform(Collections.singletonList(publish)).get(0);
+    }
 
-            } catch (ClientProtocolException e) {
-                Log.e(TAG, "PUBLISH to " + peer + " failed", e);
-            } catch (UnsupportedEncodingException e) {
-                Log.e(TAG, "PUBLISH to " + peer + " failed", e);
-            } catch (IOException e) {
-                Log.e(TAG, "PUBLISH to " + peer + " failed", e);
+    /**
+     * Publishes many Ndos to each peer, one peer at a time.
+     * The NetInf HTTP convergence layer has no multi-NDO publish,
+     * so each Ndo is still a separate request, but all requests to a peer
+     * reuse the pooled connections of the shared client rather than each setting up a new one.
+     * A peer that fails is not sent the rest of the batch.
+     */
+    @Override
+    public List<PublishResponse> perform(List<Publish> publishes) {
+        Log.i(TAG, "HTTP PUBLISH " + (publishes.size() == 1 ? publishes.get(0) : publishes.size() + " NDO(s)"));
+
+        // Publish to all peers, skipping dead peers
+        NetInfStatus[] statuses = new NetInfStatus[publishes.size()];
+        Arrays.fill(statuses, NetInfStatus.FAILED);
+        for (String peer : HttpCommon.SCOREBOARD.order(Arrays.asList(HttpCommon.getPeers()))) {
+            for (int i = 0; i < publishes.size(); i++) {
+                Publish publish = publishes.get(i);
+                HttpResponse response = null;
+                try {
+                    long start = System.currentTimeMillis();
+                    response = HttpCommon.execute(createPublish(peer, publish));
+                    HttpCommon.SCOREBOARD.success(peer, System.currentTimeMillis() - start);
+                    // Log.d(TAG, IOUtils.toString(response.getEntity().getContent()));
+                    int code = response.getStatusLine().getStatusCode();
+                    // NiProxy returns 200, Erlang returns 201
+                    if (code == HttpStatus.SC_CREATED || code == HttpStatus.SC_OK) {
+                        Log.i(TAG, "PUBLISH " + publish + " to " + peer + " succeeded");
+                        statuses[i] = NetInfStatus.OK;
+                    } else {
+                        Log.e(TAG, "PUBLISH " + publish + " to " + peer + " failed: " + code);
+                    }
+
+                } catch (ClientProtocolException e) {
+                    HttpCommon.SCOREBOARD.failure(peer, HttpCommon.getTimeout());
+                    Log.e(TAG, "PUBLISH to " + peer + " failed", e);
+                    break;
+                } catch (UnsupportedEncodingException e) {
+                    Log.e(TAG, "PUBLISH to " + peer + " failed", e);
+                } catch (IOException e) {
+                    HttpCommon.SCOREBOARD.failure(peer, HttpCommon.getTimeout());
+                    Log.e(TAG, "PUBLISH to " + peer + " failed", e);
+                    break;
+                } finally {
+                    HttpCommon.release(response);
+                }
             }
         }
 
-        return new PublishResponse.Builder(publish).status(status).build();
+        List<PublishResponse> publishResponses = new ArrayList<PublishResponse>(publishes.size());
+        for (int i = 0; i < publishes.size(); i++) {
+            publishResponses.add(new PublishResponse.Builder(publishes.get(i)).status(statuses[i]).build());
+        }
+        return publishResponses;
 
     }
 
@@ -93,7 +115,7 @@ public class HttpPublishService implements PublishService {
         if (publish.isFullPut()) {
             StringBody fullput = new StringBody("true");
             multipart.addPart("fullPut", fullput);
-            FileBody octets = new FileBody(ndo.getOctets());
+            FileBody octets = new ChannelFileBody(ndo.getOctets());
             multipart.addPart("octets", octets);
         }
 
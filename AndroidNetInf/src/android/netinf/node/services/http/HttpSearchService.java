@@ -3,6 +3,7 @@ package android.netinf.node.services.http;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -12,14 +13,9 @@ import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -36,40 +32,36 @@ public class HttpSearchService implements SearchService {
 
     public static final String TAG = HttpSearchService.class.getSimpleName();
 
-    public static final int TIMEOUT = 1000;
-
     @Override
-    public SearchResponse perform(Search search) {
+    public SearchResponse perform(final Search search) {
         Log.i(TAG, "HTTP SEARCH " + search);
 
-        // HTTP Client
-        HttpParams params = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(params, TIMEOUT);
-        HttpConnectionParams.setSoTimeout(params, TIMEOUT);
-        HttpClient client = new DefaultHttpClient(params);
-
-        Set<Ndo> results = new LinkedHashSet<Ndo>();
-        for (String peer : HttpCommon.getPeers()) {
-            try {
-                HttpResponse response = client.execute(createSearch(peer, search));
+        // Search all peers at once, merging results as they arrive until the search times out
+        final Set<Ndo> results = new LinkedHashSet<Ndo>();
+        HttpFanOut<Set<Ndo>> fanOut = new HttpFanOut<Set<Ndo>>("SEARCH") {
+            @Override
+            protected HttpUriRequest createRequest(String peer) throws IOException {
+                return createSearch(peer, search);
+            }
+            @Override
+            protected Set<Ndo> parse(String peer, HttpResponse response) throws NetInfException {
                 int status = response.getStatusLine().getStatusCode();
-                if (status == HttpStatus.SC_OK) {
-                    results.addAll(parse(response));
-                } else {
-                    Log.e(TAG, "SEARCH to " + peer + " failed: " + status);
+                if (status != HttpStatus.SC_OK) {
+                    throw new NetInfException("Unhandled status code: " + status);
                 }
-            } catch (ClientProtocolException e) {
-                Log.e(TAG, "SEARCH to " + peer + " failed", e);
-            } catch (UnsupportedEncodingException e) {
-                Log.e(TAG, "SEARCH to " + peer + " failed", e);
-            } catch (IOException e) {
-                Log.e(TAG, "SEARCH to " + peer + " failed", e);
-            } catch (NetInfException e) {
-                Log.e(TAG, "SEARCH to " + peer + " failed", e);
+                return HttpSearchService.this.parse(response);
             }
-        }
+            @Override
+            protected boolean gather(String peer, Set<Ndo> ndos) {
+                results.addAll(ndos);
+                return false;
+            }
+        };
+        fanOut.perform(HttpCommon.SCOREBOARD.order(Arrays.asList(HttpCommon.getPeers())), search.getTimeout());
 
-        return new SearchResponse.Builder(search).addResults(results).build();
+        synchronized (fanOut) {
+            return new SearchResponse.Builder(search).addResults(results).build();
+        }
 
     }
 
@@ -0,0 +1,295 @@
+package android.netinf.node.services.http;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import android.netinf.common.BufferPool;
+
+/**
+ * Reads a multipart body part by part from a stream, using a single buffer of the {@link BufferPool}.
+ * Headers are parsed a line at a time and bodies are passed on to a stream as they arrive,
+ * so memory use does not depend on the size of the parts.
+ * <pre>
+ * while (reader.nextPart()) {
+ *     reader.getHeader("Content-Type");
+ *     reader.readBody(out, limit);
+ * }
+ * </pre>
+ * The underlying stream is not closed by {@link #close()}.
+ */
+public class MultipartReader implements Closeable {
+
+    public static final String TAG = MultipartReader.class.getSimpleName();
+
+    /** Maximum size of the headers of a part. */
+    public static final int MAX_HEADER_SIZE = 8 * 1024;
+    /** Maximum size of the preamble before the first part. */
+    public static final int MAX_PREAMBLE_SIZE = 8 * 1024;
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte DASH = '-';
+
+    private final InputStream mIn;
+    // CRLF--boundary
+    private final byte[] mDelimiter;
+    private byte[] mBuffer;
+    // Unread bytes are mBuffer[mHead, mTail)
+    private int mHead = 0;
+    private int mTail = 0;
+
+    private final Map<String, String> mHeaders = new HashMap<String, String>();
+    private boolean mStarted = false;
+    private boolean mInBody = false;
+    private boolean mFinished = false;
+
+    /**
+     * Creates a new {@link MultipartReader}.
+     * @param in
+     *     The stream of the multipart body
+     * @param boundary
+     *     The boundary, as given in the content type
+     */
+    public MultipartReader(InputStream in, String boundary) {
+        mIn = in;
+        mDelimiter = ("\r\n--" + boundary).getBytes();
+        mBuffer = BufferPool.TRANSFER.acquire();
+        // The first boundary is not preceded by a line break, pretend it is so that all delimiters look the same
+        mBuffer[mTail++] = CR;
+        mBuffer[mTail++] = LF;
+    }
+
+    /**
+     * Gets the boundary parameter of a multipart content type.
+     * @param contentType
+     *     The content type
+     * @return
+     *     The boundary, null if there is none
+     */
+    public static String getBoundary(String contentType) {
+        int start = contentType.toLowerCase(Locale.US).indexOf("boundary=");
+        if (start == -1) {
+            return null;
+        }
+        String boundary = contentType.substring(start + 9);
+        int end = boundary.indexOf(';');
+        if (end != -1) {
+            boundary = boundary.substring(0, end);
+        }
+        boundary = boundary.trim();
+        if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+            boundary = boundary.substring(1, boundary.length() - 1);
+        }
+        return boundary.length() == 0 ? null : boundary;
+    }
+
+    /**
+     * Moves to the next part and reads its headers, skipping what is left of the current part.
+     * @return
+     *     True if there is a next part, false if the end of the multipart body was reached
+     * @throws IOException
+     *     In case the stream ended early, the multipart body is malformed or reading failed
+     */
+    public boolean nextPart() throws IOException {
+
+        if (mFinished) {
+            return false;
+        }
+
+        // Skip the preamble or the rest of the current part
+        if (!mStarted) {
+            mStarted = true;
+            readBody(null, MAX_PREAMBLE_SIZE);
+        } else if (mInBody) {
+            readBody(null, Long.MAX_VALUE);
+        }
+
+        // Close delimiter
+        byte first = readByte();
+        byte second = readByte();
+        if (first == DASH && second == DASH) {
+            mFinished = true;
+            return false;
+        }
+
+        // Rest of the delimiter line, only whitespace is allowed
+        int size = 0;
+        while (first != CR || second != LF) {
+            if (first != ' ' && first != '\t') {
+                throw new IOException("Malformed multipart boundary");
+            }
+            if (++size > MAX_HEADER_SIZE) {
+                throw new IOException("Multipart boundary line too long");
+            }
+            first = second;
+            second = readByte();
+        }
+
+        readHeaders();
+        mInBody = true;
+        return true;
+
+    }
+
+    /**
+     * Gets a header of the current part.
+     * @param name
+     *     The header name, case insensitive
+     * @return
+     *     The header value, null if the part has no such header
+     */
+    public String getHeader(String name) {
+        return mHeaders.get(name.toLowerCase(Locale.US));
+    }
+
+    /**
+     * Reads the body of the current part.
+     * @param out
+     *     The stream the body is written to, which is not closed, or null to skip the body
+     * @param limit
+     *     The maximum size of the body
+     * @return
+     *     The size of the body
+     * @throws IOException
+     *     In case the body is larger than the limit, the stream ended early or reading or writing failed
+     */
+    public long readBody(OutputStream out, long limit) throws IOException {
+
+        long size = 0;
+        int keep = mDelimiter.length - 1;
+
+        while (true) {
+
+            // Pass on everything before the delimiter
+            int index = indexOfDelimiter();
+            if (index != -1) {
+                size = pass(out, index - mHead, size, limit);
+                mHead = index + mDelimiter.length;
+                mInBody = false;
+                return size;
+            }
+
+            // Pass on everything except what could be the start of a delimiter
+            int available = mTail - mHead - keep;
+            if (available > 0) {
+                size = pass(out, available, size, limit);
+            }
+
+            if (!fill()) {
+                throw new EOFException("Unexpected end of multipart body");
+            }
+
+        }
+
+    }
+
+    /**
+     * Gives the buffer back to the {@link BufferPool}, the underlying stream is not closed.
+     */
+    @Override
+    public void close() {
+        BufferPool.TRANSFER.release(mBuffer);
+        mBuffer = null;
+    }
+
+    private void readHeaders() throws IOException {
+
+        mHeaders.clear();
+        int size = 0;
+        String previous = null;
+
+        while (true) {
+
+            // Read a line
+            StringBuilder line = new StringBuilder();
+            byte b;
+            while ((b = readByte()) != LF) {
+                if (++size > MAX_HEADER_SIZE) {
+                    throw new IOException("Multipart headers too large");
+                }
+                if (b != CR) {
+                    line.append((char) (b & 0xFF));
+                }
+            }
+
+            // Empty line ends the headers
+            if (line.length() == 0) {
+                return;
+            }
+
+            // Folded line continues the previous header
+            char start = line.charAt(0);
+            if ((start == ' ' || start == '\t') && previous != null) {
+                mHeaders.put(previous, mHeaders.get(previous) + " " + line.toString().trim());
+                continue;
+            }
+
+            int colon = line.indexOf(":");
+            if (colon == -1) {
+                throw new IOException("Malformed multipart header: " + line);
+            }
+            previous = line.substring(0, colon).trim().toLowerCase(Locale.US);
+            mHeaders.put(previous, line.substring(colon + 1).trim());
+
+        }
+
+    }
+
+    private long pass(OutputStream out, int length, long size, long limit) throws IOException {
+        if (size + length > limit) {
+            throw new IOException("Multipart part larger than " + limit + " bytes");
+        }
+        if (out != null) {
+            out.write(mBuffer, mHead, length);
+        }
+        mHead += length;
+        return size + length;
+    }
+
+    private int indexOfDelimiter() {
+        int last = mTail - mDelimiter.length;
+        outer:
+        for (int i = mHead; i <= last; i++) {
+            for (int j = 0; j < mDelimiter.length; j++) {
+                if (mBuffer[i + j] != mDelimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private byte readByte() throws IOException {
+        if (mHead == mTail && !fill()) {
+            throw new EOFException("Unexpected end of multipart body");
+        }
+        return mBuffer[mHead++];
+    }
+
+    /**
+     * Moves the unread bytes to the start of the buffer and reads more.
+     * @return
+     *     False if the end of the stream was reached
+     */
+    private boolean fill() throws IOException {
+        if (mHead > 0) {
+            System.arraycopy(mBuffer, mHead, mBuffer, 0, mTail - mHead);
+            mTail -= mHead;
+            mHead = 0;
+        }
+        int read = mIn.read(mBuffer, mTail, mBuffer.length - mTail);
+        if (read == -1) {
+            return false;
+        }
+        mTail += read;
+        return true;
+    }
+
+}
@@ -26,6 +26,7 @@ public class RestApi implements Api {
         mComponent.getDefaultHost().attach("/publish", RestPublishResource.class);
         mComponent.getDefaultHost().attach("/get", RestGetResource.class);
         mComponent.getDefaultHost().attach("/search", RestSearchResource.class);
+        mComponent.getDefaultHost().attach("/metrics", RestMetricsResource.class);
         disableLogging();
     }
 
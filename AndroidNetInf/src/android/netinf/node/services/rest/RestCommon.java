@@ -9,5 +9,6 @@ public class RestCommon {
     public static final String BLUETOOTH = "bluetooth";
     public static final String META = "meta";
     public static final String TOKENS = "tokens";
+    public static final String OCTETS = "octets";
 
 }
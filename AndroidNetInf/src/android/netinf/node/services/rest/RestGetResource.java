@@ -1,12 +1,16 @@
 package android.netinf.node.services.rest;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.restlet.data.MediaType;
 import org.restlet.data.Status;
+import org.restlet.representation.FileRepresentation;
+import org.restlet.representation.InputRepresentation;
 import org.restlet.representation.Representation;
 import org.restlet.representation.StringRepresentation;
 import org.restlet.resource.ServerResource;
@@ -55,6 +59,12 @@ public class RestGetResource extends ServerResource {
                 return null;
             }
 
+            // Get was performed and resulted in octets, which were asked for directly
+            if (Boolean.parseBoolean(query.get(RestCommon.OCTETS))) {
+                setStatus(Status.SUCCESS_OK);
+                return toRepresentation(response.getNdo());
+            }
+
             // Get was performed and resulted in octets
             JSONObject json = new JSONObject();
             json.put(RestCommon.PATH, response.getNdo().getOctets().getCanonicalPath());
@@ -76,4 +86,19 @@ public class RestGetResource extends ServerResource {
 
     }
 
+    /**
+     * Creates a representation of the octets of an Ndo, from memory if they are popular.
+     * @param ndo
+     *     The Ndo
+     * @return
+     *     The representation
+     */
+    private Representation toRepresentation(Ndo ndo) {
+        byte[] octets = Node.getHotOctets(ndo);
+        if (octets != null) {
+            return new InputRepresentation(new ByteArrayInputStream(octets), MediaType.APPLICATION_OCTET_STREAM, octets.length);
+        }
+        return new FileRepresentation(ndo.getOctets(), MediaType.APPLICATION_OCTET_STREAM);
+    }
+
 }
@@ -0,0 +1,34 @@
+package android.netinf.node.services.rest;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.restlet.data.Status;
+import org.restlet.representation.Representation;
+import org.restlet.representation.StringRepresentation;
+import org.restlet.resource.Get;
+import org.restlet.resource.ServerResource;
+
+import android.netinf.node.Node;
+import android.util.Log;
+
+public class RestMetricsResource extends ServerResource {
+
+    public static final String TAG = RestMetricsResource.class.getSimpleName();
+
+    @Get
+    public Representation handleMetrics() {
+
+        try {
+            JSONObject json = Node.getMetrics();
+            setStatus(Status.SUCCESS_OK);
+            return new StringRepresentation(json.toString());
+        } catch (JSONException e) {
+            Log.wtf(TAG, "Failed to create metrics JSON", e);
+        }
+
+        setStatus(Status.SERVER_ERROR_INTERNAL);
+        return null;
+
+    }
+
+}
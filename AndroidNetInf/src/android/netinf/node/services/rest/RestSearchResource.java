@@ -1,16 +1,22 @@
 package android.netinf.node.services.rest;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.restlet.data.MediaType;
 import org.restlet.data.Status;
+import org.restlet.representation.OutputRepresentation;
 import org.restlet.representation.Representation;
-import org.restlet.representation.StringRepresentation;
 import org.restlet.resource.Get;
 import org.restlet.resource.ServerResource;
 
@@ -18,6 +24,7 @@ import android.netinf.common.Ndo;
 import android.netinf.messages.Search;
 import android.netinf.messages.SearchResponse;
 import android.netinf.node.Node;
+import android.netinf.node.search.SearchListener;
 import android.util.Log;
 
 public class RestSearchResource extends ServerResource {
@@ -26,6 +33,9 @@ public class RestSearchResource extends ServerResource {
 
     public static final long TIMEOUT = 5000;
 
+    // Marks the end of the results
+    private static final Set<Ndo> END = new HashSet<Ndo>();
+
     @Get
     public Representation handleSearch() {
 
@@ -45,32 +55,75 @@ public class RestSearchResource extends ServerResource {
         Search search = new Search.Builder(RestApi.getInstance()).tokens(tokens).timeout(TIMEOUT).build();
         Log.i(TAG, "REST API received SEARCH: " + search);
 
-        try {
-            SearchResponse response = Node.submit(search).get();
-
-            JSONObject json = new JSONObject();
-            JSONArray results = new JSONArray();
-            json.put("results", results);
-            for (Ndo ndo : response.getResults()) {
-                JSONObject result = new JSONObject();
-                result.put("ni", ndo.getUri());
-                result.put("meta", ndo.getMetadata().toJson());
-                results.put(result);
+        // Queue results as they arrive, they are written while the response is sent
+        final BlockingQueue<Set<Ndo>> batches = new LinkedBlockingQueue<Set<Ndo>>();
+        Node.submit(search, new SearchListener() {
+            @Override
+            public void onResults(Search search, Set<Ndo> results) {
+                batches.add(results);
+            }
+            @Override
+            public void onDone(SearchResponse response) {
+                batches.add(END);
             }
-            setStatus(Status.SUCCESS_OK);
-            return new StringRepresentation(json.toString());
-
-        } catch (JSONException e) {
-            Log.wtf(TAG, "Failed to create search response JSON", e);
-        } catch (InterruptedException e) {
-            Log.wtf(TAG, "SEARCH failed", e);
-        } catch (ExecutionException e) {
-            Log.wtf(TAG, "SEARCH failed", e);
+        });
+
+        setStatus(Status.SUCCESS_OK);
+        return new ResultsRepresentation(batches);
+
+    }
+
+    /**
+     * Writes the results of a Search as they arrive, flushing after each batch.
+     * The JSON is the same as when all results were written at once.
+     */
+    private static class ResultsRepresentation extends OutputRepresentation {
+
+        private final BlockingQueue<Set<Ndo>> mBatches;
+
+        public ResultsRepresentation(BlockingQueue<Set<Ndo>> batches) {
+            super(MediaType.TEXT_PLAIN);
+            mBatches = batches;
         }
 
-        setStatus(Status.SERVER_ERROR_INTERNAL);
-        return null;
+        @Override
+        public void write(OutputStream out) throws IOException {
+
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            writer.write("{\"results\":[");
+            writer.flush();
+
+            boolean first = true;
+            try {
+                while (true) {
+                    // The Search always ends within its timeout, do not wait forever if it does not
+                    Set<Ndo> batch = mBatches.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+                    if (batch == null || batch == END) {
+                        break;
+                    }
+                    for (Ndo ndo : batch) {
+                        JSONObject result = new JSONObject();
+                        result.put("ni", ndo.getUri());
+                        result.put("meta", ndo.getMetadata().toJson());
+                        if (!first) {
+                            writer.write(",");
+                        }
+                        writer.write(result.toString());
+                        first = false;
+                    }
+                    writer.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (JSONException e) {
+                Log.wtf(TAG, "Failed to create search response JSON", e);
+            }
+
+            writer.write("]}");
+            writer.flush();
+
+        }
 
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,42 @@
+package android.netinf.common;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import android.util.Base64;
+
+public class NetInfUtilsTest extends TestCase {
+
+    private static final int BASE64_FLAGS = Base64.NO_PADDING | Base64.NO_WRAP | Base64.URL_SAFE;
+
+    public void testFullHash() throws NoSuchAlgorithmException {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest("netinf".getBytes());
+        assertEquals(Base64.encodeToString(digest, BASE64_FLAGS), NetInfUtils.hash("netinf", "sha-256"));
+    }
+
+    public void testTruncatedHashIsPrefixOfFullHash() throws NoSuchAlgorithmException {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest("netinf".getBytes());
+        for (int bits : new int[] {32, 64, 96, 120, 128, 256}) {
+            String hash = NetInfUtils.hash("netinf", "sha-256-" + bits);
+            assertTrue(Arrays.equals(Arrays.copyOf(digest, bits / 8), Base64.decode(hash, BASE64_FLAGS)));
+        }
+    }
+
+    public void testTruncatedAlgorithmIsCaseInsensitive() throws NoSuchAlgorithmException {
+        assertEquals(NetInfUtils.hash("netinf", "sha-256-128"), NetInfUtils.hash("netinf", "SHA-256-128"));
+    }
+
+    public void testUnsupportedTruncationIsRejected() {
+        for (String algorithm : new String[] {"sha-256-0", "sha-256-7", "sha-256-264"}) {
+            try {
+                NetInfUtils.newDigest(algorithm);
+                fail(algorithm + " should not be supported");
+            } catch (NoSuchAlgorithmException e) {
+                // Expected
+            }
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package android.netinf.common;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class PeerScoreboardTest extends TestCase {
+
+    private PeerScoreboard<String> mScoreboard;
+
+    @Override
+    protected void setUp() {
+        mScoreboard = new PeerScoreboard<String>("test");
+    }
+
+    public void testOrdersByRoundTripTime() {
+        mScoreboard.success("slow", 300);
+        mScoreboard.success("fast", 10);
+        mScoreboard.success("medium", 100);
+        assertEquals(Arrays.asList("fast", "medium", "slow"), mScoreboard.order(Arrays.asList("slow", "medium", "fast")));
+    }
+
+    public void testUnknownPeersFirstAndTiesKeepOrder() {
+        mScoreboard.success("known", 10);
+        assertEquals(Arrays.asList("a", "b", "known"), mScoreboard.order(Arrays.asList("known", "a", "b")));
+    }
+
+    public void testFailedPeerBacksOff() {
+        mScoreboard.failure("dead", 2000);
+        assertFalse(mScoreboard.isAvailable("dead"));
+        assertEquals(Arrays.asList("alive"), mScoreboard.order(Arrays.asList("dead", "alive")));
+    }
+
+    public void testSuccessEndsBackoff() {
+        mScoreboard.failure("peer", 2000);
+        mScoreboard.success("peer", 10);
+        assertTrue(mScoreboard.isAvailable("peer"));
+    }
+
+    public void testProbesPeerWhoseBackoffEndsFirst() {
+        // Two failures double the backoff
+        mScoreboard.failure("later", 2000);
+        mScoreboard.failure("later", 2000);
+        mScoreboard.failure("sooner", 2000);
+        List<String> ordered = mScoreboard.order(Arrays.asList("later", "sooner"));
+        assertEquals(Arrays.asList("sooner"), ordered);
+    }
+
+    public void testLatencyNeedsEnoughSamples() {
+        for (int i = 1; i < PeerScoreboard.MIN_LATENCY_SAMPLES; i++) {
+            mScoreboard.success("peer", i);
+        }
+        assertEquals(-1, mScoreboard.getLatency("peer", 95));
+        assertEquals(-1, mScoreboard.getLatency("unknown", 95));
+    }
+
+    public void testLatencyPercentile() {
+        for (int i = 1; i <= 20; i++) {
+            mScoreboard.success("peer", i * 10);
+        }
+        assertEquals(190, mScoreboard.getLatency("peer", 95));
+        assertEquals(100, mScoreboard.getLatency("peer", 50));
+        assertEquals(200, mScoreboard.getLatency("peer", 100));
+    }
+
+    public void testLatencyKeepsRecentSamples() {
+        for (int i = 0; i < PeerScoreboard.LATENCY_SAMPLES; i++) {
+            mScoreboard.success("peer", 1000);
+        }
+        for (int i = 0; i < PeerScoreboard.LATENCY_SAMPLES; i++) {
+            mScoreboard.success("peer", 10);
+        }
+        assertEquals(10, mScoreboard.getLatency("peer", 100));
+    }
+
+}
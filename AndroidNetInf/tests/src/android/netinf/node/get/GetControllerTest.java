@@ -0,0 +1,190 @@
+package android.netinf.node.get;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import android.netinf.common.FutureUtils;
+import android.netinf.common.Locator;
+import android.netinf.common.Ndo;
+import android.netinf.messages.Get;
+import android.netinf.messages.GetResponse;
+import android.netinf.node.api.Api;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class GetControllerTest extends TestCase {
+
+    private static final long BUDGET = 5000;
+
+    private static final Locator LOCATOR = Locator.fromBluetooth("00:11:22:33:44:55");
+
+    /** A Get from another node, raced without resolving locators first. */
+    private static final Api REMOTE = new Api() {
+        @Override
+        public void stop() { }
+        @Override
+        public void start() { }
+    };
+
+    private GetController mController;
+    private Ndo mNdo;
+
+    @Override
+    protected void setUp() {
+        mController = new GetController(null, null, new NegativeCache(10), null);
+        mNdo = new Ndo.Builder("sha-256", "raced").build();
+    }
+
+    @Override
+    protected void tearDown() {
+        FileUtils.deleteQuietly(mNdo.getOctets());
+    }
+
+    /**
+     * A remote service answering when the test says so.
+     */
+    private static class StubService implements GetService, AsyncGetService {
+
+        private final SettableFuture<GetResponse> mPerform = SettableFuture.create();
+        private AbstractFuture<GetResponse> mResolve;
+
+        @Override
+        public GetResponse perform(Get get) {
+            return FutureUtils.getOrElse(performAsync(get), null);
+        }
+
+        @Override
+        public GetResponse resolveLocators(Get get) {
+            return FutureUtils.getOrElse(resolveLocatorsAsync(get), null);
+        }
+
+        @Override
+        public AbstractFuture<GetResponse> performAsync(Get get) {
+            return mPerform;
+        }
+
+        @Override
+        public AbstractFuture<GetResponse> resolveLocatorsAsync(Get get) {
+            if (mResolve == null) {
+                return FutureUtils.immediateFuture(new GetResponse.Builder(get).failed().build());
+            }
+            return mResolve;
+        }
+
+    }
+
+    private Get get(Api source) {
+        return new Get.Builder(source, mNdo).build();
+    }
+
+    private GetResponse cached(Get get) throws IOException {
+        FileUtils.writeByteArrayToFile(mNdo.getOctets(), new byte[] {1, 2, 3});
+        return new GetResponse.Builder(get).ok(get).build();
+    }
+
+    private GetResponse partial(Get get) {
+        return new GetResponse.Builder(get).ok(new Ndo.Builder(mNdo).addLocator(LOCATOR).build()).build();
+    }
+
+    private static GetResponse failed(Get get) {
+        return new GetResponse.Builder(get).failed().build();
+    }
+
+    private AbstractFuture<GetResponse> race(Get get, Set<Locator> next, StubService... services) {
+        Collection<GetService> remote = Arrays.<GetService>asList(services);
+        return mController.race(get, remote, new LocatorResolver(get, remote, BUDGET), next);
+    }
+
+    public void testFirstCachedResponseWins() throws IOException {
+        Get get = get(REMOTE);
+        StubService partial = new StubService();
+        StubService first = new StubService();
+        StubService second = new StubService();
+        AbstractFuture<GetResponse> result = race(get, new HashSet<Locator>(), partial, first, second);
+
+        // Locators alone do not win
+        partial.mPerform.set(partial(get));
+        assertFalse(result.isDone());
+
+        GetResponse winner = cached(get);
+        first.mPerform.set(winner);
+        assertTrue(result.isDone());
+        assertSame(winner, FutureUtils.getOrElse(result, null));
+
+        // A later response changes nothing
+        assertFalse(second.mPerform.set(cached(get)));
+        assertSame(winner, FutureUtils.getOrElse(result, null));
+    }
+
+    public void testWinnerCancelsLosers() throws IOException {
+        Get get = get(REMOTE);
+        StubService winner = new StubService();
+        StubService loser = new StubService();
+        AbstractFuture<GetResponse> result = race(get, new HashSet<Locator>(), loser, winner);
+
+        winner.mPerform.set(cached(get));
+        assertTrue(result.isDone());
+        assertTrue(loser.mPerform.isCancelled());
+        assertFalse(winner.mPerform.isCancelled());
+    }
+
+    public void testNoWinnerFallsBackToPartialResponse() {
+        Get get = get(REMOTE);
+        StubService partial = new StubService();
+        StubService failing = new StubService();
+        Set<Locator> next = new HashSet<Locator>();
+        AbstractFuture<GetResponse> result = race(get, next, partial, failing);
+
+        partial.mPerform.set(partial(get));
+        failing.mPerform.set(failed(get));
+        assertTrue(result.isDone());
+        GetResponse getResponse = FutureUtils.getOrElse(result, null);
+        assertTrue(getResponse.getStatus().isSuccess());
+        assertFalse(getResponse.getNdo().isCached());
+        // The locators are kept for later resolution
+        assertTrue(next.contains(LOCATOR));
+    }
+
+    public void testNoWinnerFails() {
+        Get get = get(REMOTE);
+        StubService one = new StubService();
+        StubService other = new StubService();
+        AbstractFuture<GetResponse> result = race(get, new HashSet<Locator>(), one, other);
+
+        one.mPerform.set(failed(get));
+        assertFalse(result.isDone());
+        other.mPerform.set(failed(get));
+        assertTrue(result.isDone());
+        assertTrue(FutureUtils.getOrElse(result, null).getStatus().isError());
+    }
+
+    public void testNoServicesFails() {
+        AbstractFuture<GetResponse> result = race(get(REMOTE), new HashSet<Locator>());
+        assertTrue(result.isDone());
+        assertTrue(FutureUtils.getOrElse(result, null).getStatus().isError());
+    }
+
+    public void testLocalGetResolvesLocatorsWhenNobodyWins() throws IOException {
+        Get get = get(Api.JAVA);
+        StubService service = new StubService();
+        SettableFuture<GetResponse> resolving = SettableFuture.create();
+        service.mResolve = resolving;
+        AbstractFuture<GetResponse> result = race(get, new HashSet<Locator>(), service);
+
+        // The partial response only had locators, which are resolved before the Get is done
+        service.mPerform.set(partial(get));
+        assertFalse(result.isDone());
+        resolving.set(cached(get));
+        assertTrue(result.isDone());
+        assertTrue(FutureUtils.getOrElse(result, null).getNdo().isCached());
+    }
+
+}
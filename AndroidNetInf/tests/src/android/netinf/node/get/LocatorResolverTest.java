@@ -0,0 +1,111 @@
+package android.netinf.node.get;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.RejectedExecutionException;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import android.netinf.common.FutureUtils;
+import android.netinf.common.Locator;
+import android.netinf.common.Ndo;
+import android.netinf.messages.Get;
+import android.netinf.messages.GetResponse;
+
+import com.google.common.util.concurrent.AbstractFuture;
+
+public class LocatorResolverTest extends TestCase {
+
+    private static final long BUDGET = 5000;
+
+    private static final Locator LOCATOR = Locator.fromBluetooth("00:11:22:33:44:55");
+
+    private Get mGet;
+
+    @Override
+    protected void setUp() {
+        mGet = new Get.Builder(new Ndo.Builder("sha-256", "resolved").build()).build();
+    }
+
+    @Override
+    protected void tearDown() {
+        FileUtils.deleteQuietly(mGet.getNdo().getOctets());
+    }
+
+    /**
+     * Resolves locators without blocking, as remote services do.
+     */
+    private static abstract class TestService implements GetService, AsyncGetService {
+
+        @Override
+        public GetResponse perform(Get get) {
+            return FutureUtils.getOrElse(performAsync(get), null);
+        }
+
+        @Override
+        public GetResponse resolveLocators(Get get) {
+            return FutureUtils.getOrElse(resolveLocatorsAsync(get), null);
+        }
+
+        @Override
+        public AbstractFuture<GetResponse> performAsync(Get get) {
+            return resolveLocatorsAsync(get);
+        }
+
+    }
+
+    private static class FailingService extends TestService {
+        @Override
+        public AbstractFuture<GetResponse> resolveLocatorsAsync(Get get) {
+            return FutureUtils.immediateFuture(new GetResponse.Builder(get).failed().build());
+        }
+    }
+
+    private static class RejectedService extends TestService {
+        @Override
+        public AbstractFuture<GetResponse> resolveLocatorsAsync(Get get) {
+            return FutureUtils.immediateFailedFuture(new RejectedExecutionException());
+        }
+    }
+
+    private static class CachingService extends TestService {
+        @Override
+        public AbstractFuture<GetResponse> resolveLocatorsAsync(Get get) {
+            try {
+                FileUtils.writeByteArrayToFile(get.getNdo().getOctets(), new byte[] {1, 2, 3});
+            } catch (IOException e) {
+                return FutureUtils.immediateFailedFuture(e);
+            }
+            return FutureUtils.immediateFuture(new GetResponse.Builder(get).ok(get).build());
+        }
+    }
+
+    private AbstractFuture<GetResponse> resolve(GetService... services) {
+        LocatorResolver resolver = new LocatorResolver(mGet, Arrays.asList(services), BUDGET);
+        return resolver.resolve(Collections.singleton(LOCATOR));
+    }
+
+    public void testFailsWhenAllServicesFail() {
+        AbstractFuture<GetResponse> future = resolve(new FailingService(), new FailingService());
+        assertTrue(future.isDone());
+        assertFalse(FutureUtils.isRejected(future));
+        assertTrue(FutureUtils.getOrElse(future, null).getStatus().isError());
+    }
+
+    public void testRejectedServiceFailsResolution() {
+        AbstractFuture<GetResponse> future = resolve(new FailingService(), new RejectedService());
+        assertTrue(future.isDone());
+        // Not a failed response, which could be remembered by the negative cache
+        assertTrue(FutureUtils.isRejected(future));
+    }
+
+    public void testRejectedServiceDoesNotHideSuccess() {
+        AbstractFuture<GetResponse> future = resolve(new RejectedService(), new CachingService());
+        assertTrue(future.isDone());
+        assertTrue(FutureUtils.getOrElse(future, null).getNdo().isCached());
+    }
+
+}
@@ -0,0 +1,59 @@
+package android.netinf.node.get;
+
+import junit.framework.TestCase;
+import android.netinf.common.Locator;
+import android.netinf.common.Ndo;
+
+public class NegativeCacheTest extends TestCase {
+
+    private static Ndo ndo(String hash) {
+        return new Ndo.Builder("sha-256", hash).build();
+    }
+
+    public void testContainsFailedNdo() {
+        NegativeCache cache = new NegativeCache(10);
+        cache.add(ndo("a"), 60000);
+        assertTrue(cache.contains(ndo("a")));
+        assertFalse(cache.contains(ndo("b")));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    public void testComparesAlgorithmAndHashOnly() {
+        NegativeCache cache = new NegativeCache(10);
+        cache.add(ndo("a"), 60000);
+        Ndo withLocator = new Ndo.Builder("sha-256", "a").addLocator(Locator.fromBluetooth("00:11:22:33:44:55")).build();
+        assertTrue(cache.contains(withLocator));
+    }
+
+    public void testZeroTimeToLiveIsNotRemembered() {
+        NegativeCache cache = new NegativeCache(10);
+        cache.add(ndo("a"), 0);
+        assertFalse(cache.contains(ndo("a")));
+    }
+
+    public void testForgetsExpiredNdo() throws InterruptedException {
+        NegativeCache cache = new NegativeCache(10);
+        cache.add(ndo("a"), 20);
+        Thread.sleep(50);
+        assertFalse(cache.contains(ndo("a")));
+    }
+
+    public void testForgetsInvalidatedNdo() {
+        NegativeCache cache = new NegativeCache(10);
+        cache.add(ndo("a"), 60000);
+        cache.invalidate(ndo("a"));
+        assertFalse(cache.contains(ndo("a")));
+    }
+
+    public void testForgetsEldestOverCapacity() {
+        NegativeCache cache = new NegativeCache(2);
+        cache.add(ndo("a"), 60000);
+        cache.add(ndo("b"), 60000);
+        cache.add(ndo("c"), 60000);
+        assertFalse(cache.contains(ndo("a")));
+        assertTrue(cache.contains(ndo("b")));
+        assertTrue(cache.contains(ndo("c")));
+    }
+
+}
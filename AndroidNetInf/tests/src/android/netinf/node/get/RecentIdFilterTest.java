@@ -0,0 +1,40 @@
+package android.netinf.node.get;
+
+import junit.framework.TestCase;
+
+public class RecentIdFilterTest extends TestCase {
+
+    public void testContainsAddedId() {
+        RecentIdFilter filter = new RecentIdFilter(10, 60000);
+        filter.add("a");
+        assertTrue(filter.contains("a"));
+        assertFalse(filter.contains("b"));
+    }
+
+    public void testForgetsEldestOverCapacity() {
+        RecentIdFilter filter = new RecentIdFilter(2, 60000);
+        filter.add("a");
+        filter.add("b");
+        filter.add("c");
+        assertFalse(filter.contains("a"));
+        assertTrue(filter.contains("b"));
+        assertTrue(filter.contains("c"));
+    }
+
+    public void testAddingAgainDoesNotCountTowardsCapacity() {
+        RecentIdFilter filter = new RecentIdFilter(2, 60000);
+        filter.add("a");
+        filter.add("a");
+        filter.add("b");
+        assertTrue(filter.contains("a"));
+        assertTrue(filter.contains("b"));
+    }
+
+    public void testForgetsExpiredId() throws InterruptedException {
+        RecentIdFilter filter = new RecentIdFilter(10, 20);
+        filter.add("a");
+        Thread.sleep(50);
+        assertFalse(filter.contains("a"));
+    }
+
+}
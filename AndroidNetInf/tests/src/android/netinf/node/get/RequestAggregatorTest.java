@@ -0,0 +1,72 @@
+package android.netinf.node.get;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import android.netinf.common.Ndo;
+import android.netinf.messages.Get;
+
+public class RequestAggregatorTest extends TestCase {
+
+    private RequestAggregator mAggregator;
+    private Ndo mNdo;
+
+    @Override
+    protected void setUp() {
+        mAggregator = new RequestAggregator();
+        mNdo = new Ndo.Builder("sha-256", "hash").build();
+    }
+
+    public void testFirstGetIsNotAggregated() {
+        assertFalse(mAggregator.aggregate(new Get.Builder(mNdo).build()));
+    }
+
+    public void testGetsForSameNdoAreAggregated() {
+        Get first = new Get.Builder(mNdo).build();
+        Get second = new Get.Builder(mNdo).build();
+        Get third = new Get.Builder(new Ndo.Builder("sha-256", "hash").build()).build();
+
+        assertFalse(mAggregator.aggregate(first));
+        assertTrue(mAggregator.aggregate(second));
+        assertTrue(mAggregator.aggregate(third));
+
+        List<Get> waiting = toList(mAggregator.deaggregate(first));
+        assertEquals(3, waiting.size());
+        assertTrue(waiting.contains(first));
+        assertTrue(waiting.contains(second));
+        assertTrue(waiting.contains(third));
+    }
+
+    public void testGetsForOtherNdosAreNotAggregated() {
+        assertFalse(mAggregator.aggregate(new Get.Builder(mNdo).build()));
+        assertFalse(mAggregator.aggregate(new Get.Builder(new Ndo.Builder("sha-256", "other").build()).build()));
+    }
+
+    public void testDeaggregateStartsOver() {
+        Get first = new Get.Builder(mNdo).build();
+        assertFalse(mAggregator.aggregate(first));
+        mAggregator.deaggregate(first);
+
+        // The next Get for the Ndo has to be performed again
+        Get next = new Get.Builder(mNdo).build();
+        assertFalse(mAggregator.aggregate(next));
+        assertEquals(1, toList(mAggregator.deaggregate(next)).size());
+    }
+
+    public void testDeaggregateWithoutAggregateReturnsGet() {
+        Get get = new Get.Builder(mNdo).build();
+        List<Get> waiting = toList(mAggregator.deaggregate(get));
+        assertEquals(1, waiting.size());
+        assertSame(get, waiting.get(0));
+    }
+
+    private static List<Get> toList(Iterable<Get> gets) {
+        List<Get> list = new ArrayList<Get>();
+        for (Get get : gets) {
+            list.add(get);
+        }
+        return list;
+    }
+
+}
@@ -0,0 +1,119 @@
+package android.netinf.node.services.bluetooth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class BluetoothBinaryCodecTest extends TestCase {
+
+    private static final String URI = "ni:///sha-256;f4OxZX_x_FO5LcGBSKHWXfwtSx-j1ncoSt3SABJtkGk";
+    private static final String LOCATOR = "nimacbt://00:11:22:33:44:55";
+
+    private static byte[] writeVarint(long value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BluetoothBinaryCodec.writeVarint(new DataOutputStream(bytes), value);
+        return bytes.toByteArray();
+    }
+
+    private static DataInputStream input(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    private static JSONObject get(String msgid) throws JSONException {
+        JSONObject jo = new JSONObject();
+        jo.put("type", "get");
+        jo.put("msgid", msgid);
+        jo.put("hoplimit", 2);
+        jo.put("uri", URI);
+        jo.put("locators", new JSONArray().put(LOCATOR));
+        jo.put("octets", true);
+        jo.put("custom", "kept as text");
+        return jo;
+    }
+
+    public void testVarintRoundTrip() throws IOException {
+        for (long value : new long[] {0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE}) {
+            assertEquals(value, BluetoothBinaryCodec.readVarint(input(writeVarint(value))));
+        }
+    }
+
+    public void testVarintSize() throws IOException {
+        assertEquals(1, writeVarint(127).length);
+        assertEquals(2, writeVarint(128).length);
+        assertEquals(2, writeVarint(16383).length);
+        assertEquals(3, writeVarint(16384).length);
+    }
+
+    public void testVarintTooLongIsRejected() {
+        byte[] bytes = new byte[11];
+        Arrays.fill(bytes, (byte) 0x80);
+        try {
+            BluetoothBinaryCodec.readVarint(input(bytes));
+            fail("Varint too long should be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    public void testLengthOverMaximumIsRejected() throws IOException {
+        assertEquals(10, BluetoothBinaryCodec.readLength(input(writeVarint(10)), 10));
+        try {
+            BluetoothBinaryCodec.readLength(input(writeVarint(11)), 10);
+            fail("Length over the maximum should be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    public void testMessageRoundTrip() throws IOException, JSONException {
+        BluetoothBinaryCodec encoder = new BluetoothBinaryCodec();
+        BluetoothBinaryCodec decoder = new BluetoothBinaryCodec();
+
+        JSONObject decoded = decoder.decode(encoder.encode(get("1")));
+        assertEquals("get", decoded.getString("type"));
+        assertEquals("1", decoded.getString("msgid"));
+        assertEquals(2, decoded.getInt("hoplimit"));
+        assertEquals(URI, decoded.getString("uri"));
+        assertEquals(LOCATOR, decoded.getJSONArray("locators").getString(0));
+        assertTrue(decoded.getBoolean("octets"));
+        assertEquals("kept as text", decoded.getString("custom"));
+    }
+
+    public void testInternedStringsAreSentOnce() throws IOException, JSONException {
+        BluetoothBinaryCodec encoder = new BluetoothBinaryCodec();
+        BluetoothBinaryCodec decoder = new BluetoothBinaryCodec();
+
+        byte[] first = encoder.encode(get("1"));
+        byte[] second = encoder.encode(get("2"));
+        // The algorithm and locator are sent as indexes the second time
+        assertTrue(second.length < first.length - LOCATOR.length());
+
+        // Decoded in the order they were encoded, both messages come back the same
+        assertEquals(URI, decoder.decode(first).getString("uri"));
+        JSONObject decoded = decoder.decode(second);
+        assertEquals(URI, decoded.getString("uri"));
+        assertEquals(LOCATOR, decoded.getJSONArray("locators").getString(0));
+    }
+
+    public void testUnknownInternedStringIsRejected() throws IOException, JSONException {
+        BluetoothBinaryCodec encoder = new BluetoothBinaryCodec();
+        encoder.encode(get("1"));
+        try {
+            // A decoder that missed the first message does not know the interned strings
+            new BluetoothBinaryCodec().decode(encoder.encode(get("2")));
+            fail("Unknown interned string should be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+}
@@ -0,0 +1,314 @@
+package android.netinf.node.services.bluetooth;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.netinf.common.CacheOutputStream;
+import android.netinf.common.Ndo;
+import android.netinf.common.ProgressListener;
+
+public class BluetoothMultiplexerTest extends TestCase {
+
+    private static final long TIMEOUT = 10000;
+
+    private Socket mSocketA;
+    private Socket mSocketB;
+
+    @Override
+    protected void setUp() throws IOException {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        try {
+            mSocketA = new Socket(server.getInetAddress(), server.getLocalPort());
+            mSocketB = server.accept();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        mSocketA.close();
+        mSocketB.close();
+    }
+
+    /**
+     * Does not read the preferences, which need a started node.
+     */
+    private static class TestMultiplexer extends BluetoothMultiplexer {
+
+        private final long mMaxLength;
+
+        public TestMultiplexer(Socket socket, String name, long maxLength) throws IOException {
+            super(null, socket.getInputStream(), socket.getOutputStream(), name);
+            mMaxLength = maxLength;
+        }
+
+        @Override
+        CacheOutputStream newCacheStream(Ndo ndo) throws IOException {
+            return ndo.newCacheStream(false);
+        }
+
+        @Override
+        long getMaxLength() {
+            return mMaxLength;
+        }
+
+        @Override
+        long getTimeout() {
+            return TIMEOUT;
+        }
+
+    }
+
+    private static JSONObject publish(String msgid, Ndo ndo) throws JSONException {
+        JSONObject jo = new JSONObject();
+        jo.put("type", "publish");
+        jo.put("msgid", msgid);
+        jo.put("uri", ndo.getUri());
+        return jo;
+    }
+
+    private static void connect(BluetoothMultiplexer multiplexer) throws JSONException {
+        JSONObject hello = new JSONObject();
+        hello.put("type", "hello");
+        hello.put("features", new JSONArray().put(BluetoothMultiplexer.FEATURE).put(BluetoothBinaryCodec.FEATURE));
+        multiplexer.handleHello(hello);
+    }
+
+    /**
+     * Reads messages on a thread of its own, as the socket handler does.
+     */
+    private static BlockingQueue<JSONObject> startReading(final BluetoothMultiplexer multiplexer) {
+        final BlockingQueue<JSONObject> messages = new LinkedBlockingQueue<JSONObject>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        messages.add(multiplexer.read());
+                    }
+                } catch (IOException e) {
+                    multiplexer.close();
+                }
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+        return messages;
+    }
+
+    public void testStopOnlyStopsStreamOfSender() throws Exception {
+
+        final Ndo fromA = new Ndo.Builder("sha-256", "stream-from-a").build();
+        final Ndo fromB = new Ndo.Builder("sha-256", "stream-from-b").build();
+
+        // A stores what it receives, B has no room for anything and stops the stream
+        BluetoothMultiplexer a = new TestMultiplexer(mSocketA, "b", Long.MAX_VALUE);
+        final BluetoothMultiplexer b = new TestMultiplexer(mSocketB, "a", 0);
+        connect(a);
+        connect(b);
+        BlockingQueue<JSONObject> receivedByA = startReading(a);
+        startReading(b);
+
+        try {
+
+            // B opens its stream 1 and keeps it open until A's stream 1 was stopped
+            final CountDownLatch opened = new CountDownLatch(1);
+            final CountDownLatch stopped = new CountDownLatch(1);
+            final byte[] octetsFromB = new byte[2 * BluetoothMultiplexer.FRAME_SIZE];
+            final IOException[] failure = new IOException[1];
+            Thread sender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        b.write(publish("b", fromB), octetsFromB, new ProgressListener() {
+                            @Override
+                            public void onProgress(long current, long total) {
+                                opened.countDown();
+                                try {
+                                    stopped.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                                } catch (InterruptedException e) {
+                                    Thread.currentThread().interrupt();
+                                }
+                            }
+                        });
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    } catch (JSONException e) {
+                        failure[0] = new IOException(e);
+                    }
+                }
+            });
+            sender.start();
+            assertTrue(opened.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+            // A's stream 1 needs credit B never gives, so A is still sending when B stops it
+            try {
+                a.write(publish("a", fromA), new byte[2 * BluetoothMultiplexer.WINDOW], null);
+                fail("Stream of A should be stopped by B");
+            } catch (IOException e) {
+                // Expected
+            }
+            stopped.countDown();
+
+            // B's stream 1 to A is unaffected
+            sender.join(TIMEOUT);
+            assertNull(failure[0]);
+            JSONObject received = receivedByA.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertNotNull(received);
+            assertEquals("b", received.getString("msgid"));
+            assertTrue(received.optBoolean(BluetoothMultiplexer.RECEIVED));
+            assertEquals(octetsFromB.length, fromB.getOctets().length());
+
+        } finally {
+            FileUtils.deleteQuietly(fromB.getOctets());
+        }
+
+    }
+
+    public void testStreamLongerThanAnnouncedIsStopped() throws Exception {
+
+        Ndo ndo = new Ndo.Builder("sha-256", "stream-too-long").build();
+        BluetoothMultiplexer a = new TestMultiplexer(mSocketA, "b", Long.MAX_VALUE);
+        connect(a);
+        BlockingQueue<JSONObject> receivedByA = startReading(a);
+
+        // B announces 10 bytes and sends more
+        RawPeer b = new RawPeer(mSocketB);
+        JSONObject announce = publish("b", ndo);
+        announce.put("stream", 1);
+        announce.put("length", 10);
+        b.writeMessage(announce);
+        b.writeFrame(BluetoothMultiplexer.DATA, 1, new byte[8]);
+        b.writeFrame(BluetoothMultiplexer.DATA, 1, new byte[8]);
+        b.writeFrame(BluetoothMultiplexer.END, 1, new byte[0]);
+
+        assertTrue(Arrays.equals(new int[] {BluetoothMultiplexer.STOP, 1, 0}, b.readControl()));
+        assertNull(receivedByA.poll(500, TimeUnit.MILLISECONDS));
+        assertFalse(ndo.getOctets().exists());
+        assertEquals(0, countTemporaryFiles(ndo));
+
+    }
+
+    public void testStreamLargerThanCacheIsStopped() throws Exception {
+
+        Ndo ndo = new Ndo.Builder("sha-256", "stream-too-large").build();
+        BluetoothMultiplexer a = new TestMultiplexer(mSocketA, "b", 10);
+        connect(a);
+        BlockingQueue<JSONObject> receivedByA = startReading(a);
+
+        RawPeer b = new RawPeer(mSocketB);
+        JSONObject announce = publish("b", ndo);
+        announce.put("stream", 1);
+        announce.put("length", 11);
+        b.writeMessage(announce);
+        b.writeFrame(BluetoothMultiplexer.DATA, 1, new byte[11]);
+        b.writeFrame(BluetoothMultiplexer.END, 1, new byte[0]);
+
+        assertTrue(Arrays.equals(new int[] {BluetoothMultiplexer.STOP, 1, 0}, b.readControl()));
+        assertNull(receivedByA.poll(500, TimeUnit.MILLISECONDS));
+        assertFalse(ndo.getOctets().exists());
+
+    }
+
+    public void testAnnouncingStreamAgainDropsUnfinishedStream() throws Exception {
+
+        Ndo ndo = new Ndo.Builder("sha-256", "stream-announced-twice").build();
+        BluetoothMultiplexer a = new TestMultiplexer(mSocketA, "b", Long.MAX_VALUE);
+        connect(a);
+        BlockingQueue<JSONObject> receivedByA = startReading(a);
+
+        try {
+
+            RawPeer b = new RawPeer(mSocketB);
+            JSONObject first = publish("first", ndo);
+            first.put("stream", 1);
+            first.put("length", 10);
+            b.writeMessage(first);
+            b.writeFrame(BluetoothMultiplexer.DATA, 1, new byte[4]);
+
+            JSONObject second = publish("second", ndo);
+            second.put("stream", 1);
+            second.put("length", 3);
+            b.writeMessage(second);
+            b.writeFrame(BluetoothMultiplexer.DATA, 1, new byte[] {1, 2, 3});
+            b.writeFrame(BluetoothMultiplexer.END, 1, new byte[0]);
+
+            JSONObject received = receivedByA.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertNotNull(received);
+            assertEquals("second", received.getString("msgid"));
+            assertEquals(3, ndo.getOctets().length());
+            // The file of the first stream was discarded
+            assertEquals(0, countTemporaryFiles(ndo));
+
+        } finally {
+            FileUtils.deleteQuietly(ndo.getOctets());
+        }
+
+    }
+
+    private static int countTemporaryFiles(Ndo ndo) {
+        File[] files = ndo.getOctets().getParentFile().listFiles();
+        int count = 0;
+        for (int i = 0; files != null && i < files.length; i++) {
+            if (files[i].getName().startsWith(ndo.getHash() + ".")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * A peer writing frames by hand, so it can break the rules.
+     */
+    private static class RawPeer {
+
+        private final BluetoothBinaryCodec mCodec = new BluetoothBinaryCodec();
+        private final DataInputStream mIn;
+        private final DataOutputStream mOut;
+
+        public RawPeer(Socket socket) throws IOException {
+            mIn = new DataInputStream(socket.getInputStream());
+            mOut = new DataOutputStream(socket.getOutputStream());
+        }
+
+        public void writeMessage(JSONObject jo) throws IOException {
+            byte[] buffer = mCodec.encode(jo);
+            mOut.writeInt(BluetoothMultiplexer.BINARY);
+            BluetoothBinaryCodec.writeVarint(mOut, buffer.length);
+            mOut.write(buffer);
+            mOut.flush();
+        }
+
+        public void writeFrame(int tag, int id, byte[] payload) throws IOException {
+            mOut.writeInt(tag);
+            mOut.writeInt(id);
+            mOut.writeInt(payload.length);
+            mOut.write(payload);
+            mOut.flush();
+        }
+
+        public int[] readControl() throws IOException {
+            return new int[] {mIn.readInt(), mIn.readInt(), mIn.readInt()};
+        }
+
+    }
+
+}
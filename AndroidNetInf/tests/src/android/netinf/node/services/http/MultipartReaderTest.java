@@ -0,0 +1,140 @@
+package android.netinf.node.services.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class MultipartReaderTest extends TestCase {
+
+    private static final String BOUNDARY = "xyz";
+
+    private static MultipartReader reader(String body) throws IOException {
+        return reader(body.getBytes("ISO-8859-1"));
+    }
+
+    private static MultipartReader reader(byte[] body) {
+        return new MultipartReader(new ByteArrayInputStream(body), BOUNDARY);
+    }
+
+    private static String readBody(MultipartReader reader) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        reader.readBody(out, Long.MAX_VALUE);
+        return out.toString("ISO-8859-1");
+    }
+
+    public void testGetBoundary() {
+        assertEquals("xyz", MultipartReader.getBoundary("multipart/form-data; boundary=xyz"));
+        assertEquals("x y", MultipartReader.getBoundary("multipart/mixed; BOUNDARY=\"x y\"; charset=utf-8"));
+        assertNull(MultipartReader.getBoundary("multipart/mixed"));
+        assertNull(MultipartReader.getBoundary("multipart/mixed; boundary="));
+    }
+
+    public void testReadsParts() throws IOException {
+        MultipartReader reader = reader("preamble\r\n"
+                + "--xyz\r\n"
+                + "Content-Type: application/json\r\n"
+                + "\r\n"
+                + "{\"a\":1}\r\n"
+                + "--xyz  \r\n"
+                + "content-type: application/octet-stream\r\n"
+                + "X-Folded: first\r\n"
+                + "\tsecond\r\n"
+                + "\r\n"
+                + "octets\r\n--xy\r\n"
+                + "--xyz--\r\n"
+                + "epilogue");
+        try {
+            assertTrue(reader.nextPart());
+            assertEquals("application/json", reader.getHeader("content-type"));
+            assertEquals("{\"a\":1}", readBody(reader));
+
+            assertTrue(reader.nextPart());
+            assertEquals("application/octet-stream", reader.getHeader("Content-Type"));
+            assertEquals("first second", reader.getHeader("x-folded"));
+            assertNull(reader.getHeader("x-missing"));
+            assertEquals("octets\r\n--xy", readBody(reader));
+
+            assertFalse(reader.nextPart());
+            assertFalse(reader.nextPart());
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testSkipsUnreadBody() throws IOException {
+        MultipartReader reader = reader("--xyz\r\n\r\nskipped\r\n--xyz\r\n\r\nread\r\n--xyz--");
+        try {
+            assertTrue(reader.nextPart());
+            assertTrue(reader.nextPart());
+            assertEquals("read", readBody(reader));
+            assertFalse(reader.nextPart());
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testReadsBodyLargerThanBuffer() throws IOException {
+        byte[] octets = new byte[3 * 64 * 1024 + 7];
+        for (int i = 0; i < octets.length; i++) {
+            octets[i] = (byte) i;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write("--xyz\r\n\r\n".getBytes("ISO-8859-1"));
+        body.write(octets);
+        body.write("\r\n--xyz--\r\n".getBytes("ISO-8859-1"));
+
+        MultipartReader reader = reader(body.toByteArray());
+        try {
+            assertTrue(reader.nextPart());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(octets.length, reader.readBody(out, octets.length));
+            assertTrue(Arrays.equals(octets, out.toByteArray()));
+            assertFalse(reader.nextPart());
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testRejectsBodyOverLimit() throws IOException {
+        MultipartReader reader = reader("--xyz\r\n\r\n0123456789\r\n--xyz--");
+        try {
+            assertTrue(reader.nextPart());
+            reader.readBody(new ByteArrayOutputStream(), 9);
+            fail("Body over the limit should be rejected");
+        } catch (IOException e) {
+            // Expected
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testRejectsTruncatedBody() throws IOException {
+        MultipartReader reader = reader("--xyz\r\n\r\ntruncated");
+        try {
+            assertTrue(reader.nextPart());
+            readBody(reader);
+            fail("Truncated body should be rejected");
+        } catch (EOFException e) {
+            // Expected
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testRejectsMalformedHeader() throws IOException {
+        MultipartReader reader = reader("--xyz\r\nno colon\r\n\r\nbody\r\n--xyz--");
+        try {
+            reader.nextPart();
+            fail("Malformed header should be rejected");
+        } catch (IOException e) {
+            // Expected
+        } finally {
+            reader.close();
+        }
+    }
+
+}
@@ -2,6 +2,9 @@ package android.netinf.streamer;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
@@ -29,17 +32,21 @@ public class Publisher {
             String hash = "stream_name-" + mChunkNumber;
             Ndo ndo = new Ndo.Builder(algorithm, hash).addLocator(bluetooth).build();
             ndo.cache(file);
-            Publish publish = new Publish.Builder(ndo).build();
-            publishUntilSuccessful(publish);
-
+            // Keep our own stream in the cache, it is not a full put so publishing does not pin it
+            Node.pin(ndo);
+            Publish chunk = new Publish.Builder(ndo).build();
 
             // Publish the index
             algorithm = "index";
             hash = "stream_name";
             ndo = new Ndo.Builder(algorithm, hash).addLocator(bluetooth).build();
             ndo.cache(Integer.toString(mChunkNumber), "utf-8");
-            publish = new Publish.Builder(ndo).build();
-            publishUntilSuccessful(publish);
+            Node.pin(ndo);
+            Publish index = new Publish.Builder(ndo).build();
+
+            // Publish the index only once the chunk is published, so it never points to a missing chunk
+            publishUntilSuccessful(Collections.singletonList(chunk));
+            publishUntilSuccessful(Collections.singletonList(index));
 
             mChunkNumber++;
 
@@ -49,26 +56,34 @@ public class Publisher {
 
     }
 
-    private void publishUntilSuccessful(Publish publish) {
+    private void publishUntilSuccessful(List<Publish> publishes) {
 
-        Future<PublishResponse> future = Node.submit(publish);
+        List<Publish> pending = publishes;
+        while (!pending.isEmpty()) {
 
-        try {
+            Future<List<PublishResponse>> future = Node.submitAll(pending);
 
-            PublishResponse publishResponse = future.get();
-            if (publishResponse.getStatus().isSuccess()) {
-                return;
+            try {
+
+                // Retry only the ones that failed
+                List<PublishResponse> publishResponses = future.get();
+                List<Publish> failed = new LinkedList<Publish>();
+                for (int i = 0; i < pending.size(); i++) {
+                    if (publishResponses.get(i) == null || publishResponses.get(i).getStatus().isError()) {
+                        Log.e(TAG, "Failed to PUBLISH " + pending.get(i));
+                        failed.add(pending.get(i));
+                    }
+                }
+                pending = failed;
+
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Failed to PUBLISH " + pending);
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Failed to PUBLISH " + pending);
             }
-            Log.e(TAG, "Failed to PUBLISH " + publish);
 
-        } catch (InterruptedException e) {
-            Log.e(TAG, "Failed to PUBLISH " + publish);
-        } catch (ExecutionException e) {
-            Log.e(TAG, "Failed to PUBLISH " + publish);
         }
 
-        publishUntilSuccessful(publish);
-
     }
 
 }